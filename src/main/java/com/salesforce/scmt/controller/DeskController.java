@@ -15,9 +15,11 @@
 
 package com.salesforce.scmt.controller;
 
+import static spark.Spark.get;
 import static spark.Spark.post;
 
 import com.salesforce.scmt.service.DeskService;
+import com.salesforce.scmt.service.SubmissionService;
 import com.salesforce.scmt.utils.JsonTransformer;
 
 public class DeskController
@@ -30,6 +32,7 @@ public class DeskController
         post(PREFIX_URI + "/MigrateMetadata", (req, res) -> { return DeskService.migrateMetadata(req, res); }, new JsonTransformer());
         post(PREFIX_URI + "/MigrateData", (req, res) -> { return DeskService.migrateData(req, res); }, new JsonTransformer());
         post(PREFIX_URI + "/MigrateAttachments", (req, res) -> { return DeskService.migrateAttachments(req, res); }, new JsonTransformer());
+        get(PREFIX_URI + "/jobs/:id", (req, res) -> { return SubmissionService.getSubmission(req, res); }, new JsonTransformer());
 
         post(PREFIX_URI + "/retrieveMetadata", (req, res) -> { return DeskService.retrieveMetadata(req, res); }, new JsonTransformer());
     }
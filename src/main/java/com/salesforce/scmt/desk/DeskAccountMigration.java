@@ -55,6 +55,12 @@ public class DeskAccountMigration<D extends Serializable> extends DeskBase<D>
         return a.getId();
     }
 
+    @Override
+    protected String getObjectName()
+    {
+        return "Account";
+    }
+
     @Override
     protected int getUpdatedAt(D d)
     {
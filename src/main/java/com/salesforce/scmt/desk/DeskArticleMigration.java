@@ -54,6 +54,11 @@ public class DeskArticleMigration<D extends Serializable> extends DeskBase<D> {
 		return a.getId();
 	}
 
+	@Override
+	protected String getObjectName() {
+		return "Article";
+	}
+
 	@Override
 	protected int getUpdatedAt(D d) {
 		Article a = (Article) d;
@@ -67,15 +72,9 @@ public class DeskArticleMigration<D extends Serializable> extends DeskBase<D> {
         Response<ApiResponse<Article>> resp = null;
         try
         {
-            if (!delta)
-            {
-                // false == bigCompanies TODO
-                resp = service.getArticles("en", page, DESK_PAGE_SIZE_ARTICLE, true).execute();
-            }
-            else
-            {
-                resp = service.getArticles("en", page, DESK_PAGE_SIZE_ARTICLE, true).execute();
-            }
+            // the articles endpoint can't filter on 'updated_at', a delta sync skips the unchanged articles when they
+            // are transformed (see DeskBase)
+            resp = service.getArticles("en", page, DESK_PAGE_SIZE_ARTICLE, true).execute();
 
         }
         catch (IOException e)
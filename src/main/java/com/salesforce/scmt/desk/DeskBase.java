@@ -16,13 +16,27 @@
 package com.salesforce.scmt.desk;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import com.desk.java.apiclient.model.ApiResponse;
 import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.model.MigrationFailedException;
+import com.salesforce.scmt.rabbitmq.RabbitConfiguration;
+import com.salesforce.scmt.rabbitmq.RabbitWorker;
+import com.salesforce.scmt.service.CheckpointService;
+import com.salesforce.scmt.service.CheckpointService.Checkpoint;
+import com.salesforce.scmt.service.LoadedIds;
+import com.salesforce.scmt.service.SalesforceService;
+import com.salesforce.scmt.service.WatermarkService;
+import com.salesforce.scmt.service.WatermarkService.Watermark;
 import com.salesforce.scmt.utils.DeskUtil;
+import com.salesforce.scmt.utils.JsonUtil;
+import com.salesforce.scmt.utils.RabbitUtil;
 import com.salesforce.scmt.utils.SalesforceConstants;
 import com.salesforce.scmt.utils.SalesforceConstants.DeskMigrationFields;
 import com.salesforce.scmt.utils.Utils;
@@ -38,6 +52,17 @@ public abstract class DeskBase<D extends Serializable>
      */
     private static final int DESK_MAX_PAGES = 500;
 
+    /**
+     * Wait used when a throttled response has no rate limit reset header.
+     */
+    private static final int DEFAULT_THROTTLE_SECONDS = 5;
+
+    /**
+     * A sync that isn't ordered by 'updated_at' sets the watermark to its start time, minus this margin for clock
+     * differences between Desk.com and the worker (records updated in the margin are simply migrated again).
+     */
+    private static final int WATERMARK_SKEW_SECONDS = 300;
+
     protected List<D> recList = new ArrayList<>();
     private Response<ApiResponse<D>> resp = null;
     private DeskBaseResponse<ApiResponse<D>> dResp = new DeskBaseResponse<>();
@@ -62,6 +87,32 @@ public abstract class DeskBase<D extends Serializable>
 
     // flag which indicates if the job is being re-queued (to better handle the daily Heroku dyno restarts)
     private boolean bRequeued = false;
+
+    // the last record retrieved, a continuation of this job starts right after it
+    private D lastRetrieved = null;
+
+    // set when Desk.com throttled us long enough to park the rest of the job in a retry queue
+    private long parkMillis = 0;
+
+    // records covered by the watermark of the previous sync are skipped (null when not syncing incrementally)
+    private Watermark syncedUntil = null;
+
+    // where the migration continues once every record retrieved so far is submitted
+    private Checkpoint committed = null;
+
+    // the last record added to a job that only uploads the records when it is closed
+    private D uploadPending = null;
+
+    // the first and last records converted for such a job, the range its results confirm
+    private D uploadFirst = null;
+    private D uploadLast = null;
+
+    // the batches of an incremental sync waiting for their results, in the order they were submitted
+    private final Deque<SyncBatch> syncBatches = new ArrayDeque<>();
+    private SalesforceService syncService = null;
+
+    // records an earlier run of this migration already loaded (null when the object isn't tracked)
+    private LoadedIds loadedIds = null;
     
     protected DeskUtil du;
     protected Map<String, String> config;
@@ -91,6 +142,18 @@ public abstract class DeskBase<D extends Serializable>
         updatedAt = (config.get("updated_at") == null ? 1
             : (config.get("updated_at") == "null" ? 1 : Integer.valueOf(config.get("updated_at"))));
 
+        // a migration submitted again continues from its last checkpoint
+        resumeFromCheckpoint();
+
+        // continue from the watermark of the previous sync
+        startDeltaSync();
+
+        // skip what an earlier run of this migration already loaded
+        if (getObjectName() != null)
+        {
+            loadedIds = LoadedIds.forObject(du.getDeskService(), getObjectName());
+        }
+
         // get the client settings
         Map<String, Object> clientSettings = du.getDeskService().getClientSettings();
 
@@ -99,6 +162,49 @@ public abstract class DeskBase<D extends Serializable>
 
         du.updateMigrationStatus(DeskMigrationFields.StatusRunning, "", null, jobId);
 
+        try
+        {
+            retrieveRecords();
+
+            // the job is throttled or the worker is being stopped half way, save what we have and hand the rest over
+            if (!bRequeued && (parkMillis > 0 || RabbitWorker.isShuttingDown()) && hasMorePages())
+            {
+                objectBulkUploadHandOver(du, config);
+                return;
+            }
+
+            // general processing for remaining objects over 10k or under10k, object specific is invoked.
+            objectBulkUploadComplete(du, config);
+        }
+        catch (Exception e)
+        {
+            // the records still held by the job are retrieved again from the last checkpoint
+            du.getSalesforceService().abortBulkJob(jobId);
+            throw e;
+        }
+
+        // a continuation (on a new bulk job) has the rest of the records
+        if (bRequeued)
+        {
+            return;
+        }
+
+        // the next sync can start where this one ended
+        completeDeltaSync();
+
+        // submitted again, the migration starts over
+        if (isCheckpointed())
+        {
+            CheckpointService.complete(du.getDeskService(), getObjectName(), null,
+                (committed == null ? new Checkpoint(lastRecordId, null) : committed));
+        }
+    }
+
+    /**
+     * Retrieve the records page by page, submitting them to the bulk job every 10k records.
+     */
+    private void retrieveRecords() throws Exception
+    {
         // loop through retrieving records
         do
         {
@@ -108,15 +214,8 @@ public abstract class DeskBase<D extends Serializable>
                 bRetry = false;
                 requestCount++;
 
-
-                if (!delta)
-                {
-                    dResp = callDesk(du);
-                }
-                else
-                {
-                    dResp = callDesk(du);
-                }
+                // each object retrieves its records in the order (and with the filter) the config asks for
+                dResp = callDesk(du);
 
                 // check for success
                 if (dResp.getIsSuccess())
@@ -125,7 +224,14 @@ public abstract class DeskBase<D extends Serializable>
                     DeskUtil.logDeskRateHeaders(dResp.getHeaders());
 
                     // add the list of records to the return list
-                    recList.addAll(((ApiResponse<D>) dResp.body).getEntriesAsList());
+                    List<D> entries = ((ApiResponse<D>) dResp.body).getEntriesAsList();
+                    recList.addAll(entries);
+
+                    // remember the resume point in case the worker is stopped
+                    if (!entries.isEmpty())
+                    {
+                        lastRetrieved = entries.get(entries.size() - 1);
+                    }
 
                     // check if we are on the last page
                     if (page >= DESK_MAX_PAGES)
@@ -168,7 +274,7 @@ public abstract class DeskBase<D extends Serializable>
                     {                    	
                         // get the reset seconds and sleep for that many seconds
                     	System.out.println("reset "+dResp.getHeaders().get(DeskUtil.DESK_HEADER_LIMIT_RESET));
-                        Thread.sleep(Integer.parseInt(dResp.getHeaders().get(DeskUtil.DESK_HEADER_LIMIT_RESET)) * 1000);
+                        throttle(dResp);
 
                         // re-queue or retry
                         bRetry = true;
@@ -183,7 +289,7 @@ public abstract class DeskBase<D extends Serializable>
                     else if (dResp.code() == 504)
                     {
                     	// guard against 504 bad gateway
-                    	Thread.sleep(Integer.parseInt(dResp.getHeaders().get(DeskUtil.DESK_HEADER_LIMIT_RESET)) * 1000);
+                        throttle(dResp);
                         bRetry = true;
                     }
                     else
@@ -203,13 +309,15 @@ public abstract class DeskBase<D extends Serializable>
                 Utils.log("[EXCEPTION] Retry Attempt: " + retryCount);
                 if (retryCount > 5)
                 {
-                    dr.setResumePoint(lastRecordId);
+                    // the records retrieved since the last batch are lost, resume after the last ones submitted
+                    dr.setResumePoint(committed == null ? lastRecordId : committed.getStartId());
+                    failCheckpoint();
                     //du.updateMigrationStatus(DeskMigrationFields.StatusFailed, "Cases", dr);
                     
 //                    Utils.sendEmail();
                     // we retried 5 times, let exception go
                     du.updateMigrationStatus(DeskMigrationFields.StatusFailed, "", dr);
-                    throw e;
+                    throw new MigrationFailedException(e.getMessage(), e);
                 }
                 else
                 {
@@ -218,11 +326,284 @@ public abstract class DeskBase<D extends Serializable>
             }
         }
         // continue to loop while the request is successful and there are subsequent pages of results
-        while (!bRequeued && (bRetry || (dResp.getIsSuccess() && ((ApiResponse<D>) dResp.body).hasNextPage()
-            && SalesforceConstants.RETRIEVE_ALL)));
+        while (!bRequeued && parkMillis == 0 && !RabbitWorker.isShuttingDown() && hasMorePages());
+    }
+
+    /**
+     * Returns true if the migration keeps checkpoints (it has to be able to continue from a record id).
+     */
+    private boolean isCheckpointed()
+    {
+        return isResumable() && getObjectName() != null;
+    }
+
+    private void resumeFromCheckpoint() throws Exception
+    {
+        // continuations come with their start id
+        if (!isCheckpointed() || (config.get("start_id") != null && !"null".equals(config.get("start_id"))))
+        {
+            return;
+        }
+
+        Checkpoint checkpoint = CheckpointService.load(du.getDeskService(), getObjectName(), null);
+        if (checkpoint == null)
+        {
+            return;
+        }
+
+        lastRecordId = checkpoint.getStartId();
+        config.put("start_id", String.valueOf(lastRecordId));
+
+        if (checkpoint.getUpdatedAt() != null)
+        {
+            delta = true;
+            updatedAt = checkpoint.getUpdatedAt();
+            config.put("updated_at", String.valueOf(updatedAt));
+            config.put("delta", String.valueOf(delta));
+        }
+    }
+
+    /**
+     * Called once the records retrieved so far (up to and including the given one) are submitted to a bulk job.
+     */
+    private void batchSubmitted(D last) throws Exception
+    {
+        // a Bulk API 2.0 job uploads the records when it is closed, they are only committed then
+        if (du.getSalesforceService().isUploadedOnClose(jobId))
+        {
+            uploadPending = last;
+            return;
+        }
+
+        commit(last);
+    }
+
+    /**
+     * Close the bulk job, committing the records a Bulk API 2.0 job uploads on close.
+     */
+    private void closeJob() throws Exception
+    {
+        Consumer<Boolean> onResults = (uploadFirst == null ? null : syncBatch(uploadFirst, uploadLast));
+        uploadFirst = null;
+        uploadLast = null;
+        du.getSalesforceService().closeBulkJob(jobId, onResults);
+
+        if (uploadPending != null)
+        {
+            D last = uploadPending;
+            uploadPending = null;
+            commit(last);
+        }
+    }
+
+    /**
+     * Save the checkpoint after the records up to and including the given one. The watermark only moves once the bulk
+     * results confirm the records saved (see {@link #syncBatch}).
+     */
+    private void commit(D last) throws Exception
+    {
+        if (isCheckpointed())
+        {
+            committed = new Checkpoint(getId(last) + 1, (delta ? getUpdatedAt(last) : null));
+            CheckpointService.save(du.getDeskService(), getObjectName(), null, committed);
+        }
+    }
+
+    private void failCheckpoint()
+    {
+        if (!isCheckpointed())
+        {
+            return;
+        }
+
+        try
+        {
+            CheckpointService.fail(du.getDeskService(), getObjectName(), null,
+                (committed == null ? new Checkpoint(lastRecordId, (delta ? updatedAt : null)) : committed));
+        }
+        catch (Exception e)
+        {
+            // don't hide the error the migration failed with
+            Utils.logException(e);
+        }
+    }
+
+    /**
+     * Returns true if this is an incremental sync ('delta_sync' is set and the object keeps a watermark).
+     */
+    private boolean isDeltaSync()
+    {
+        return getObjectName() != null && Boolean.valueOf(config.get("delta_sync"));
+    }
+
+    private void startDeltaSync() throws Exception
+    {
+        if (!isDeltaSync())
+        {
+            return;
+        }
+
+        // the first message of a sync looks the watermark up, its continuations carry it in the config
+        if (config.get("sync_started_at") == null)
+        {
+            config.put("sync_started_at", String.valueOf(System.currentTimeMillis() / 1000 - WATERMARK_SKEW_SECONDS));
+
+            Watermark previous = WatermarkService.load(du.getDeskService(), getObjectName());
+            if (previous != null)
+            {
+                config.put("watermark_updated_at", String.valueOf(previous.getUpdatedAt()));
+                config.put("watermark_id", String.valueOf(previous.getId()));
+
+                // only retrieve what changed since, unless an explicit 'updated_at' was passed
+                if (!delta)
+                {
+                    delta = true;
+                    updatedAt = previous.getUpdatedAt();
+                    config.put("updated_at", String.valueOf(updatedAt));
+                    config.put("delta", String.valueOf(delta));
+                }
+            }
+        }
+
+        if (config.get("watermark_updated_at") != null)
+        {
+            syncedUntil = new Watermark(Integer.parseInt(config.get("watermark_updated_at")),
+                Integer.parseInt(config.get("watermark_id")));
+        }
+    }
+
+    /**
+     * Returns the listener for the results of a batch with the records from first to last, or null if this isn't an
+     * incremental sync. In 'updated_at' order the watermark is moved to the last record of the batches saved, as long
+     * as every batch submitted before them by this job was saved too; a batch that failed holds the watermark before
+     * its first record (any sync in another order can't vouch for its records then).
+     */
+    private Consumer<Boolean> syncBatch(D first, D last)
+    {
+        if (!isDeltaSync())
+        {
+            return null;
+        }
+
+        SyncBatch batch = new SyncBatch(new Watermark(getUpdatedAt(first), getId(first) - 1),
+            new Watermark(getUpdatedAt(last), getId(last)));
+        synchronized (syncBatches)
+        {
+            if (syncService == null)
+            {
+                // the results come in on other threads
+                syncService = du.getSalesforceService().duplicate();
+            }
+            syncBatches.add(batch);
+        }
+
+        // the job goes on changing its config while the results come in
+        String site = du.getDeskService().getClient().getHostname();
+        String sync = config.get("sync_started_at");
+        return saved -> batchConfirmed(batch, saved, site, sync);
+    }
+
+    private void batchConfirmed(SyncBatch batch, boolean saved, String site, String sync)
+    {
+        synchronized (syncBatches)
+        {
+            batch.done = true;
+            batch.saved = saved;
+
+            try
+            {
+                if (!saved)
+                {
+                    Watermark held = (isUpdatedAtOrdered() ? batch.before
+                        : (syncedUntil == null ? new Watermark(0, 0) : syncedUntil));
+                    WatermarkService.hold(syncService, site, getObjectName(), sync, held);
+                }
+
+                // move past the batches at the head that were saved, a failed one stays there for good
+                Watermark reached = null;
+                while (!syncBatches.isEmpty() && syncBatches.peek().done && syncBatches.peek().saved)
+                {
+                    reached = syncBatches.poll().through;
+                }
+                if (reached != null && isUpdatedAtOrdered())
+                {
+                    WatermarkService.save(syncService, site, getObjectName(), sync, reached);
+                }
+            }
+            catch (Exception e)
+            {
+                // the records after the watermark are migrated again by the next sync
+                Utils.log("[DELTA] Could not update the watermark for [" + getObjectName() + "]: " + e.getMessage());
+            }
+        }
+    }
+
+    private void completeDeltaSync() throws Exception
+    {
+        // a sync in 'updated_at' order advances the watermark as its records are confirmed, any other sync can only
+        // vouch for the records updated before it started (and is held back by the batches that failed)
+        if (isDeltaSync() && !isUpdatedAtOrdered())
+        {
+            WatermarkService.save(du.getSalesforceService(), du.getDeskService().getClient().getHostname(),
+                getObjectName(), config.get("sync_started_at"),
+                new Watermark(Integer.parseInt(config.get("sync_started_at")), 0));
+        }
+    }
+
+    /**
+     * Returns true if the record was migrated by the previous sync (and didn't change since).
+     */
+    private boolean isSynced(D d)
+    {
+        if (syncedUntil == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            return syncedUntil.covers(getUpdatedAt(d), getId(d));
+        }
+        catch (Exception e)
+        {
+            // can't tell, migrate it again
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if an earlier run of this migration loaded the record. A delta sync still migrates the records that
+     * changed since, unless they are only ever inserted.
+     */
+    private boolean isLoaded(D d)
+    {
+        return (loadedIds != null && (!delta || isInsertOnly()) && loadedIds.contains(getId(d)));
+    }
+
+    /**
+     * Wait for the Desk.com rate limit to reset. Long waits of resumable objects aren't spent holding the consumer:
+     * the job is parked in a retry queue and continued once the limit has reset.
+     */
+    private void throttle(DeskBaseResponse<ApiResponse<D>> dResp) throws InterruptedException
+    {
+        String reset = dResp.getHeaders().get(DeskUtil.DESK_HEADER_LIMIT_RESET);
+        long resetMillis = (reset == null ? DEFAULT_THROTTLE_SECONDS : Integer.parseInt(reset)) * 1000L;
 
-        // general processing for remaining objects over 10k or under10k, object specific is invoked.
-        objectBulkUploadComplete(du, config);
+        if (isResumable() && resetMillis >= DeskUtil.getThrottleParkMillis())
+        {
+            parkMillis = resetMillis;
+        }
+        else
+        {
+            RabbitWorker.pause(resetMillis);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean hasMorePages()
+    {
+        return bRetry || (dResp.getIsSuccess() && ((ApiResponse<D>) dResp.body).hasNextPage()
+            && SalesforceConstants.RETRIEVE_ALL);
     }
 
     private DeployResponse transformObject(String jobId, List<D> deskObjects, DeskUtil du)
@@ -233,17 +614,31 @@ public abstract class DeskBase<D extends Serializable>
         {
             Utils.log("Bulk Upload");
             List<Map<String, Object>> sfRecs = new ArrayList<>();
+            List<LoadedIds.Row> sfRecSources = new ArrayList<>();
             int counter = 0;
 
+            // the first and last records of the current batch
+            D first = null;
+            D last = null;
+
             for (D d : deskObjects)
             {
-                // skip object
-                if (skipObject(d)) continue;
+                // skip object, or skip it because it didn't change since the previous sync or is already loaded
+                if (skipObject(d) || isSynced(d) || isLoaded(d)) continue;
 
                 // convert the desk case to the Map for conversion to JSON
                 // sfRecs.add(d);
             	List<Map<String, Object>> obj = deskObjectToSalesforceObject(du, d);
                 sfRecs.addAll(obj);
+                first = (first == null ? d : first);
+                last = d;
+
+                // remember which desk record each salesforce record came from
+                LoadedIds.Row source = (loadedIds == null ? null : loadedIds.row(getId(d)));
+                for (int i = 0; i < obj.size(); i++)
+                {
+                    sfRecSources.add(source);
+                }
                 
                 // increment the counter 
                 counter = counter + obj.size();
@@ -251,12 +646,16 @@ public abstract class DeskBase<D extends Serializable>
                 // submit a bulk job every 10k records
                 if ((counter % SalesforceConstants.BULK_MAX_SIZE) == 0)
                 {                	
-                    du.getSalesforceService().addBatchToJob(jobId, sfRecs);
+                    String batchId = du.getSalesforceService().addBatchToJob(jobId, sfRecs);
+                    LoadedIds.track(du.getSalesforceService(), jobId, batchId, sfRecSources,
+                        batchAdded(batchId, first, last));
+                    first = null;
                     
                     //update dr success count
                     dr.incrementSuccessCount(sfRecs.size());
                     // clear the lists
                     sfRecs.clear();
+                    sfRecSources.clear();
                     //reset counter
                     counter = 0;
                 }
@@ -265,7 +664,9 @@ public abstract class DeskBase<D extends Serializable>
             // check if there are records that still need to be bulk upserted
             if (!sfRecs.isEmpty())
             {
-                du.getSalesforceService().addBatchToJob(jobId, sfRecs);
+                String batchId = du.getSalesforceService().addBatchToJob(jobId, sfRecs);
+                LoadedIds.track(du.getSalesforceService(), jobId, batchId, sfRecSources,
+                    batchAdded(batchId, first, last));
                 
                 // update dr success count
                 dr.incrementSuccessCount(sfRecs.size());                
@@ -281,6 +682,22 @@ public abstract class DeskBase<D extends Serializable>
 
     }
 
+    /**
+     * Returns the listener for the results of a Bulk API 1.0 batch with the records from first to last. The records
+     * of a Bulk API 2.0 job (without a batch id) are confirmed together when the job is closed.
+     */
+    private Consumer<Boolean> batchAdded(String batchId, D first, D last)
+    {
+        if (batchId != null)
+        {
+            return syncBatch(first, last);
+        }
+
+        uploadFirst = (uploadFirst == null ? first : uploadFirst);
+        uploadLast = last;
+        return null;
+    }
+
     private void objectBulkUploadProcessing(DeskUtil du, Map<String, String> config) throws Exception
     {
     	
@@ -296,7 +713,7 @@ public abstract class DeskBase<D extends Serializable>
                 config = objectSpecificBulkProcessing(config);
                 
                 //close current job
-                du.getSalesforceService().closeBulkJob(this.jobId);
+                closeJob();
 
                 // flip the flag indicating we have re-queued this message, and
                 // we can exit this run...
@@ -306,6 +723,7 @@ public abstract class DeskBase<D extends Serializable>
 
             // create the cases, transformObject calls object specific method
             dr.addDeployResponse(transformObject(this.jobId, recList, du));
+            batchSubmitted(recList.get(recList.size() - 1));
 
             // clear the records that were bulk inserted
             recList.subList(0, SalesforceConstants.BULK_MAX_SIZE).clear();
@@ -316,9 +734,9 @@ public abstract class DeskBase<D extends Serializable>
     private void objectBulkUploadComplete(DeskUtil du, Map<String, String> config) throws Exception
     {
         // process any records over the 10k chunk, or all if total is less than 10k.
-
+        boolean submitted = (!recList.isEmpty() && !SalesforceConstants.READ_ONLY);
         
-        if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
+        if (submitted)
         {
             System.out.println("JobID" + this.jobId);
             // check for valid job, job closes after 5k batches or 24 hours,
@@ -327,7 +745,7 @@ public abstract class DeskBase<D extends Serializable>
             {
 
                 // close the current job
-                du.getSalesforceService().closeBulkJob(this.jobId);
+                closeJob();
 
                 // object specific cleanup create new job
                 objectSpecificBulkCleanup(du);
@@ -336,11 +754,18 @@ public abstract class DeskBase<D extends Serializable>
             System.out.println("Upserting : " + recList.size());
             
             dr.addDeployResponse(transformObject(this.jobId, recList, du));
+            batchSubmitted(recList.get(recList.size() - 1));
             recList.clear();
+        }
 
-            // close the bulk job
-            du.getSalesforceService().closeBulkJob(jobId);
-            
+        // close the bulk job, a Bulk API 2.0 job also when the last 10k records emptied the list (it uploads them now)
+        if (submitted || du.getSalesforceService().isUploadedOnClose(jobId))
+        {
+            closeJob();
+        }
+
+        if (submitted)
+        {
          // object specific completion code, eg. cases sends attachment ids
             dr.setResumePoint(lastRecordId);
 //            du.updateMigrationStatus(DeskMigrationFields.StatusFailed, "Cases", dr);
@@ -351,8 +776,104 @@ public abstract class DeskBase<D extends Serializable>
         }
     }
 
+    private void objectBulkUploadHandOver(DeskUtil du, Map<String, String> config) throws Exception
+    {
+        // the id after the last record retrieved (nothing was retrieved if it is 0)
+        int resumeId = (lastRetrieved == null ? 0 : getId(lastRetrieved) + 1);
+        Utils.log("[DESK] " + (parkMillis > 0 ? "Throttled for [" + parkMillis + "] ms" : "Worker is shutting down")
+            + ", flushing [" + recList.size() + "] record(s), resume id: [" + resumeId + "]");
+
+        // submit everything retrieved so far
+        if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
+        {
+            // check for valid job, job closes after 5k batches or 24 hours, whichever comes first
+            if (du.getSalesforceService().createNewJob(this.jobId))
+            {
+                closeJob();
+                this.jobId = createJob(du);
+            }
+
+            dr.addDeployResponse(transformObject(this.jobId, recList, du));
+            batchSubmitted(recList.get(recList.size() - 1));
+            recList.clear();
+        }
+        closeJob();
+
+        // continue right after the last record retrieved
+        if (resumeId > 0)
+        {
+            config.put("start_id", String.valueOf(resumeId));
+            if (delta)
+            {
+                config.put("updated_at", String.valueOf(getUpdatedAt(lastRetrieved)));
+            }
+        }
+        dr.setResumePoint(resumeId > 0 ? resumeId : lastRecordId);
+
+        // objects that can't be resumed by id get their message back, and start over on the next worker
+        if (!publishContinuation(config, parkMillis))
+        {
+            RabbitWorker.requeueDelivery();
+        }
+
+        du.updateMigrationStatus(DeskMigrationFields.StatusRunning, "", dr);
+    }
+
+    /**
+     * Returns true if the migration can be continued from a record id by {@link #publishContinuation(Map, long)}.
+     */
+    protected boolean isResumable() { return false; }
+
+    /**
+     * Publish a message that continues this migration with the given config ('start_id' and 'updated_at' are already
+     * set to the resume point). Objects that are resumable override this.
+     *
+     * @param delayMillis
+     *            How long the continuation should wait before it runs, 0 to run it right away.
+     * @return True if a continuation was published, false if the migration can't be continued (the default).
+     */
+    protected boolean publishContinuation(Map<String, String> config, long delayMillis) throws Exception
+    {
+        return false;
+    }
+
+    /**
+     * Publish a data migration message, parked in a retry queue for the given time if it is not 0.
+     */
+    protected static void publishDataMigration(Map<String, String> config, long delayMillis) throws Exception
+    {
+        byte[] message = JsonUtil.toJson(config).getBytes();
+
+        if (delayMillis > 0)
+        {
+            RabbitUtil.publishDelayed(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION, null, message, delayMillis);
+        }
+        else
+        {
+            RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION,
+                RabbitConfiguration.EXCHANGE_TRACTOR, message);
+        }
+    }
+
     protected boolean skipObject(D d) { return false; }
 
+    /**
+     * Returns the object type the checkpoints and the watermark of an incremental sync are kept for, or null if the
+     * object is always migrated in full.
+     */
+    protected String getObjectName() { return null; }
+
+    /**
+     * Returns true if the records are retrieved in ascending 'updated_at' order, so the watermark can be moved along
+     * as they are confirmed saved.
+     */
+    protected boolean isUpdatedAtOrdered() { return false; }
+
+    /**
+     * Returns true if the records are inserted (not upserted), so loading one twice creates a duplicate.
+     */
+    protected boolean isInsertOnly() { return false; }
+
     protected abstract int getId(D d);
 
     protected abstract int getUpdatedAt(D d);
@@ -371,4 +892,21 @@ public abstract class DeskBase<D extends Serializable>
     protected abstract void objectSpecificBulkCleanup(DeskUtil du) throws Exception;
 
     protected abstract List<Map<String, Object>> deskObjectToSalesforceObject(DeskUtil du, D d) throws Exception;
+
+    /**
+     * A batch of an incremental sync: the watermarks before its first record and at its last one.
+     */
+    private static final class SyncBatch
+    {
+        private final Watermark before;
+        private final Watermark through;
+        private boolean done = false;
+        private boolean saved = false;
+
+        private SyncBatch(Watermark before, Watermark through)
+        {
+            this.before = before;
+            this.through = through;
+        }
+    }
 }
@@ -30,6 +30,7 @@ import com.desk.java.apiclient.model.SortDirection;
 import com.desk.java.apiclient.service.CaseService;
 import com.salesforce.scmt.model.DeployResponse;
 import com.salesforce.scmt.rabbitmq.RabbitConfiguration;
+import com.salesforce.scmt.rabbitmq.WorkEnvelope;
 import com.salesforce.scmt.utils.DeskUtil;
 import com.salesforce.scmt.utils.JsonUtil;
 import com.salesforce.scmt.utils.RabbitUtil;
@@ -92,6 +93,19 @@ public class DeskCaseMigration<D extends Serializable> extends DeskBase<D>
         return ((Case) d).getId();
     }
 
+    @Override
+    protected String getObjectName()
+    {
+        return "Case";
+    }
+
+    @Override
+    protected boolean isUpdatedAtOrdered()
+    {
+        // the delta search is sorted by 'updated_at'
+        return delta;
+    }
+
     @Override
     protected int getUpdatedAt(D d)
     {
@@ -127,7 +141,7 @@ public class DeskCaseMigration<D extends Serializable> extends DeskBase<D>
             // push the list of case id's to the rabbit mq to retrieve the feed
             // for these cases
             RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_FEED_MIGRATION,
-                RabbitConfiguration.EXCHANGE_FORMULA1, JsonUtil.toJson(clientSettings).getBytes());
+                RabbitConfiguration.EXCHANGE_FORMULA1, WorkEnvelope.fromConfig(clientSettings).encode());
 
             // clear the items sent to the queue
             attachmentIdList.subList(0, SalesforceConstants.API_MAX_SIZE).clear();
@@ -157,8 +171,34 @@ public class DeskCaseMigration<D extends Serializable> extends DeskBase<D>
         return config;
     }
 
+    @Override
+    protected boolean isResumable()
+    {
+        return true;
+    }
+
+    @Override
+    protected boolean publishContinuation(Map<String, String> config, long delayMillis) throws Exception
+    {
+        // the case ids with attachments collected so far would be lost with this run
+        publishAttachmentIds(du);
+
+        // set the job to migrate cases
+        config.put("migrateCases", "true");
+
+        publishDataMigration(config, delayMillis);
+        return true;
+    }
+
     @Override
     protected void objectSpecificBulkComplete(DeskUtil du) throws Exception
+    {
+        publishAttachmentIds(du);
+        
+        du.updateMigrationStatus(DeskMigrationFields.StatusComplete, "Cases", dr);
+    }
+
+    private void publishAttachmentIds(DeskUtil du) throws Exception
     {
         System.out.println("AttachmentIdListSize: " + attachmentIdList.size());
         while (!attachmentIdList.isEmpty())
@@ -174,13 +214,11 @@ public class DeskCaseMigration<D extends Serializable> extends DeskBase<D>
             // push the list of case id's to the rabbit mq to retrieve the feed
             // for these cases
             RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_FEED_MIGRATION,
-                RabbitConfiguration.EXCHANGE_FORMULA1, JsonUtil.toJson(clientSettings).getBytes());
+                RabbitConfiguration.EXCHANGE_FORMULA1, WorkEnvelope.fromConfig(clientSettings).encode());
 
             // clear the items sent to the queue
             attachmentIdList.subList(0, iMax).clear();
         }
-        
-        du.updateMigrationStatus(DeskMigrationFields.StatusComplete, "Cases", dr);
     }
 
     @Override
@@ -29,10 +29,7 @@ import com.desk.java.apiclient.model.Fields;
 import com.desk.java.apiclient.model.SortDirection;
 import com.desk.java.apiclient.service.CustomerService;
 import com.salesforce.scmt.model.DeployResponse;
-import com.salesforce.scmt.rabbitmq.RabbitConfiguration;
 import com.salesforce.scmt.utils.DeskUtil;
-import com.salesforce.scmt.utils.JsonUtil;
-import com.salesforce.scmt.utils.RabbitUtil;
 import com.salesforce.scmt.utils.SalesforceConstants;
 import com.salesforce.scmt.utils.SalesforceConstants.CaseFields;
 import com.salesforce.scmt.utils.SalesforceConstants.DeskMigrationFields;
@@ -57,6 +54,19 @@ public class DeskContactMigration<D extends Serializable> extends DeskBase<D>
         return c.getId();
     }
 
+    @Override
+    protected String getObjectName()
+    {
+        return "Contact";
+    }
+
+    @Override
+    protected boolean isUpdatedAtOrdered()
+    {
+        // the delta search is sorted by 'updated_at'
+        return delta;
+    }
+
     @Override
     protected int getUpdatedAt(D d)
     {
@@ -118,15 +128,29 @@ public class DeskContactMigration<D extends Serializable> extends DeskBase<D>
     @Override
     protected Map<String, String> objectSpecificBulkProcessing(Map<String, String> config) throws Exception
     {
-    	// set the job to migrate cases and set the start_id
-        config.put("migrateCustomers", "true");
+    	// set the start_id
         config.put("start_id", String.valueOf(getId(recList.get(recList.size() - 1)) + 1));
 
-        RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION, RabbitConfiguration.EXCHANGE_TRACTOR,
-            JsonUtil.toJson(config).getBytes());
+        publishContinuation(config, 0);
         return config;
     }
 
+    @Override
+    protected boolean isResumable()
+    {
+        return true;
+    }
+
+    @Override
+    protected boolean publishContinuation(Map<String, String> config, long delayMillis) throws Exception
+    {
+        // set the job to migrate customers
+        config.put("migrateCustomers", "true");
+
+        publishDataMigration(config, delayMillis);
+        return true;
+    }
+
     @Override
     protected void objectSpecificBulkComplete(DeskUtil du) throws Exception
     {
@@ -59,6 +59,18 @@ public class DeskNoteMigration<D extends Serializable> extends DeskBase<D>
         return n.getId();
     }
 
+    @Override
+    protected String getObjectName()
+    {
+        return "Note";
+    }
+
+    @Override
+    protected boolean isInsertOnly()
+    {
+        return true;
+    }
+
     @Override
     protected int getUpdatedAt(D d)
     {
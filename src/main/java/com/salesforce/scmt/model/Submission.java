@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.model;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A request submitted to run in the background, with its progress (see SubmissionService).
+ */
+public class Submission
+{
+    public static final String STATUS_SUBMITTED = "SUBMITTED";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_QUEUED = "QUEUED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    private final String id = UUID.randomUUID().toString();
+    private final String type;
+    private final String migrationId;
+    private final Instant submitted = Instant.now();
+    private Instant finished;
+    private String status = STATUS_SUBMITTED;
+    private String error;
+
+    /**
+     * @param type
+     *            What was submitted, e.g. 'MigrateData'.
+     * @param migrationId
+     *            The Desk_Migration__c id, may be null.
+     */
+    public Submission(String type, String migrationId)
+    {
+        this.type = type;
+        this.migrationId = migrationId;
+    }
+
+    public String getId()
+    {
+        return this.id;
+    }
+
+    public String getType()
+    {
+        return this.type;
+    }
+
+    public String getMigrationId()
+    {
+        return this.migrationId;
+    }
+
+    public synchronized String getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * Set the status, and the error it failed with (null if it didn't). Queued and failed submissions are finished.
+     */
+    public synchronized void setStatus(String status, String error)
+    {
+        this.status = status;
+        this.error = error;
+        if (STATUS_QUEUED.equals(status) || STATUS_FAILED.equals(status))
+        {
+            this.finished = Instant.now();
+        }
+    }
+
+    /**
+     * Returns true if the submission finished more than the given time ago.
+     */
+    public synchronized boolean isFinishedBefore(long millisAgo)
+    {
+        return (this.finished != null && this.finished.toEpochMilli() + millisAgo < System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the submission as served by '/desk/jobs/:id'.
+     */
+    public synchronized Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new TreeMap<>();
+        map.put("job_id", this.id);
+        map.put("type", this.type);
+        map.put("desk_migration_id", this.migrationId);
+        map.put("status", this.status);
+        map.put("error", this.error);
+        map.put("submitted", this.submitted.toString());
+        map.put("finished", (this.finished == null ? null : this.finished.toString()));
+        return map;
+    }
+}
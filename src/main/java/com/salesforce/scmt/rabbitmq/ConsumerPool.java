@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.Utils;
+
+/**
+ * The consumers of a single queue. Every consumer has a channel of its own, so the consumers of a queue (and of
+ * different queues) process messages at the same time, each with its own prefetch window. The pool can grow and shrink
+ * while it runs; a consumer that is removed finishes the message it is processing, then its channel is closed.
+ */
+public final class ConsumerPool
+{
+    private final Connection _connection;
+    private final String _queue;
+    private final int _prefetch;
+    private final List<PooledConsumer> _consumers = new ArrayList<>();
+    private final List<PooledConsumer> _retired = new ArrayList<>();
+
+    public ConsumerPool(Connection connection, String queue, int prefetch)
+    {
+        _connection = connection;
+        _queue = queue;
+        _prefetch = prefetch;
+    }
+
+    public String getQueue()
+    {
+        return _queue;
+    }
+
+    /**
+     * Returns the number of running consumers.
+     */
+    public synchronized int size()
+    {
+        return _consumers.size();
+    }
+
+    /**
+     * Start consumers until the pool has the given number of them.
+     *
+     * @param consumers
+     *            The number of consumers the pool should have.
+     */
+    public synchronized void start(int consumers) throws IOException
+    {
+        while (_consumers.size() < consumers)
+        {
+            // create a channel for this consumer
+            Channel channel = _connection.createChannel();
+
+            // limit the number of unacknowledged messages held by this consumer
+            channel.basicQos(_prefetch);
+
+            PooledConsumer consumer = new PooledConsumer(channel);
+            consumer.tag = channel.basicConsume(_queue, false, consumer);
+            _consumers.add(consumer);
+        }
+
+        Utils.log("[MQ] Waiting for messages on [" + _queue + "] Queue with [" + _consumers.size()
+            + "] consumer(s), prefetch [" + _prefetch + "].");
+    }
+
+    /**
+     * Start or stop consumers so the pool has the given number of them. Stopped consumers finish their current
+     * message, their prefetched messages go back to the queue.
+     *
+     * @param consumers
+     *            The number of consumers the pool should have.
+     */
+    public synchronized void resize(int consumers) throws IOException
+    {
+        if (consumers > _consumers.size())
+        {
+            start(consumers);
+        }
+
+        while (_consumers.size() > consumers)
+        {
+            PooledConsumer consumer = _consumers.remove(_consumers.size() - 1);
+            consumer.retire();
+            _retired.add(consumer);
+        }
+
+        closeRetired();
+    }
+
+    /**
+     * Stop every consumer from receiving new messages. Messages already being processed can still be acknowledged,
+     * prefetched ones go back to the queue.
+     */
+    public synchronized void cancel()
+    {
+        for (PooledConsumer consumer : _consumers)
+        {
+            consumer.cancel();
+        }
+    }
+
+    private synchronized void closeIdleRetired()
+    {
+        closeRetired();
+    }
+
+    private void closeRetired()
+    {
+        for (int i = _retired.size() - 1; i >= 0; i--)
+        {
+            if (_retired.get(i).closeIfIdle())
+            {
+                _retired.remove(i);
+            }
+        }
+    }
+
+    private final class PooledConsumer extends DefaultConsumer
+    {
+        private String tag;
+        private boolean retired = false;
+        private int busy = 0;
+
+        private PooledConsumer(Channel channel)
+        {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+            byte[] body) throws IOException
+        {
+            synchronized (this)
+            {
+                // a prefetched message of a consumer being removed goes back to the queue
+                if (retired)
+                {
+                    getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+                    return;
+                }
+                busy++;
+            }
+
+            try
+            {
+                RabbitWorker.handleDelivery(getChannel(), envelope, properties, body);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    busy--;
+
+                    // a removed consumer gives its channel back as soon as its last message is done (not from this
+                    // delivery thread, which belongs to the channel)
+                    if (retired && busy == 0)
+                    {
+                        ExecutorUtil.newThreadFactory("rabbit-consumer-close").newThread(
+                            ConsumerPool.this::closeIdleRetired).start();
+                    }
+                }
+            }
+        }
+
+        private synchronized void retire()
+        {
+            retired = true;
+            cancel();
+        }
+
+        private void cancel()
+        {
+            try
+            {
+                getChannel().basicCancel(tag);
+            }
+            catch (Exception e)
+            {
+                Utils.log("[MQ] Could not cancel consumer of [" + _queue + "]: " + e.getMessage());
+            }
+        }
+
+        private synchronized boolean closeIfIdle()
+        {
+            if (busy > 0)
+            {
+                return false;
+            }
+
+            try
+            {
+                if (getChannel().isOpen())
+                {
+                    getChannel().close();
+                }
+            }
+            catch (Exception e)
+            {
+                Utils.log("[MQ] Could not close consumer channel of [" + _queue + "]: " + e.getMessage());
+            }
+            return true;
+        }
+    }
+}
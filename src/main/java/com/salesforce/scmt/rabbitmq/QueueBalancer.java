@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.rabbitmq;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.salesforce.scmt.utils.Utils;
+
+/**
+ * Moves a worker's consumers to the queues with the deepest backlog. Every queue keeps at least one consumer, the rest
+ * of the budget is shared in proportion to the number of ready messages in each queue. With empty queues the pools go
+ * back to their configured sizes.
+ */
+public final class QueueBalancer
+{
+    private final Connection _connection;
+    private final List<ConsumerPool> _pools;
+    private final int _maxConsumers;
+    private final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rabbit-queue-balancer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Channel _channel;
+
+    public QueueBalancer(Connection connection, List<ConsumerPool> pools, int maxConsumers)
+    {
+        _connection = connection;
+        _pools = pools;
+        _maxConsumers = maxConsumers;
+    }
+
+    /**
+     * Rebalance every given number of seconds.
+     */
+    public void start(int seconds)
+    {
+        _scheduler.scheduleWithFixedDelay(this::rebalance, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop rebalancing.
+     */
+    public void stop()
+    {
+        _scheduler.shutdownNow();
+    }
+
+    private void rebalance()
+    {
+        // never start consumers on a stopping worker
+        if (RabbitWorker.isShuttingDown())
+        {
+            return;
+        }
+
+        try
+        {
+            // get the backlog of every queue
+            long[] depths = new long[_pools.size()];
+            long total = 0;
+            for (int i = 0; i < _pools.size(); i++)
+            {
+                depths[i] = getChannel().queueDeclarePassive(_pools.get(i).getQueue()).getMessageCount();
+                total += depths[i];
+            }
+
+            int[] targets = getTargets(depths, total);
+
+            StringBuilder msg = new StringBuilder("[MQ] Consumers:");
+            for (int i = 0; i < _pools.size(); i++)
+            {
+                ConsumerPool pool = _pools.get(i);
+                if (pool.size() != targets[i])
+                {
+                    pool.resize(targets[i]);
+                }
+                msg.append(" [").append(pool.getQueue()).append(": ").append(targets[i]).append(" / ")
+                    .append(depths[i]).append("]");
+            }
+            Utils.log(msg.toString());
+        }
+        catch (Exception e)
+        {
+            // try again on the next run
+            Utils.log("[MQ] Could not rebalance consumers: " + e.getMessage());
+        }
+    }
+
+    private int[] getTargets(long[] depths, long total)
+    {
+        int[] targets = new int[depths.length];
+
+        // nothing queued, go back to the configured sizes
+        if (total == 0)
+        {
+            for (int i = 0; i < targets.length; i++)
+            {
+                targets[i] = RabbitConfiguration.getConsumerCount(_pools.get(i).getQueue());
+            }
+            return targets;
+        }
+
+        // one consumer per queue, share the rest by backlog
+        int spare = _maxConsumers - targets.length;
+        int assigned = 0;
+        int deepest = 0;
+        for (int i = 0; i < targets.length; i++)
+        {
+            int share = (int) (spare * depths[i] / total);
+            targets[i] = 1 + share;
+            assigned += share;
+            if (depths[i] > depths[deepest])
+            {
+                deepest = i;
+            }
+        }
+
+        // the rounding leftovers go to the deepest queue
+        targets[deepest] += Math.max(0, spare - assigned);
+        return targets;
+    }
+
+    private Channel getChannel() throws Exception
+    {
+        // a failed passive declare closes the channel
+        if (_channel == null || !_channel.isOpen())
+        {
+            _channel = _connection.createChannel();
+        }
+        return _channel;
+    }
+}
@@ -15,8 +15,13 @@
 
 package com.salesforce.scmt.rabbitmq;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.salesforce.scmt.utils.Utils;
 
@@ -73,6 +78,71 @@ public final class RabbitConfiguration
      */
     public final static String QUEUE_DESK_EMAIL = "desk_email";
 
+    /**
+     * Every work queue, all of them are declared (and bound to both exchanges) by every worker so any process can
+     * consume any queue.
+     */
+    public final static String[] QUEUES = { QUEUE_DESK_DATA_MIGRATION, QUEUE_DESK_FEED_MIGRATION,
+        QUEUE_DESK_BIG_COMPANY_MIGRATION, QUEUE_DESK_ATTACHMENT, QUEUE_DESK_ATTACHMENT_BACKGROUND, QUEUE_DESK_EMAIL };
+
+    /**
+     * Environment variable with the comma separated queues a worker consumes, overriding the default queues of its
+     * exchange (e.g. 'desk_data_migration,desk_feed_migration').
+     */
+    private final static String MQ_QUEUES = "MQ_QUEUES";
+
+    /**
+     * Environment variable with the number of consumers a worker may run across all of its queues, they are moved to
+     * the queues with the deepest backlog. Defaults to the sum of the 'MQ_CONSUMERS' counts.
+     */
+    private final static String MQ_MAX_CONSUMERS = "MQ_MAX_CONSUMERS";
+
+    /**
+     * Environment variable with the number of seconds between two rebalances of the consumers, 0 turns it off.
+     */
+    private final static String MQ_REBALANCE_SECONDS = "MQ_REBALANCE_SECONDS";
+
+    /**
+     * The exchange the retry queues dead-letter into. Every work queue is bound to it with its name as routing key, so
+     * a parked message returns to the queue it was published to.
+     */
+    public final static String EXCHANGE_REQUEUE = "scmt.requeue";
+
+    /**
+     * Prefix of the retry exchanges and queues, one per delay tier (e.g. 'scmt.retry.30s'). A message published to a
+     * tier waits there for the tier's delay and then goes back to its work queue.
+     */
+    public final static String RETRY_PREFIX = "scmt.retry.";
+
+    /**
+     * The delays (in seconds) of the retry tiers.
+     */
+    public final static int[] RETRY_DELAYS_SECONDS = { 5, 30, 60, 120, 600 };
+
+    /**
+     * The exchange & queue for messages that kept failing, kept for inspection (the routing key is the original queue
+     * and the 'x-scmt-error' header holds the last error).
+     */
+    public final static String EXCHANGE_DEAD = "scmt.dead";
+    public final static String QUEUE_DEAD = "scmt.dead";
+
+    /**
+     * Environment variable with the number of times a failing message is processed before it is dead-lettered.
+     */
+    private final static String MQ_MAX_ATTEMPTS = "MQ_MAX_ATTEMPTS";
+
+    /**
+     * Environment variable with the number of consumers per queue, e.g.
+     * 'desk_attachment_migration_background:4,desk_data_migration:2'. Queues that are not listed get one consumer.
+     */
+    private final static String MQ_CONSUMERS = "MQ_CONSUMERS";
+
+    /**
+     * Environment variable with the prefetch count of each consumer per queue, same format as 'MQ_CONSUMERS'. Queues
+     * that are not listed get a prefetch of one.
+     */
+    private final static String MQ_PREFETCH = "MQ_PREFETCH";
+
     /**
      * Local static instance
      */
@@ -83,6 +153,211 @@ public final class RabbitConfiguration
      */
     private RabbitConfiguration() {}
 
+    /**
+     * Returns the number of consumers (each with its own channel) to start for a queue.
+     * 
+     * @param queue
+     *            The queue name.
+     * @return The configured number of consumers, or 1.
+     */
+    public static int getConsumerCount(String queue)
+    {
+        return getQueueSetting(MQ_CONSUMERS, queue, 1);
+    }
+
+    /**
+     * Returns the prefetch count (unacknowledged messages per consumer) for a queue.
+     * 
+     * @param queue
+     *            The queue name.
+     * @return The configured prefetch count, or 1.
+     */
+    public static int getPrefetchCount(String queue)
+    {
+        return getQueueSetting(MQ_PREFETCH, queue, 1);
+    }
+
+    /**
+     * Returns the queues a worker started for the given exchange consumes.
+     * 
+     * @param exchange
+     *            The exchange name passed to the worker.
+     * @return The queues from 'MQ_QUEUES', or the default queues of the exchange, or null for an unknown exchange.
+     */
+    public static String[] getQueues(String exchange)
+    {
+        String env = System.getenv(MQ_QUEUES);
+        if (env != null && !env.trim().isEmpty())
+        {
+            String[] queues = env.split(",");
+            for (int i = 0; i < queues.length; i++)
+            {
+                queues[i] = queues[i].trim();
+            }
+            return queues;
+        }
+
+        if (EXCHANGE_TRACTOR.equalsIgnoreCase(exchange))
+        {
+            return new String[] { QUEUE_DESK_EMAIL, QUEUE_DESK_DATA_MIGRATION, QUEUE_DESK_ATTACHMENT };
+        }
+        else if (EXCHANGE_FORMULA1.equalsIgnoreCase(exchange))
+        {
+            return new String[] { QUEUE_DESK_FEED_MIGRATION, QUEUE_DESK_EMAIL, // QUEUE_DESK_FEED_CONVERSION,
+                QUEUE_DESK_BIG_COMPANY_MIGRATION, QUEUE_DESK_ATTACHMENT_BACKGROUND };
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of consumers a worker may run across the given queues.
+     */
+    public static int getMaxConsumers(String[] queues)
+    {
+        if (System.getenv(MQ_MAX_CONSUMERS) != null)
+        {
+            return Math.max(queues.length, Integer.parseInt(System.getenv(MQ_MAX_CONSUMERS)));
+        }
+
+        int consumers = 0;
+        for (String queue : queues)
+        {
+            consumers += getConsumerCount(queue);
+        }
+        return consumers;
+    }
+
+    /**
+     * Returns the number of seconds between two rebalances of the consumers (0 when turned off).
+     */
+    public static int getRebalanceSeconds()
+    {
+        return (System.getenv(MQ_REBALANCE_SECONDS) == null ? 30 : Integer.parseInt(System.getenv(MQ_REBALANCE_SECONDS)));
+    }
+
+    /**
+     * Returns the number of times a failing message is processed before it is dead-lettered.
+     */
+    public static int getMaxAttempts()
+    {
+        return (System.getenv(MQ_MAX_ATTEMPTS) == null ? 3 : Integer.parseInt(System.getenv(MQ_MAX_ATTEMPTS)));
+    }
+
+    /**
+     * Returns the retry exchange of the shortest tier that waits at least the given time (or the longest tier).
+     * 
+     * @param delayMillis
+     *            The minimum time the message should wait.
+     * @return The exchange name.
+     */
+    public static String getRetryExchange(long delayMillis)
+    {
+        for (int seconds : RETRY_DELAYS_SECONDS)
+        {
+            if (seconds * 1000L >= delayMillis)
+            {
+                return RETRY_PREFIX + seconds + "s";
+            }
+        }
+        return RETRY_PREFIX + RETRY_DELAYS_SECONDS[RETRY_DELAYS_SECONDS.length - 1] + "s";
+    }
+
+    private static int getQueueSetting(String envName, String queue, int defaultValue)
+    {
+        String env = System.getenv(envName);
+        if (env != null)
+        {
+            // 'queue:value' pairs separated by commas
+            for (String pair : env.split(","))
+            {
+                String[] parts = pair.trim().split(":");
+                if (parts.length == 2 && parts[0].trim().equalsIgnoreCase(queue))
+                {
+                    return Math.max(1, Integer.parseInt(parts[1].trim()));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Declare both exchanges and every work queue as durable, and bind each queue to both exchanges with its name as
+     * routing key, so a message reaches its queue whichever exchange it was published to. Also declares the retry tiers and the dead-letter queue. An exchange or queue created with other settings by an
+     * older release (e.g. non-durable) can't be redeclared (the broker closes the channel with PRECONDITION_FAILED);
+     * it is logged and used as is until it is deleted.
+     * 
+     * @param connection
+     *            The connection to declare the topology on.
+     */
+    public static void declareTopology(Connection connection) throws IOException
+    {
+        // a failed declaration closes its channel, so every declaration gets a new one
+        for (String exchange : new String[] { EXCHANGE_TRACTOR, EXCHANGE_FORMULA1, EXCHANGE_REQUEUE })
+        {
+            declare(connection, "exchange [" + exchange + "]", ch -> ch.exchangeDeclare(exchange, EXCHANGE_TYPE, true));
+        }
+
+        for (String queue : QUEUES)
+        {
+            declare(connection, "queue [" + queue + "]", ch -> ch.queueDeclare(queue, true, false, false, null));
+
+            // bind the queue to the exchanges with a routing key (same as queue name)
+            declare(connection, "binding [" + queue + "]", ch -> ch.queueBind(queue, EXCHANGE_TRACTOR, queue));
+            declare(connection, "binding [" + queue + "]", ch -> ch.queueBind(queue, EXCHANGE_FORMULA1, queue));
+
+            // and to the exchange parked messages come back through
+            declare(connection, "binding [" + queue + "]", ch -> ch.queueBind(queue, EXCHANGE_REQUEUE, queue));
+        }
+
+        // the retry tiers: messages expire after the tier's delay and dead-letter (keeping their routing key) into the
+        // requeue exchange
+        for (int seconds : RETRY_DELAYS_SECONDS)
+        {
+            final String retry = RETRY_PREFIX + seconds + "s";
+            final Map<String, Object> args = new HashMap<>();
+            args.put("x-message-ttl", seconds * 1000);
+            args.put("x-dead-letter-exchange", EXCHANGE_REQUEUE);
+
+            declare(connection, "exchange [" + retry + "]", ch -> ch.exchangeDeclare(retry, "fanout", true));
+            declare(connection, "queue [" + retry + "]", ch -> ch.queueDeclare(retry, true, false, false, args));
+            declare(connection, "binding [" + retry + "]", ch -> ch.queueBind(retry, retry, ""));
+        }
+
+        // the messages that kept failing
+        declare(connection, "exchange [" + EXCHANGE_DEAD + "]", ch -> ch.exchangeDeclare(EXCHANGE_DEAD, "fanout", true));
+        declare(connection, "queue [" + QUEUE_DEAD + "]", ch -> ch.queueDeclare(QUEUE_DEAD, true, false, false, null));
+        declare(connection, "binding [" + QUEUE_DEAD + "]", ch -> ch.queueBind(QUEUE_DEAD, EXCHANGE_DEAD, ""));
+    }
+
+    private static void declare(Connection connection, String what, Declaration declaration) throws IOException
+    {
+        Channel channel = connection.createChannel();
+        try
+        {
+            declaration.declare(channel);
+        }
+        catch (IOException e)
+        {
+            Utils.log("[MQ] Could not declare " + what + ", it probably exists with other settings (e.g. non-durable) "
+                + "and must be deleted once: " + (e.getCause() == null ? e.getMessage() : e.getCause().getMessage()));
+        }
+        finally
+        {
+            if (channel.isOpen())
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A single exchange, queue or binding declaration.
+     */
+    private interface Declaration
+    {
+        void declare(Channel channel) throws IOException;
+    }
+
     /**
      * Builds (if necessary) and returns a ConnectionFactory instance.
      * 
@@ -18,16 +18,67 @@ package com.salesforce.scmt.rabbitmq;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.Consumer;
-import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.salesforce.scmt.model.MigrationFailedException;
+import com.salesforce.scmt.service.MigrationStatusService;
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.RabbitUtil;
 import com.salesforce.scmt.utils.Utils;
 import com.salesforce.scmt.worker.DeskWorker;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import static com.salesforce.scmt.rabbitmq.RabbitConfiguration.*;
+import static java.lang.System.getenv;
 
 public final class RabbitWorker
 {
+    /**
+     * The exchange (or process type) this worker was started for.
+     */
+    private static String _exchange;
+
+    /**
+     * Environment variable with the number of seconds a stopping worker waits for running messages (Heroku kills the
+     * dyno 30 seconds after SIGTERM).
+     */
+    private static final String MQ_SHUTDOWN_SECONDS = "MQ_SHUTDOWN_SECONDS";
+    private static final int DEFAULT_SHUTDOWN_SECONDS = 25;
+
+    /**
+     * Released when the worker starts shutting down.
+     */
+    private static final CountDownLatch _shutdown = new CountDownLatch(1);
+
+    /**
+     * Number of messages being processed.
+     */
+    private static final AtomicInteger _inFlight = new AtomicInteger();
+
+    /**
+     * Set when the message being processed must be redelivered instead of acknowledged.
+     */
+    private static final ThreadLocal<Boolean> _requeue = new ThreadLocal<>();
+
+    /**
+     * Headers with the number of times a message failed, and the last error.
+     */
+    private static final String HEADER_ATTEMPTS = "x-scmt-attempts";
+    private static final String HEADER_ERROR = "x-scmt-error";
+
+    /**
+     * The status of a throttled or server error response in an error message, e.g. "Error (503): ..." or
+     * "... [429]: ...".
+     */
+    private static final Pattern TRANSIENT_STATUS = Pattern.compile("[(\\[](429|5\\d\\d)[)\\]]:");
+
     /**
      * Private constructor for utility class.
      */
@@ -35,112 +86,289 @@ public final class RabbitWorker
 
     public static void main(String[] argv) throws Exception
     {
-        // declare the queue array and exchange string
-        String[] queues = null;
-        String exchange = null;
+        // get the queues this worker consumes
+        final String[] queues = getQueues(argv[0]);
         
-        // check which exchange we are initializing
-        if (EXCHANGE_TRACTOR.equalsIgnoreCase(argv[0]))
-        {
-            exchange = EXCHANGE_TRACTOR;
-            queues = new String[] { QUEUE_DESK_EMAIL, QUEUE_DESK_DATA_MIGRATION, QUEUE_DESK_ATTACHMENT };
-        }
-        else if (EXCHANGE_FORMULA1.equalsIgnoreCase(argv[0]))
-        {
-            exchange = EXCHANGE_FORMULA1;
-            queues = new String[] { QUEUE_DESK_FEED_MIGRATION, QUEUE_DESK_EMAIL, // QUEUE_DESK_FEED_CONVERSION,
-                QUEUE_DESK_BIG_COMPANY_MIGRATION, QUEUE_DESK_ATTACHMENT_BACKGROUND };
-        }
-        
-        // ensure I found an exchange and initlized variables
-        if (exchange == null || queues == null || queues.length <= 0)
+        // ensure I found the queues
+        if (queues == null || queues.length <= 0)
         {
             Utils.log("[MQ] The passed exchange (" + argv[0] + ") does not exist!");
             return;
         }
+
+        _exchange = argv[0];
+
+        final int maxConsumers = getMaxConsumers(queues);
         
-        // create connection
-        final Connection connection = connectionFactory().newConnection();
-        
-        // create channel
-        final Channel channel = connection.createChannel();
-        
-        // create the exchange
-        channel.exchangeDeclare(exchange, EXCHANGE_TYPE);
-        
-        //allow only one message to be added to queue at a time
-        channel.basicQos(1);
+        // create connection, every consumer gets a thread (a virtual one if enabled) to run its deliveries on; removed
+        // consumers keep theirs until their message is done, so the pool grows as needed and idle threads go away
+        final Connection connection = connectionFactory().newConnection(
+            Executors.newCachedThreadPool(ExecutorUtil.newThreadFactory("rabbit-consumer")));
         
-        // loop through the queues
+        // create the (durable) exchanges & queues
+        declareTopology(connection);
+
+        // start the consumers of each queue, each on its own channel
+        List<ConsumerPool> pools = new ArrayList<>();
         for (String queue : queues)
         {
-            // create the queue
-            channel.queueDeclare(queue, false, false, false, null);
-            
-            // bind the queue to the exchange with a routing key (same as queue name)
-            channel.queueBind(queue, exchange, queue);
-            Utils.log("[MQ] Waiting for messages on [" + queue + "] Queue.");
+            ConsumerPool pool = new ConsumerPool(connection, queue, getPrefetchCount(queue));
+            pool.start(getConsumerCount(queue));
+            pools.add(pool);
         }
-        
-        final Consumer consumer = new DefaultConsumer(channel)
+
+        // move the consumers to the deepest queues
+        final QueueBalancer balancer = new QueueBalancer(connection, pools, maxConsumers);
+        if (getRebalanceSeconds() > 0 && pools.size() > 1)
+        {
+            balancer.start(getRebalanceSeconds());
+        }
+
+        // finish (or hand over) the running messages when the dyno is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            balancer.stop();
+            shutdown(pools);
+        }, "rabbit-worker-shutdown"));
+    }
+
+    /**
+     * Returns true once the worker has been asked to stop. Long running migrations check this between Desk.com
+     * requests, flush what they have and re-queue the rest.
+     */
+    public static boolean isShuttingDown()
+    {
+        return _shutdown.getCount() == 0;
+    }
+
+    /**
+     * Sleep for the given time, returning early if the worker starts shutting down.
+     */
+    public static void pause(long millis) throws InterruptedException
+    {
+        _shutdown.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a message could neither be finished nor handed over (e.g. a handler stopped by a shutdown that could
+     * not publish a continuation); the message is returned to its queue instead of being acknowledged.
+     */
+    public static void requeueDelivery()
+    {
+        _requeue.set(Boolean.TRUE);
+    }
+
+    private static void shutdown(List<ConsumerPool> pools)
+    {
+        Utils.log("[MQ] Shutting down, waiting for [" + _inFlight.get() + "] running message(s).");
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getenv(MQ_SHUTDOWN_SECONDS) == null
+            ? DEFAULT_SHUTDOWN_SECONDS : Integer.parseInt(getenv(MQ_SHUTDOWN_SECONDS)));
+
+        // tell the running handlers to wrap up and stop taking new messages
+        _shutdown.countDown();
+        for (ConsumerPool pool : pools)
+        {
+            pool.cancel();
+        }
+
+        try
+        {
+            while (_inFlight.get() > 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(100);
+            }
+
+            if (_inFlight.get() > 0)
+            {
+                Utils.log("[MQ] [" + _inFlight.get() + "] message(s) did not finish, they will be redelivered.");
+            }
+
+            // write the migration status and make sure the continuations reached the broker
+            MigrationStatusService.flushAll();
+            RabbitUtil.awaitConfirms(Math.max(1000, deadline - System.currentTimeMillis()));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Process a message and acknowledge it. Called by the consumers of every queue, possibly at the same time.
+     */
+    static void handleDelivery(Channel channel, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+        throws IOException
+    {
+        // a prefetched message arriving after the shutdown started goes straight back
+        if (isShuttingDown())
+        {
+            channel.basicNack(envelope.getDeliveryTag(), false, true);
+            return;
+        }
+
+        _inFlight.incrementAndGet();
+        try
+        {
+            dispatch(envelope, body);
+        }
+        catch (Exception e)
+        {
+            Utils.log("[MQ] Message failed: " + e.getMessage());
+            try
+            {
+                retryOrDeadLetter(envelope, properties, body, e);
+            }
+            catch (IOException pe)
+            {
+                // could not park it, let the broker deliver it again
+                Utils.logException(pe);
+                requeueDelivery();
+            }
+        }
+        finally
         {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
-                byte[] body) throws IOException
+            try
             {
-                try
+                if (Boolean.TRUE.equals(_requeue.get()))
                 {
-                    String message = new String(body, "UTF-8");
-                    Utils.log("[MQ]   Routing Key:  [" + envelope.getRoutingKey() + "]\n" +
-                        "\t Exchange: [" + envelope.getExchange() + "]\n" +
-                        "\t Message:  [" + message + "]");
-                    
-                    if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_DATA_MIGRATION))
-                    {
-                        DeskWorker.migrateData(message);
-                    }
-                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_FEED_MIGRATION))
-                    {
-                        DeskWorker.migrateCaseFeedData(message);
-                    }
-//                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_FEED_CONVERSION))
-//                    {
-//                        DeskWorker.convertCaseFeedData(message);
-//                    }
-                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_BIG_COMPANY_MIGRATION))
-                    {
-                        DeskWorker.migrateBigCompanyData(message);
-                    }
-                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_ATTACHMENT))
-                    {
-                        DeskWorker.queryDeskMessageAttachments(message);
-                    }
-                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_ATTACHMENT_BACKGROUND))
-                    {
-                        DeskWorker.migrateAttachments(message);
-                    }
-                    else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_EMAIL))
-                    {
-                        DeskWorker.sendEmail(message);
-                    }
-                    else
-                    {
-                        Utils.log("[MQ] Unknown routing key: " + envelope.getRoutingKey());
-                    }
+                    _requeue.remove();
+                    Utils.log("[MQ] Returning unfinished message to [" + envelope.getRoutingKey() + "].");
+                    channel.basicNack(envelope.getDeliveryTag(), false, true);
                 }
-                finally
+                else
                 {
-                    Utils.log("[MQ] Completed work for [" + argv[0] + "].");
+                    Utils.log("[MQ] Completed work for [" + _exchange + "].");
                     channel.basicAck(envelope.getDeliveryTag(), false);
                 }
             }
-        };
+            finally
+            {
+                _inFlight.decrementAndGet();
+            }
+        }
+    }
 
-        // loop through the queues
-        for (String queue : queues)
+    private static void dispatch(Envelope envelope, byte[] body) throws Exception
+    {
+        // the id-heavy messages are binary envelopes, everything else (and older messages) is JSON
+        if (WorkEnvelope.isEnvelope(body))
+        {
+            handleEnvelope(envelope, WorkEnvelope.decode(body));
+            return;
+        }
+
+        String message = new String(body, "UTF-8");
+        Utils.log("[MQ]   Routing Key:  [" + envelope.getRoutingKey() + "]\n" +
+            "\t Exchange: [" + envelope.getExchange() + "]\n" +
+            "\t Message:  [" + message + "]");
+        
+        if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_DATA_MIGRATION))
+        {
+            DeskWorker.migrateData(message);
+        }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_FEED_MIGRATION))
+        {
+            DeskWorker.migrateCaseFeedData(message);
+        }
+//            else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_FEED_CONVERSION))
+//            {
+//                DeskWorker.convertCaseFeedData(message);
+//            }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_BIG_COMPANY_MIGRATION))
+        {
+            DeskWorker.migrateBigCompanyData(message);
+        }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_ATTACHMENT))
+        {
+            DeskWorker.queryDeskMessageAttachments(message);
+        }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_ATTACHMENT_BACKGROUND))
+        {
+            DeskWorker.migrateAttachments(message);
+        }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_EMAIL))
+        {
+            DeskWorker.sendEmail(message);
+        }
+        else
+        {
+            Utils.log("[MQ] Unknown routing key: " + envelope.getRoutingKey());
+        }
+    }
+
+    private static void handleEnvelope(Envelope envelope, WorkEnvelope work) throws Exception
+    {
+        Utils.log("[MQ]   Routing Key:  [" + envelope.getRoutingKey() + "]\n" +
+            "\t Exchange: [" + envelope.getExchange() + "]\n" +
+            "\t Message:  [" + work + "]");
+
+        if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_FEED_MIGRATION))
+        {
+            DeskWorker.migrateCaseFeedData(work);
+        }
+        else if (envelope.getRoutingKey().equalsIgnoreCase(QUEUE_DESK_ATTACHMENT_BACKGROUND))
+        {
+            DeskWorker.migrateAttachments(work);
+        }
+        else
+        {
+            Utils.log("[MQ] Unexpected work envelope for routing key: " + envelope.getRoutingKey());
+        }
+    }
+
+    /**
+     * Park a failed message in a retry tier (a longer one on every attempt), or move it to the dead-letter queue once
+     * it has failed 'MQ_MAX_ATTEMPTS' times. Only transient errors are retried, anything else goes to the dead-letter
+     * queue straight away.
+     */
+    private static void retryOrDeadLetter(Envelope envelope, AMQP.BasicProperties properties, byte[] body,
+        Exception e) throws IOException
+    {
+        Map<String, Object> headers = new HashMap<>();
+        if (properties != null && properties.getHeaders() != null)
         {
-            // start consumers
-            channel.basicConsume(queue, false, consumer);
+            headers.putAll(properties.getHeaders());
+        }
+
+        int attempts = (headers.get(HEADER_ATTEMPTS) == null ? 0
+            : Integer.parseInt(headers.get(HEADER_ATTEMPTS).toString())) + 1;
+        String error = String.valueOf(e.getMessage());
+        headers.put(HEADER_ATTEMPTS, attempts);
+        headers.put(HEADER_ERROR, (error.length() > 1000 ? error.substring(0, 1000) : error));
+
+        if (attempts < getMaxAttempts() && isTransient(e))
+        {
+            int delaySeconds = RETRY_DELAYS_SECONDS[Math.min(attempts, RETRY_DELAYS_SECONDS.length) - 1];
+            Utils.log("[MQ] Attempt [" + attempts + "] failed, retrying [" + envelope.getRoutingKey() + "] message in ["
+                + delaySeconds + "] seconds.");
+            RabbitUtil.publishDelayed(envelope.getRoutingKey(), headers, body, delaySeconds * 1000L);
+        }
+        else
+        {
+            Utils.log("[MQ] Attempt [" + attempts + "] failed, moving [" + envelope.getRoutingKey()
+                + "] message to [" + QUEUE_DEAD + "].");
+            RabbitUtil.publishDead(envelope.getRoutingKey(), headers, body);
+        }
+    }
+
+    /**
+     * Returns true if the error is worth retrying: an I/O error (timeouts, dropped connections) or a throttled or
+     * server error response. A migration that already recorded its failure, or a message that can't be decoded, is
+     * never retried.
+     */
+    static boolean isTransient(Throwable e)
+    {
+        for (Throwable t = e; t != null; t = t.getCause())
+        {
+            if (t instanceof MigrationFailedException || t instanceof MalformedEnvelopeException)
+            {
+                return false;
+            }
+
+            if (t instanceof IOException || TRANSIENT_STATUS.matcher(String.valueOf(t.getMessage())).find())
+            {
+                return true;
+            }
         }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.rabbitmq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary body of the id-heavy work messages (case feed and background attachment migration). Compared to the Gson
+ * JSON map it replaces, the id lists are written as delta encoded varints instead of text (and come back as integers
+ * instead of doubles), and the whole payload is gzipped when that makes it smaller.
+ * <p>
+ * Layout: a magic byte (never '{', so JSON bodies still in the queues are recognized), a version byte, a flags byte
+ * and the (possibly gzipped) payload. The payload holds the settings (key, optional value) followed by the id lists
+ * (key, count, zigzag varint deltas).
+ */
+public final class WorkEnvelope
+{
+    /**
+     * First byte of every envelope.
+     */
+    static final byte MAGIC = (byte) 0xD5;
+
+    /**
+     * Current envelope version.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * Flag set when the payload is gzipped.
+     */
+    static final byte FLAG_GZIP = 0x01;
+
+    /**
+     * Payloads smaller than this are never gzipped.
+     */
+    private static final int GZIP_THRESHOLD = 512;
+
+    private final Map<String, String> _settings = new LinkedHashMap<>();
+    private final Map<String, List<Integer>> _ids = new LinkedHashMap<>();
+
+    private WorkEnvelope() {}
+
+    /**
+     * Build an envelope from a migration config map. Lists of numbers become id lists, every other value is stored as
+     * a string (that is how the workers read the config anyway).
+     *
+     * @param config
+     *            The config, e.g. the Desk.com client settings.
+     * @return The envelope.
+     */
+    public static WorkEnvelope fromConfig(Map<String, ?> config)
+    {
+        WorkEnvelope envelope = new WorkEnvelope();
+
+        for (Map.Entry<String, ?> e : config.entrySet())
+        {
+            if (e.getValue() instanceof List)
+            {
+                List<Integer> ids = new ArrayList<>();
+                for (Object o : (List<?>) e.getValue())
+                {
+                    if (!(o instanceof Number))
+                    {
+                        throw new IllegalArgumentException("Only lists of numbers are supported: [" + e.getKey() + "]");
+                    }
+                    ids.add(((Number) o).intValue());
+                }
+                envelope._ids.put(e.getKey(), ids);
+            }
+            else
+            {
+                envelope._settings.put(e.getKey(), (e.getValue() == null ? null : e.getValue().toString()));
+            }
+        }
+
+        return envelope;
+    }
+
+    /**
+     * Returns the settings as a config map (values are strings or null).
+     */
+    public Map<String, Object> getSettings()
+    {
+        return new LinkedHashMap<String, Object>(_settings);
+    }
+
+    /**
+     * Returns the id list with the given key, or an empty list.
+     */
+    public List<Integer> getIds(String key)
+    {
+        List<Integer> ids = _ids.get(key);
+        return (ids == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(ids));
+    }
+
+    /**
+     * Returns true if the message body is an envelope (and not JSON).
+     */
+    public static boolean isEnvelope(byte[] body)
+    {
+        return body != null && body.length >= 3 && body[0] == MAGIC;
+    }
+
+    /**
+     * Serialize the envelope.
+     *
+     * @return The message body.
+     */
+    public byte[] encode() throws IOException
+    {
+        byte[] payload = writePayload();
+        byte flags = 0;
+
+        // compress if it is worth it
+        if (payload.length >= GZIP_THRESHOLD)
+        {
+            ByteArrayOutputStream gz = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(gz))
+            {
+                out.write(payload);
+            }
+
+            if (gz.size() < payload.length)
+            {
+                payload = gz.toByteArray();
+                flags |= FLAG_GZIP;
+            }
+        }
+
+        byte[] body = new byte[payload.length + 3];
+        body[0] = MAGIC;
+        body[1] = VERSION;
+        body[2] = flags;
+        System.arraycopy(payload, 0, body, 3, payload.length);
+        return body;
+    }
+
+    /**
+     * Deserialize an envelope.
+     *
+     * @param body
+     *            The message body.
+     * @return The envelope.
+     * @throws MalformedEnvelopeException
+     *             If the body is not a valid envelope.
+     */
+    public static WorkEnvelope decode(byte[] body) throws MalformedEnvelopeException
+    {
+        try
+        {
+            return read(body);
+        }
+        catch (IOException e)
+        {
+            // the body is already in memory, so any read error means the envelope itself is broken
+            throw new MalformedEnvelopeException("Malformed work envelope: " + e, e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        // never log the settings, they hold credentials
+        StringBuilder sb = new StringBuilder("WorkEnvelope[settings: ").append(_settings.size());
+        for (Map.Entry<String, List<Integer>> e : _ids.entrySet())
+        {
+            sb.append(", ").append(e.getKey()).append(": ").append(e.getValue().size());
+        }
+        return sb.append("]").toString();
+    }
+
+    private static WorkEnvelope read(byte[] body) throws IOException
+    {
+        if (!isEnvelope(body))
+        {
+            throw new IOException("Message body is not a work envelope.");
+        }
+        if (body[1] != VERSION)
+        {
+            throw new IOException("Unsupported work envelope version: [" + body[1] + "]");
+        }
+
+        InputStream in = new ByteArrayInputStream(body, 3, body.length - 3);
+        if ((body[2] & FLAG_GZIP) != 0)
+        {
+            in = new GZIPInputStream(in);
+        }
+
+        WorkEnvelope envelope = new WorkEnvelope();
+
+        try (DataInputStream data = new DataInputStream(in))
+        {
+            // settings
+            int count = readVarInt(data);
+            for (int i = 0; i < count; i++)
+            {
+                String key = readString(data);
+                envelope._settings.put(key, (data.readBoolean() ? readString(data) : null));
+            }
+
+            // id lists
+            count = readVarInt(data);
+            for (int i = 0; i < count; i++)
+            {
+                String key = readString(data);
+                int size = readVarInt(data);
+                List<Integer> ids = new ArrayList<>(size);
+                int previous = 0;
+                for (int j = 0; j < size; j++)
+                {
+                    previous += zigzagDecode(readVarInt(data));
+                    ids.add(previous);
+                }
+                envelope._ids.put(key, ids);
+            }
+        }
+
+        return envelope;
+    }
+
+    private byte[] writePayload() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream data = new DataOutputStream(bytes))
+        {
+            writeVarInt(data, _settings.size());
+            for (Map.Entry<String, String> e : _settings.entrySet())
+            {
+                writeString(data, e.getKey());
+                data.writeBoolean(e.getValue() != null);
+                if (e.getValue() != null)
+                {
+                    writeString(data, e.getValue());
+                }
+            }
+
+            writeVarInt(data, _ids.size());
+            for (Map.Entry<String, List<Integer>> e : _ids.entrySet())
+            {
+                writeString(data, e.getKey());
+                writeVarInt(data, e.getValue().size());
+
+                // ids are mostly ascending, so the deltas are small
+                int previous = 0;
+                for (int id : e.getValue())
+                {
+                    writeVarInt(data, zigzagEncode(id - previous));
+                    previous = id;
+                }
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(data, bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException
+    {
+        byte[] bytes = new byte[readVarInt(data)];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarInt(DataOutputStream data, int value) throws IOException
+    {
+        // 7 bits per byte, high bit set when more bytes follow
+        while ((value & ~0x7F) != 0)
+        {
+            data.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream data) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            int b = data.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in work envelope.");
+    }
+
+    static int zigzagEncode(int value)
+    {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int zigzagDecode(int value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
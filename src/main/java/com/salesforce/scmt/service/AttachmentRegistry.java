@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import static java.lang.System.getenv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.salesforce.scmt.utils.IdBitmap;
+import com.salesforce.scmt.utils.JsonUtil;
+import com.salesforce.scmt.utils.SalesforceConstants;
+import com.salesforce.scmt.utils.SalesforceConstants.DeskMessageFields;
+import com.salesforce.scmt.utils.Utils;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * The cases of a Desk.com site whose attachments still need to be migrated. By default every case gets a
+ * Desk_Message__c marker record, which costs an upsert when the case is migrated, a query to find it again and another
+ * upsert once its attachments are done. With DESK_ATTACHMENT_REGISTRY=registry ('local' is still accepted) the cases
+ * are kept as compressed id sets instead, one Desk_Message__c record per batch of cases: a 'New' record for the cases
+ * of a case feed message that have attachments, a 'Converted' one for the cases an attachment job finished.
+ * <p>
+ * The records are only ever added, never updated, so the dynos adding pending cases (formula1) and the one reading
+ * them (tractor) never overwrite each other. The registry is the replay of the records in the order they were written,
+ * read once per instance; {@link #forSite(DeskService)} returns a new instance for every job.
+ */
+public final class AttachmentRegistry
+{
+    public static final String NAME_PREFIX = "Desk-Attachment-Registry-";
+
+    /**
+     * Environment variable selecting where the cases with attachments are tracked, 'registry' for this registry.
+     */
+    private static final String DESK_ATTACHMENT_REGISTRY = "DESK_ATTACHMENT_REGISTRY";
+
+    private static final String KEY_IDS = "ids";
+    private static final String KEY_AT = "at";
+
+    private final SalesforceService _sfService;
+    private final String _site;
+    private final String _prefix;
+
+    // the replayed records, read on first use
+    private IdBitmap _pending;
+    private IdBitmap _done;
+
+    // cases marked done since the last save
+    private IdBitmap _doneUnsaved = new IdBitmap();
+
+    private AttachmentRegistry(SalesforceService sfService, String site)
+    {
+        _sfService = sfService;
+        _site = site;
+        // 'Desk-Attachment-Registry-[site hash]-', the hostname could make the name too long
+        _prefix = NAME_PREFIX + Integer.toHexString(site.toLowerCase().hashCode()) + "-";
+    }
+
+    /**
+     * Returns the registry of the migration's Desk.com site, or null if the cases are tracked with a Desk_Message__c
+     * record per case.
+     */
+    public static AttachmentRegistry forSite(DeskService deskService)
+    {
+        String registry = getenv(DESK_ATTACHMENT_REGISTRY);
+        if (!"registry".equalsIgnoreCase(registry) && !"local".equalsIgnoreCase(registry))
+        {
+            return null;
+        }
+
+        return new AttachmentRegistry(deskService.getSalesforceService(), deskService.getClient().getHostname());
+    }
+
+    /**
+     * Add cases whose attachments need to be migrated (again, if they were done before).
+     */
+    public synchronized void addPending(Collection<Integer> caseIds) throws Exception
+    {
+        IdBitmap ids = new IdBitmap();
+        for (Integer caseId : caseIds)
+        {
+            ids.add(caseId);
+        }
+        write(DeskMessageFields.StatusNew, ids);
+
+        if (_pending != null)
+        {
+            apply(DeskMessageFields.StatusNew, ids);
+        }
+    }
+
+    /**
+     * Returns true if the attachments of the case still need to be migrated.
+     */
+    public synchronized boolean isPending(int caseId) throws Exception
+    {
+        load();
+        return _pending.contains(caseId);
+    }
+
+    /**
+     * Mark the attachments of a case migrated. Call {@link #save()} once a batch of cases is done.
+     */
+    public synchronized void markDone(int caseId) throws Exception
+    {
+        load();
+        _pending.remove(caseId);
+        _done.add(caseId);
+        _doneUnsaved.add(caseId);
+    }
+
+    /**
+     * Returns the cases whose attachments still need to be migrated, in ascending order.
+     */
+    public synchronized List<Integer> getPending() throws Exception
+    {
+        load();
+        List<Integer> caseIds = new ArrayList<>((int) _pending.getCardinality());
+        _pending.forEach(caseIds::add);
+        return caseIds;
+    }
+
+    public synchronized long getPendingCount() throws Exception
+    {
+        load();
+        return _pending.getCardinality();
+    }
+
+    public synchronized long getDoneCount() throws Exception
+    {
+        load();
+        return _done.getCardinality();
+    }
+
+    /**
+     * Write the cases marked done since the last save.
+     */
+    public synchronized void save()
+    {
+        if (_doneUnsaved.getCardinality() == 0)
+        {
+            return;
+        }
+
+        try
+        {
+            write(DeskMessageFields.StatusConverted, _doneUnsaved);
+            _doneUnsaved = new IdBitmap();
+        }
+        catch (Exception e)
+        {
+            // kept for the next save, the cases are migrated again if there is none
+            Utils.log("[DESK] Could not save attachment registry [" + _site + "]: " + e.getMessage());
+        }
+    }
+
+    private void write(String status, IdBitmap ids) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ids.write(bytes);
+
+        Map<String, Object> data = new HashMap<>();
+        data.put(KEY_AT, System.currentTimeMillis());
+        data.put(KEY_IDS, Base64.getEncoder().encodeToString(bytes.toByteArray()));
+
+        DeskMessageStore.write(_sfService, DeskMessageStore.getName(_prefix,
+            UUID.randomUUID().toString().replace("-", "")), status, data);
+    }
+
+    private void load() throws Exception
+    {
+        if (_pending != null)
+        {
+            return;
+        }
+
+        // e.g. SELECT Name, Status__c, Data__c FROM Desk_Message__c WHERE Name LIKE 'Desk-Attachment-Registry-%'
+        String query = String.format("SELECT %s, %s, %s FROM %s WHERE %s LIKE '%s%%'", DeskMessageFields.Name,
+            DeskMessageFields.Status, DeskMessageFields.Data, SalesforceConstants.OBJ_DESK_MESSAGE,
+            DeskMessageFields.Name, _prefix);
+
+        List<Entry> records = new ArrayList<>();
+        try (RecordIterator it = _sfService.scan(SalesforceConstants.OBJ_DESK_MESSAGE, query))
+        {
+            while (it.hasNext())
+            {
+                SObject record = it.next();
+                @SuppressWarnings("unchecked")
+                Map<String, Object> data = (Map<String, Object>) JsonUtil.fromJson(
+                    (String) record.getField(DeskMessageFields.Data), Map.class);
+                records.add(new Entry(((Number) data.get(KEY_AT)).longValue(),
+                    (String) record.getField(DeskMessageFields.Status), (String) data.get(KEY_IDS)));
+            }
+        }
+
+        // replay in the order the records were written, a case added again after it was done is pending again
+        records.sort(Comparator.comparingLong(r -> r.at));
+        _pending = new IdBitmap();
+        _done = new IdBitmap();
+        for (Entry record : records)
+        {
+            apply(record.status, read(record.ids));
+        }
+
+        Utils.log("[DESK] Attachment registry [" + _site + "]: " + _pending.getCardinality() + " cases pending, "
+            + _done.getCardinality() + " done (" + records.size() + " records).");
+    }
+
+    private void apply(String status, IdBitmap ids)
+    {
+        boolean pending = DeskMessageFields.StatusNew.equals(status);
+        ids.forEach(id -> {
+            (pending ? _pending : _done).add(id);
+            (pending ? _done : _pending).remove(id);
+        });
+    }
+
+    private static IdBitmap read(String ids) throws IOException
+    {
+        return IdBitmap.read(new ByteArrayInputStream(Base64.getDecoder().decode(ids)));
+    }
+
+    /**
+     * A registry record: when it was written, its status and the (encoded) case ids.
+     */
+    private static final class Entry
+    {
+        private final long at;
+        private final String status;
+        private final String ids;
+
+        private Entry(long at, String status, String ids)
+        {
+            this.at = at;
+            this.status = status;
+            this.ids = ids;
+        }
+    }
+}
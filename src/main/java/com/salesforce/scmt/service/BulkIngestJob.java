@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import static java.lang.System.getenv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import com.salesforce.scmt.utils.CsvUtil;
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.JsonUtil;
+import com.salesforce.scmt.utils.SalesforceConstants;
+import com.salesforce.scmt.utils.Utils;
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.AsyncExceptionCode;
+import com.sforce.async.CSVReader;
+import com.sforce.async.OperationEnum;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+/**
+ * A Bulk API 2.0 ingest job. Salesforce splits the uploaded data into batches and processes them in parallel itself, a
+ * job isn't limited in batches and we don't have to watch its age. The records added are written to a spool file as
+ * they come and uploaded as one CSV when the job is closed; a job takes a single upload of at most 150 MB, so once the
+ * spool reaches SALESFORCE_BULK_UPLOAD_MB (default 100) it is uploaded and the following records go to a new job.
+ * <p>
+ * The caller only sees the id of the first job. When closed, the results of all the jobs are collected in the
+ * background and the failed records are logged.
+ */
+final class BulkIngestJob
+{
+    private static final String API_VERSION = "41.0";
+
+    /**
+     * Environment variable with the megabytes of records uploaded to a single job.
+     */
+    private static final String SALESFORCE_BULK_UPLOAD_MB = "SALESFORCE_BULK_UPLOAD_MB";
+
+    // how often to check on a job that is still running
+    private static final long POLL_MILLIS = 10000;
+
+    // failed records logged per job, the rest are counted
+    private static final int MAX_LOGGED_FAILURES = 20;
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=UTF-8");
+    private static final MediaType CSV = MediaType.parse("text/csv; charset=UTF-8");
+
+    private static ExecutorService _results;
+
+    private final String _endpoint;
+    private final String _sessionId;
+    private final String _object;
+    private final String _externalIdField;
+    private final OperationEnum _operation;
+    private final long _maxUploadBytes;
+    private final List<String> _jobIds = new ArrayList<>();
+
+    // the records of the current job, and the union of their columns
+    private final Set<String> _header = new LinkedHashSet<>();
+    private File _spool;
+    private Writer _spoolOut;
+    private long _spoolBytes;
+    private int _spoolRecords;
+
+    /**
+     * @param serverUrl
+     *            The partner API URL of the org, e.g. 'https://na30.salesforce.com/services/Soap/u/36.0/00D...'.
+     */
+    BulkIngestJob(String serverUrl, String sessionId, String object, String externalIdField, OperationEnum op)
+    {
+        _endpoint = serverUrl.substring(0, serverUrl.indexOf("Soap/")) + "data/v" + API_VERSION + "/jobs/ingest";
+        _sessionId = sessionId;
+        _object = object;
+        _externalIdField = externalIdField;
+        _operation = op;
+        _maxUploadBytes = (getenv(SALESFORCE_BULK_UPLOAD_MB) == null ? 100
+            : Integer.parseInt(getenv(SALESFORCE_BULK_UPLOAD_MB))) * 1024L * 1024L;
+    }
+
+    /**
+     * Create the first job.
+     *
+     * @return Its id, which identifies this job to the caller.
+     */
+    synchronized String open() throws AsyncApiException
+    {
+        createJob();
+        return _jobIds.get(0);
+    }
+
+    /**
+     * Add records to the job, uploading them to Salesforce once there are enough for a job.
+     */
+    synchronized void add(List<Map<String, Object>> records) throws AsyncApiException
+    {
+        try
+        {
+            if (_spoolOut == null)
+            {
+                _spool = File.createTempFile("bulk-" + _object + "-", ".jsonl");
+                _spoolOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_spool),
+                    StandardCharsets.UTF_8));
+            }
+
+            // the header is only known once all the records are in, so spool the flattened records
+            for (Map<String, Object> record : records)
+            {
+                Map<String, String> row = CsvUtil.flatten(record);
+                _header.addAll(row.keySet());
+                String line = JsonUtil.toJson(row);
+                _spoolOut.write(line);
+                _spoolOut.write('\n');
+                _spoolBytes += line.length() + 1;
+                _spoolRecords++;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new AsyncApiException("Could not spool records for job [" + getId() + "]: " + e.getMessage(),
+                AsyncExceptionCode.ClientInputError);
+        }
+
+        // the JSON spool is bigger than the CSV, so the upload stays under the limit
+        if (_spoolBytes >= _maxUploadBytes)
+        {
+            upload();
+            createJob();
+        }
+    }
+
+    /**
+     * Upload the remaining records and start collecting the results of the jobs.
+     *
+     * @param onResults
+     *            Called with true once every record of the jobs was saved, false if any failed or the results couldn't
+     *            be read (may be null).
+     */
+    synchronized void close(Consumer<Boolean> onResults) throws AsyncApiException
+    {
+        String jobId = _jobIds.get(_jobIds.size() - 1);
+        if (_spoolRecords > 0)
+        {
+            try
+            {
+                upload();
+            }
+            catch (AsyncApiException e)
+            {
+                // don't leave the job open
+                abort();
+                throw e;
+            }
+        }
+        else
+        {
+            // a job without data can't be completed
+            Utils.log("[BULK] Aborting empty job [" + jobId + "].");
+            setState(jobId, "Aborted");
+            _jobIds.remove(jobId);
+        }
+
+        List<String> jobIds = new ArrayList<>(_jobIds);
+        if (!jobIds.isEmpty())
+        {
+            getResultExecutor().execute(() -> {
+                boolean saved = collectResults(jobIds);
+                if (onResults != null)
+                {
+                    onResults.accept(saved);
+                }
+            });
+        }
+        else if (onResults != null)
+        {
+            // nothing was uploaded, so nothing failed
+            onResults.accept(true);
+        }
+    }
+
+    /**
+     * Drop the records not uploaded yet and abort their job. The jobs uploaded before are left to finish and their
+     * results are still collected.
+     */
+    synchronized void abort()
+    {
+        String jobId = _jobIds.get(_jobIds.size() - 1);
+        Utils.log("[BULK] Aborting job [" + jobId + "], dropping [" + _spoolRecords + "] record(s).");
+        discardSpool();
+
+        try
+        {
+            setState(jobId, "Aborted");
+        }
+        catch (AsyncApiException e)
+        {
+            // it expires on its own, don't hide the error the job is aborted for
+            Utils.log("[BULK] Could not abort job [" + jobId + "]: " + e.getMessage());
+        }
+        _jobIds.remove(jobId);
+
+        List<String> jobIds = new ArrayList<>(_jobIds);
+        if (!jobIds.isEmpty())
+        {
+            getResultExecutor().execute(() -> collectResults(jobIds));
+        }
+    }
+
+    private String getId()
+    {
+        return (_jobIds.isEmpty() ? _object : _jobIds.get(0));
+    }
+
+    private void createJob() throws AsyncApiException
+    {
+        Map<String, Object> job = new HashMap<>();
+        job.put("object", _object);
+        job.put("operation", _operation.toString());
+        job.put("contentType", "CSV");
+        job.put("lineEnding", "LF");
+        if (_externalIdField != null)
+        {
+            job.put("externalIdFieldName", _externalIdField);
+        }
+
+        Map<String, Object> created = callJson(new Request.Builder().url(_endpoint)
+            .post(RequestBody.create(JSON, JsonUtil.toJson(job))));
+        _jobIds.add((String) created.get("id"));
+        Utils.log("[BULK] Bulk API 2.0 job created: " + created.get("id"));
+    }
+
+    private void upload() throws AsyncApiException
+    {
+        String jobId = _jobIds.get(_jobIds.size() - 1);
+        File csv = null;
+        try
+        {
+            _spoolOut.close();
+
+            // write the CSV with the columns of all the records
+            csv = File.createTempFile("bulk-" + jobId + "-", ".csv");
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv),
+                StandardCharsets.UTF_8)); BufferedReader in = Files.newBufferedReader(_spool.toPath()))
+            {
+                CsvUtil.writeLine(out, _header);
+                for (String line = in.readLine(); line != null; line = in.readLine())
+                {
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> row = (Map<String, String>) JsonUtil.fromJson(line, Map.class);
+                    CsvUtil.writeRow(out, _header, row);
+                }
+            }
+
+            Utils.log(String.format("[BULK] Uploading [%d] records (%d KB) to job [%s].", _spoolRecords,
+                csv.length() / 1024, jobId));
+            call(new Request.Builder().url(_endpoint + "/" + jobId + "/batches").put(RequestBody.create(CSV, csv)));
+            setState(jobId, "UploadComplete");
+        }
+        catch (IOException e)
+        {
+            throw new AsyncApiException("Could not upload records to job [" + jobId + "]: " + e.getMessage(),
+                AsyncExceptionCode.ClientInputError);
+        }
+        finally
+        {
+            if (csv != null)
+            {
+                csv.delete();
+            }
+            discardSpool();
+        }
+    }
+
+    private void discardSpool()
+    {
+        if (_spoolOut != null)
+        {
+            try
+            {
+                _spoolOut.close();
+            }
+            catch (IOException e)
+            {
+                // deleted anyway
+            }
+            _spool.delete();
+        }
+        _spool = null;
+        _spoolOut = null;
+        _spoolBytes = 0;
+        _spoolRecords = 0;
+        _header.clear();
+    }
+
+    private void setState(String jobId, String state) throws AsyncApiException
+    {
+        Map<String, Object> body = new HashMap<>();
+        body.put("state", state);
+        callJson(new Request.Builder().url(_endpoint + "/" + jobId).patch(RequestBody.create(JSON,
+            JsonUtil.toJson(body))));
+    }
+
+    /**
+     * Wait for the jobs to finish and log their results, returns true if every record of the jobs was saved.
+     */
+    private boolean collectResults(List<String> jobIds)
+    {
+        boolean saved = true;
+        for (String jobId : jobIds)
+        {
+            try
+            {
+                long deadline = System.currentTimeMillis() + SalesforceConstants.JOB_LIFE;
+                Map<String, Object> job = callJson(new Request.Builder().url(_endpoint + "/" + jobId).get());
+                while (!isFinished(job) && System.currentTimeMillis() < deadline)
+                {
+                    Thread.sleep(POLL_MILLIS);
+                    job = callJson(new Request.Builder().url(_endpoint + "/" + jobId).get());
+                }
+
+                long failed = getCount(job, "numberRecordsFailed");
+                Utils.log(String.format("[BULK] Job [%s] %s: [%d] records processed, [%d] failed.%s", jobId,
+                    job.get("state"), getCount(job, "numberRecordsProcessed"), failed,
+                    (job.get("errorMessage") == null ? "" : " " + job.get("errorMessage"))));
+
+                if (failed > 0)
+                {
+                    saved = false;
+                    logFailures(jobId, failed);
+                }
+                else if (!"JobComplete".equals(job.get("state")))
+                {
+                    saved = false;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (Exception e)
+            {
+                Utils.log("[BULK] Could not read the results of job [" + jobId + "]: " + e.getMessage());
+                saved = false;
+            }
+        }
+        return saved;
+    }
+
+    private void logFailures(String jobId, long failed) throws IOException, AsyncApiException
+    {
+        Response response = execute(new Request.Builder().url(_endpoint + "/" + jobId + "/failedResults/").get());
+        try (InputStream in = response.body().byteStream())
+        {
+            // e.g. "sf__Id","sf__Error","DeskId__c",...
+            CSVReader reader = new CSVReader(in);
+            List<String> header = reader.nextRecord();
+            int errorColumn = (header == null ? -1 : header.indexOf("sf__Error"));
+            int idColumn = (header == null || _externalIdField == null ? -1 : header.indexOf(_externalIdField));
+
+            List<String> row;
+            for (int logged = 0; errorColumn >= 0 && logged < MAX_LOGGED_FAILURES
+                && (row = reader.nextRecord()) != null; logged++)
+            {
+                Utils.log("[BULK] Job [" + jobId + "] record " + (idColumn >= 0 ? "[" + row.get(idColumn) + "] " : "")
+                    + "failed: " + row.get(errorColumn));
+            }
+        }
+
+        if (failed > MAX_LOGGED_FAILURES)
+        {
+            Utils.log("[BULK] Job [" + jobId + "]: " + (failed - MAX_LOGGED_FAILURES) + " more failed records.");
+        }
+    }
+
+    private static boolean isFinished(Map<String, Object> job)
+    {
+        Object state = job.get("state");
+        return ("JobComplete".equals(state) || "Failed".equals(state) || "Aborted".equals(state));
+    }
+
+    private static long getCount(Map<String, Object> job, String name)
+    {
+        // JSON numbers are read as doubles
+        return (job.get(name) instanceof Number ? ((Number) job.get(name)).longValue() : 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> callJson(Request.Builder request) throws AsyncApiException
+    {
+        try
+        {
+            return (Map<String, Object>) JsonUtil.fromJson(call(request), Map.class);
+        }
+        catch (IOException e)
+        {
+            throw new AsyncApiException("Bulk API 2.0 request failed: " + e.getMessage(), AsyncExceptionCode.Unknown);
+        }
+    }
+
+    private String call(Request.Builder request) throws IOException, AsyncApiException
+    {
+        return execute(request).body().string();
+    }
+
+    private Response execute(Request.Builder request) throws IOException, AsyncApiException
+    {
+        Response response = SalesforceService.getHttpClient().newCall(request.header("Authorization",
+            "Bearer " + _sessionId).build()).execute();
+        if (!response.isSuccessful())
+        {
+            // e.g. [{"errorCode":"INVALIDJOBSTATE","message":"..."}]
+            String error = response.body().string();
+            throw new AsyncApiException("Bulk API 2.0 request failed [" + response.code() + "]: " + error,
+                (response.code() == 401 ? AsyncExceptionCode.InvalidSessionId : AsyncExceptionCode.Unknown));
+        }
+        return response;
+    }
+
+    private static synchronized ExecutorService getResultExecutor()
+    {
+        if (_results == null)
+        {
+            _results = ExecutorUtil.newBoundedExecutor("bulk-ingest-results", 2);
+        }
+        return _results;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.Utils;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.CSVReader;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Iterates the records of a Bulk API query job. With PK chunking Salesforce splits the job into batches of an Id range
+ * each; every batch is downloaded as soon as it completes, several at a time, and its CSV rows are handed to the
+ * caller while the others are still running. A bounded queue between the downloads and the caller keeps the memory
+ * flat when the caller is the slower side.
+ */
+final class BulkQueryIterator implements RecordIterator
+{
+    // how often to check on the batches of the job
+    private static final long POLL_MILLIS = 2000;
+
+    // records downloaded but not read by the caller yet
+    private static final int QUEUE_SIZE = 10000;
+
+    // marks the end of the records in the queue
+    private static final Object END = new Object();
+
+    private final BulkConnection _bConn;
+    private final String _jobId;
+    private final String _batchId;
+    private final String _sobjectType;
+    private final BlockingQueue<Object> _queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ExecutorService _poller = Executors.newSingleThreadExecutor(
+        ExecutorUtil.newThreadFactory("bulk-query-poll"));
+    private final ExecutorService _downloads;
+    private final AtomicLong _count = new AtomicLong();
+
+    private Object _next;
+    private boolean _done;
+
+    /**
+     * @param bConn
+     *            The connection the job was created with, not used by anyone else.
+     * @param batchId
+     *            The batch holding the query, with PK chunking it is split into the batches that hold the results.
+     * @param threads
+     *            The number of batches downloaded at the same time.
+     */
+    BulkQueryIterator(BulkConnection bConn, String jobId, String batchId, String sobjectType, int threads)
+    {
+        _bConn = bConn;
+        _jobId = jobId;
+        _batchId = batchId;
+        _sobjectType = sobjectType;
+        _downloads = ExecutorUtil.newBoundedExecutor("bulk-query", threads);
+        _poller.execute(this::run);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (_next == null && !_done)
+        {
+            try
+            {
+                _next = _queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while retrieving query results.", e);
+            }
+
+            if (_next == END)
+            {
+                _next = null;
+                _done = true;
+                shutdown();
+                Utils.log(String.format("[BULK] Query job [%s] retrieved [%d] records.", _jobId, _count.get()));
+            }
+            else if (_next instanceof Exception)
+            {
+                Exception e = (Exception) _next;
+                _next = null;
+                _done = true;
+                shutdown();
+                throw new IllegalStateException("Error retrieving query results: " + e.getMessage(), e);
+            }
+        }
+        return (_next != null);
+    }
+
+    @Override
+    public SObject next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        SObject record = (SObject) _next;
+        _next = null;
+        return record;
+    }
+
+    @Override
+    public void close()
+    {
+        _done = true;
+        shutdown();
+        _queue.clear();
+    }
+
+    private void shutdown()
+    {
+        // interrupts downloads blocked on a full queue
+        _poller.shutdownNow();
+        _downloads.shutdownNow();
+    }
+
+    /**
+     * Wait for the batches of the job and download each one once it completed.
+     */
+    private void run()
+    {
+        try
+        {
+            Set<String> started = new HashSet<>();
+            List<Future<?>> downloads = new ArrayList<>();
+            boolean running = true;
+
+            while (running)
+            {
+                running = false;
+                BatchInfo original = null;
+                List<BatchInfo> results = new ArrayList<>();
+                for (BatchInfo batch : _bConn.getBatchInfoList(_jobId).getBatchInfo())
+                {
+                    if (batch.getId().equals(_batchId))
+                    {
+                        original = batch;
+                    }
+                    else
+                    {
+                        results.add(batch);
+                    }
+                }
+
+                if (original == null || original.getState() == BatchStateEnum.Failed)
+                {
+                    throw new Exception("Query job [" + _jobId + "] failed: "
+                        + (original == null ? "batch not found" : original.getStateMessage()));
+                }
+
+                // the original batch is 'Not Processed' once PK chunking split it, otherwise it holds the results
+                if (original.getState() != BatchStateEnum.NotProcessed)
+                {
+                    results.clear();
+                    results.add(original);
+                }
+                if (original.getState() == BatchStateEnum.Queued || original.getState() == BatchStateEnum.InProgress)
+                {
+                    running = true;
+                }
+
+                for (BatchInfo batch : results)
+                {
+                    switch (batch.getState())
+                    {
+                        case Completed:
+                            if (started.add(batch.getId()))
+                            {
+                                downloads.add(_downloads.submit(() -> {
+                                    download(batch.getId());
+                                    return null;
+                                }));
+                            }
+                            break;
+                        case Failed:
+                            throw new Exception("Query batch [" + batch.getId() + "] failed: "
+                                + batch.getStateMessage());
+                        default:
+                            running = true;
+                            break;
+                    }
+                }
+
+                if (running)
+                {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+
+            // wait for the last downloads
+            for (Future<?> download : downloads)
+            {
+                try
+                {
+                    download.get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            }
+
+            _queue.put(END);
+        }
+        catch (InterruptedException e)
+        {
+            // closed by the caller
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // stop the other downloads and hand the error to the caller
+            Utils.logException(e);
+            _downloads.shutdownNow();
+            _queue.clear();
+            _queue.offer(e);
+        }
+    }
+
+    private void download(String batchId) throws Exception
+    {
+        for (String resultId : _bConn.getQueryResultList(_jobId, batchId).getResult())
+        {
+            try (InputStream in = _bConn.getQueryResultStream(_jobId, batchId, resultId))
+            {
+                CSVReader reader = new CSVReader(in);
+                List<String> header = reader.nextRecord();
+                List<String> row;
+                while (header != null && (row = reader.nextRecord()) != null)
+                {
+                    SObject record = new SObject(_sobjectType);
+                    for (int i = 0; i < header.size() && i < row.size(); i++)
+                    {
+                        // the CSV has no nulls, only empty values
+                        record.setField(header.get(i), row.get(i).isEmpty() ? null : row.get(i));
+                    }
+                    _queue.put(record);
+                    _count.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.salesforce.scmt.utils.SalesforceConstants.DeskMessageFields;
+import com.salesforce.scmt.utils.Utils;
+
+/**
+ * Resume points of running migrations, one per migration, object type and (optional) shard. A checkpoint is written
+ * after every bulk batch submitted and holds where the retrieval continues: the next 'start_id' and, for a delta
+ * migration, the 'updated_at' filter. When a migration message arrives without a start id (e.g. the migration is
+ * submitted again after it failed) it continues from its checkpoint instead of starting over.
+ * <p>
+ * Checkpoints are Desk_Message__c records named 'Desk-Checkpoint-[migration id]-[object]-[shard]'. The status is 'New'
+ * while the migration runs, 'Failed' when it gave up (both are picked up again) and 'Converted' once it completed.
+ */
+public final class CheckpointService
+{
+    public static final String NAME_PREFIX = "Desk-Checkpoint-";
+
+    private static final String KEY_START_ID = "start_id";
+    private static final String KEY_UPDATED_AT = "updated_at";
+
+    /**
+     * Private constructor for utility class.
+     */
+    private CheckpointService() {}
+
+    /**
+     * Returns the checkpoint of an unfinished migration, or null if there is none.
+     *
+     * @param deskService
+     *            The Desk.com service of the migration.
+     * @param object
+     *            The object type, e.g. 'Case'.
+     * @param shard
+     *            The part of the object's records, or null for all of them.
+     */
+    public static Checkpoint load(DeskService deskService, String object, String shard) throws Exception
+    {
+        if (deskService.getMigrationId() == null)
+        {
+            return null;
+        }
+
+        Map<String, Object> data = DeskMessageStore.read(deskService.getSalesforceService(),
+            getName(deskService, object, shard), DeskMessageFields.StatusNew, DeskMessageFields.StatusFailed);
+
+        if (data == null)
+        {
+            return null;
+        }
+
+        Checkpoint checkpoint = new Checkpoint(((Number) data.get(KEY_START_ID)).intValue(),
+            (data.get(KEY_UPDATED_AT) == null ? null : ((Number) data.get(KEY_UPDATED_AT)).intValue()));
+        Utils.log("[CHECKPOINT] Resuming [" + object + "] from " + checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Store the resume point of a running migration.
+     */
+    public static void save(DeskService deskService, String object, String shard, Checkpoint checkpoint)
+        throws Exception
+    {
+        write(deskService, object, shard, checkpoint, DeskMessageFields.StatusNew);
+    }
+
+    /**
+     * Store the last resume point of a migration that gave up, the next run of the migration continues from it.
+     */
+    public static void fail(DeskService deskService, String object, String shard, Checkpoint checkpoint)
+        throws Exception
+    {
+        write(deskService, object, shard, checkpoint, DeskMessageFields.StatusFailed);
+    }
+
+    /**
+     * Mark the checkpoint of a migration as done, the next run of the migration starts from scratch.
+     */
+    public static void complete(DeskService deskService, String object, String shard, Checkpoint checkpoint)
+        throws Exception
+    {
+        write(deskService, object, shard, checkpoint, DeskMessageFields.StatusConverted);
+    }
+
+    private static void write(DeskService deskService, String object, String shard, Checkpoint checkpoint,
+        String status) throws Exception
+    {
+        if (deskService.getMigrationId() == null)
+        {
+            return;
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put(KEY_START_ID, checkpoint.getStartId());
+        if (checkpoint.getUpdatedAt() != null)
+        {
+            data.put(KEY_UPDATED_AT, checkpoint.getUpdatedAt());
+        }
+
+        Utils.log("[CHECKPOINT] [" + object + "] " + status + ": " + checkpoint);
+        DeskMessageStore.write(deskService.getSalesforceService(), getName(deskService, object, shard), status,
+            data);
+    }
+
+    private static String getName(DeskService deskService, String object, String shard)
+    {
+        return (shard == null ? DeskMessageStore.getName(NAME_PREFIX, deskService.getMigrationId(), object)
+            : DeskMessageStore.getName(NAME_PREFIX, deskService.getMigrationId(), object, shard));
+    }
+
+    /**
+     * Where a migration continues: the next record id and, for a delta migration, the 'updated_at' filter.
+     */
+    public static final class Checkpoint
+    {
+        private final int _startId;
+        private final Integer _updatedAt;
+
+        public Checkpoint(int startId, Integer updatedAt)
+        {
+            _startId = startId;
+            _updatedAt = updatedAt;
+        }
+
+        public int getStartId()
+        {
+            return _startId;
+        }
+
+        public Integer getUpdatedAt()
+        {
+            return _updatedAt;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[start_id: " + _startId + (_updatedAt == null ? "" : ", updated_at: " + _updatedAt) + "]";
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.utils.JsonUtil;
+import com.salesforce.scmt.utils.SalesforceConstants;
+import com.salesforce.scmt.utils.SalesforceConstants.DeskMessageFields;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Small JSON documents kept in the org as Desk_Message__c records, keyed by the (unique) Name. A write is a single
+ * upsert, so a reader sees either the previous document or the new one.
+ */
+final class DeskMessageStore
+{
+    // the Name field of the Desk_Message__c object holds 80 characters
+    private static final int NAME_MAX_LENGTH = 80;
+
+    /**
+     * Private constructor for utility class.
+     */
+    private DeskMessageStore() {}
+
+    /**
+     * Build a record name from its parts, separated by '-'.
+     */
+    static String getName(String prefix, String... parts)
+    {
+        String name = prefix + String.join("-", parts);
+        return (name.length() > NAME_MAX_LENGTH ? name.substring(0, NAME_MAX_LENGTH) : name);
+    }
+
+    /**
+     * Read the document with the given name.
+     *
+     * @param statuses
+     *            Only return the document if the record has one of these statuses, or any status if none is passed.
+     * @return The document (Gson reads the numbers as doubles), or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> read(SalesforceService sfService, String name, String... statuses) throws Exception
+    {
+        List<SObject> records = sfService.query(String.format("SELECT %s FROM %s WHERE %s = '%s'%s LIMIT 1",
+            DeskMessageFields.Data,
+            SalesforceConstants.OBJ_DESK_MESSAGE,
+            DeskMessageFields.Name, name,
+            (statuses.length == 0 ? ""
+                : String.format(" AND %s IN ('%s')", DeskMessageFields.Status, String.join("', '", statuses)))),
+            false);
+
+        if (records == null || records.isEmpty() || records.get(0).getField(DeskMessageFields.Data) == null)
+        {
+            return null;
+        }
+
+        return (Map<String, Object>) JsonUtil.fromJson((String) records.get(0).getField(DeskMessageFields.Data),
+            Map.class);
+    }
+
+    /**
+     * Create or replace the document with the given name.
+     */
+    static void write(SalesforceService sfService, String name, String status, Map<String, Object> data)
+        throws Exception
+    {
+        SObject so = new SObject(SalesforceConstants.OBJ_DESK_MESSAGE);
+        so.setField(DeskMessageFields.Name, name);
+        so.setField(DeskMessageFields.Status, status);
+        so.setField(DeskMessageFields.Data, JsonUtil.toJson(data));
+
+        DeployResponse dr = sfService.upsertData(DeskMessageFields.Name, Arrays.asList(so));
+        if (dr.getErrorCount() > 0)
+        {
+            throw new Exception("Failed to save [" + name + "]: " + String.join("\n", dr.getErrors()));
+        }
+    }
+}
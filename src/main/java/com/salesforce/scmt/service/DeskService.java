@@ -31,6 +31,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.desk.java.apiclient.DeskClient;
 import com.desk.java.apiclient.DeskClientBuilder;
@@ -39,6 +42,7 @@ import com.desk.java.apiclient.model.Group;
 import com.desk.java.apiclient.model.User;
 import com.salesforce.scmt.model.DeployResponse;
 import com.salesforce.scmt.utils.*;
+import com.squareup.okhttp.Cache;
 import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.logging.HttpLoggingInterceptor;
 import com.squareup.okhttp.logging.HttpLoggingInterceptor.Level;
@@ -57,10 +61,19 @@ public class DeskService
     private static final String DESK_API_LOG_LEVEL_BODY = "BODY";
     private static final String DESK_API_MIGRATION_HEADER = "DESKCOM-SC-MIGRATION";
 
+    // the time the migration was submitted at, metadata cached before it is fetched again by the workers
+    public static final String METADATA_VERSION = "metadata_version";
+
+    // retrieves the metadata lists of the admin UI requests side by side
+    private static final ExecutorService _metadataRequests = Executors.newCachedThreadPool(
+        ExecutorUtil.newThreadFactory("desk-metadata"));
+
     private String _migrationId;
     private DeskClient _client;
     private Map<String, String> _clientSettings;
     private SalesforceService _sfService;
+    private DeskMetadataCache _metadataCache;
+    private String _metadataVersion;
     
     // these are used for caching
     public List<Group> _deskGroups;
@@ -75,6 +88,8 @@ public class DeskService
             (config.containsKey("desk_migration_id") ? config.get("desk_migration_id").toString() : null),
             config.get("server_url").toString(), config.get("session_id").toString(),
             (config.containsKey("auditEnabled") ? Boolean.valueOf(config.get("auditEnabled").toString()) : false));
+
+        setMetadataVersion(config.containsKey(METADATA_VERSION) ? config.get(METADATA_VERSION).toString() : null);
     }
 
     public DeskService(String deskUrl, String consumerKey, String consumerSecret, String accessToken,
@@ -172,10 +187,20 @@ public class DeskService
             _clientSettings.put("accessToken", accessToken);
             _clientSettings.put("accessTokenSecret", accessTokenSecret);
 
+            // metadata (groups, users, custom fields, etc.) is shared by every job for this site
+            _metadataCache = DeskMetadataCache.forSite(deskUrl, accessToken);
+
             // create client builder
             DeskClientBuilder clientBuilder = new DeskClientBuilder(deskUrl, consumerKey, consumerSecret, accessToken,
                 accessTokenSecret);
 
+            // cache metadata responses on disk (when configured), so expired metadata is revalidated conditionally
+            final Cache httpCache = DeskMetadataCache.getHttpCache();
+            if (httpCache != null)
+            {
+                clientBuilder.responseCache(httpCache);
+            }
+
             // set logging for desk client
             HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
             logging.setLevel(Level.NONE); // default to NONE, which still produces a log, but very simple
@@ -206,12 +231,17 @@ public class DeskService
                 {
                     com.squareup.okhttp.Request original = chain.request();
 
-                    com.squareup.okhttp.Request request = original.newBuilder()                        
+                    com.squareup.okhttp.Request.Builder request = original.newBuilder()                        
                         .method(original.method(), original.body())
-                        .header(DESK_API_MIGRATION_HEADER, deskUrl)
-                        .build();
+                        .header(DESK_API_MIGRATION_HEADER, deskUrl);
+
+                    // only metadata responses are worth keeping in the HTTP cache
+                    if (httpCache != null && !DeskMetadataCache.isCacheablePath(original.httpUrl().encodedPath()))
+                    {
+                        request.header("Cache-Control", "no-store");
+                    }
 
-                    return chain.proceed(request);
+                    return chain.proceed(request.build());
                 }
             };
 
@@ -225,6 +255,27 @@ public class DeskService
         return _client;
     }
 
+    public DeskMetadataCache getMetadataCache()
+    {
+        return _metadataCache;
+    }
+
+    /**
+     * Set the metadata version of the migration (see {@link #METADATA_VERSION}), so metadata cached before it is
+     * fetched again. It is passed on with the client settings.
+     *
+     * @param metadataVersion
+     *            The version from the migration config, may be null for jobs submitted before it was added.
+     */
+    public void setMetadataVersion(String metadataVersion)
+    {
+        if (metadataVersion != null && !metadataVersion.isEmpty())
+        {
+            _metadataVersion = metadataVersion;
+            _metadataCache.requireFetchedSince(Long.parseLong(metadataVersion));
+        }
+    }
+
     public DeskClient getClient()
     {
         return _client;
@@ -238,6 +289,10 @@ public class DeskService
         clientSettings.put("server_url", _sfService.getServerUrl());
         clientSettings.put("session_id", _sfService.getSessionId());
         clientSettings.put("desk_migration_id", getMigrationId());
+        if (_metadataVersion != null)
+        {
+            clientSettings.put(METADATA_VERSION, _metadataVersion);
+        }
 
         /*/
         String msg = "Client Settings:";
@@ -273,19 +328,15 @@ public class DeskService
 	        // build a DeskUtil (this has some non-static pieces so we can cache desk groups)
 	        DeskUtil deskUtil = new DeskUtil(deskService);
 	
-	        // get the languages
-	        Map<String, Object> languages = deskUtil.getDeskSiteLanguagesMap();
-	        
-	        // get the groups
-	        Set<Integer> groupIds = deskUtil.getDeskGroupIds();
-	        
-	        // get the custom fields
-	        List<CustomField> custom_fields = deskUtil.getDeskCustomFields();
+	        // get the languages, groups and custom fields at the same time (cached per site for repeat loads)
+	        Future<Map<String, Object>> languages = _metadataRequests.submit(deskUtil::getDeskSiteLanguagesMap);
+	        Future<Set<Integer>> groupIds = _metadataRequests.submit(deskUtil::getDeskGroupIds);
+	        Future<List<CustomField>> custom_fields = _metadataRequests.submit(deskUtil::getDeskCustomFields);
 	
 	        // build response and return it
-	        response.put("languages", languages);
-	        response.put("groups", groupIds);
-	        response.put("custom_fields", custom_fields);
+	        response.put("languages", languages.get());
+	        response.put("groups", groupIds.get());
+	        response.put("custom_fields", custom_fields.get());
         }
         catch(Exception unknownHost)
         {
@@ -312,20 +363,23 @@ public class DeskService
         
         // response map
         DeployResponse response = new DeployResponse();
+
+        // by default only what isn't in the org yet is deployed, 'force' deploys everything again
+        boolean force = Boolean.parseBoolean(postParams.get("force"));
         
         // check if custom fields were passed
         if (postParams.containsKey("custom_fields"))
         {
             // create the custom fields that were passed
-            response.addDeployResponse(deskUtil.createCustomFields(postParams.get("custom_fields")));
-            response.addDeployResponse(deskUtil.createFieldPermissions(postParams.get("custom_fields")));
+            response.addDeployResponse(deskUtil.createCustomFields(postParams.get("custom_fields"), force));
+            response.addDeployResponse(deskUtil.createFieldPermissions(postParams.get("custom_fields"), force));
         }
         
         // check if groups were passed
         if (postParams.containsKey("groups"))
         {
             // create the groups that were passed
-            response.addDeployResponse(deskUtil.createQueues(postParams.get("groups")));            
+            response.addDeployResponse(deskUtil.createQueues(postParams.get("groups"), force));            
         }
         
         return response;
@@ -337,26 +391,25 @@ public class DeskService
         Map<String, String> postParams = getPostParamsFromRequest(req, new String[] { "server_url", "session_id",
                 "deskUrl", "consumerKey", "consumerSecret", "accessToken", "accessTokenSecret"});
 
-        // publish the job to RabbitMQ
+        // the workers fetch the metadata cached before now again, it can predate fields and groups deployed since
+        postParams.put(METADATA_VERSION, String.valueOf(System.currentTimeMillis()));
 
-        RabbitUtil.publishToQueue(QUEUE_DESK_EMAIL, EXCHANGE_TRACTOR, JsonUtil.toJson(postParams).getBytes());
-
-        // create a DeskService instance based on the data posted (e.g. tokens, url, session id, etc.)
-        DeskService deskService = new DeskService(postParams.get("deskUrl"), postParams.get("consumerKey"),
-                postParams.get("consumerSecret"), postParams.get("accessToken"), postParams.get("accessTokenSecret"),
-                (postParams.containsKey("desk_migration_id") ? postParams.get("desk_migration_id") : null),
-                postParams.get("server_url"), postParams.get("session_id"),
-                (postParams.containsKey("auditEnabled") ? Boolean.valueOf(postParams.get("auditEnabled")) : false));
+        // answer right away, the status update and publishing run in the background
+        return SubmissionService.submit("MigrateData", postParams.get("desk_migration_id"), () -> {
+            // publish the job to RabbitMQ
+            RabbitUtil.publishToQueue(QUEUE_DESK_EMAIL, EXCHANGE_TRACTOR, JsonUtil.toJson(postParams).getBytes());
 
-        // build a DeskUtil (this has some non-static pieces so we can cache desk groups)
-        DeskUtil deskUtil = new DeskUtil(deskService);
+            DeskUtil deskUtil = newDeskUtil(postParams);
 
-        deskUtil.updateMigrationStatus(DeskMigrationFields.StatusQueued, "", null);
+            deskUtil.updateMigrationStatus(DeskMigrationFields.StatusQueued, "", null);
 
-        // publish the job to RabbitMQ
-        RabbitUtil.publishToQueue(QUEUE_DESK_DATA_MIGRATION, EXCHANGE_TRACTOR, JsonUtil.toJson(postParams).getBytes());
+            // write it now, a worker picking the job up sets it to Running and must not be overtaken by it
+            MigrationStatusService.forMigration(deskUtil.getDeskService().getMigrationId()).flush();
 
-        return "SUBMITTED";
+            // publish the job to RabbitMQ
+            RabbitUtil.publishToQueue(QUEUE_DESK_DATA_MIGRATION, EXCHANGE_TRACTOR,
+                JsonUtil.toJson(postParams).getBytes());
+        }, e -> failMigration(postParams, e), res);
     }
     
     public static Object migrateAttachments(Request req, Response res) throws Exception
@@ -365,7 +418,29 @@ public class DeskService
         Map<String, String> postParams = getPostParamsFromRequest(req, new String[] { "server_url", "session_id",
                 "deskUrl", "consumerKey", "consumerSecret", "accessToken", "accessTokenSecret"});
 
-        // create a DeskService instance based on the data posted (e.g. tokens, url, session id, etc.)
+        // the workers fetch the metadata cached before now again, it can predate fields and groups deployed since
+        postParams.put(METADATA_VERSION, String.valueOf(System.currentTimeMillis()));
+
+        // answer right away, the status update and publishing run in the background
+        return SubmissionService.submit("MigrateAttachments", postParams.get("desk_migration_id"), () -> {
+            DeskUtil deskUtil = newDeskUtil(postParams);
+
+            deskUtil.updateMigrationStatus(DeskMigrationFields.StatusQueued, "", null);
+
+            // write it now, a worker picking the job up sets it to Running and must not be overtaken by it
+            MigrationStatusService.forMigration(deskUtil.getDeskService().getMigrationId()).flush();
+
+            // publish the job to RabbitMQ
+            RabbitUtil.publishToQueue(QUEUE_DESK_ATTACHMENT, EXCHANGE_TRACTOR,
+                JsonUtil.toJson(postParams).getBytes());
+        }, e -> failMigration(postParams, e), res);
+    }
+
+    /**
+     * Create a DeskUtil for the data posted (e.g. tokens, url, session id, etc.).
+     */
+    private static DeskUtil newDeskUtil(Map<String, String> postParams)
+    {
         DeskService deskService = new DeskService(postParams.get("deskUrl"), postParams.get("consumerKey"),
                 postParams.get("consumerSecret"), postParams.get("accessToken"), postParams.get("accessTokenSecret"),
                 (postParams.containsKey("desk_migration_id") ? postParams.get("desk_migration_id") : null),
@@ -373,14 +448,22 @@ public class DeskService
                 (postParams.containsKey("auditEnabled") ? Boolean.valueOf(postParams.get("auditEnabled")) : false));
 
         // build a DeskUtil (this has some non-static pieces so we can cache desk groups)
-        DeskUtil deskUtil = new DeskUtil(deskService);
-
-        deskUtil.updateMigrationStatus(DeskMigrationFields.StatusQueued, "", null);
+        return new DeskUtil(deskService);
+    }
 
-        // publish the job to RabbitMQ
-        RabbitUtil.publishToQueue(QUEUE_DESK_ATTACHMENT, EXCHANGE_TRACTOR, JsonUtil.toJson(postParams).getBytes());
+    /**
+     * Mark the migration of a submission that failed before reaching the workers Failed, with the error in its log.
+     */
+    private static void failMigration(Map<String, String> postParams, Exception e) throws Exception
+    {
+        if (postParams.get("desk_migration_id") == null)
+        {
+            return;
+        }
 
-        return "SUBMITTED";
+        DeployResponse dr = new DeployResponse();
+        dr.addError(String.valueOf(e.getMessage()));
+        newDeskUtil(postParams).updateMigrationStatus(DeskMigrationFields.StatusFailed, "", dr);
     }
 
     public static Object retrieveMetadata(Request req, Response res) throws Exception
@@ -405,19 +488,15 @@ public class DeskService
             // build a DeskUtil (this has some non-static pieces so we can cache desk groups)
             DeskUtil deskUtil = new DeskUtil(deskService);
 
-            // get the groups
-            List<Group> groups = deskUtil.getDeskGroups();
-
-            // get the users
-            List<User> users = deskUtil.getDeskUsers();
-
-            // get the custom fields
-            List<CustomField> custom_fields = deskUtil.getDeskCustomFields();
+            // get the groups, users and custom fields at the same time (cached per site for repeat loads)
+            Future<List<Group>> groups = _metadataRequests.submit(deskUtil::getDeskGroups);
+            Future<List<User>> users = _metadataRequests.submit(deskUtil::getDeskUsers);
+            Future<List<CustomField>> custom_fields = _metadataRequests.submit(deskUtil::getDeskCustomFields);
 
             // build response and return it
-            response.put("groups", groups);
-            response.put("users", users);
-            response.put("custom_fields", custom_fields);
+            response.put("groups", groups.get());
+            response.put("users", users.get());
+            response.put("custom_fields", custom_fields.get());
         }
         catch(Exception unknownHost)
         {
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import static java.lang.System.getenv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.IdBitmap;
+import com.salesforce.scmt.utils.Utils;
+
+/**
+ * The Desk.com ids of an object that the bulk results confirmed loaded into the org, one set per migration and object
+ * type. A rerun of the migration skips these records instead of retrieving, converting and uploading them again, which
+ * for insert-only objects (CaseComment, EmailMessage, GroupMember) would also create duplicates.
+ * <p>
+ * Ids are only added once the batch they were submitted in has finished and every record made from them was saved, so
+ * a record that wasn't confirmed (failed, or the worker stopped first) is simply migrated again. The sets are kept as
+ * compressed bitmaps in 'loaded-ids/[migration id]-[object].ids' under SCMT_LOCAL_STORE_DIR. Without local storage or
+ * a migration id nothing is tracked and nothing is skipped. A set nobody used for an hour is dropped from memory, and
+ * read from its file again when it is needed. A set is merged with its file before it is saved, so an instance that
+ * was dropped while still in use doesn't overwrite the ids saved by the instance that replaced it.
+ */
+public final class LoadedIds
+{
+    /**
+     * Environment variable with the minutes to wait for the results of a bulk batch (default 60).
+     */
+    private static final String BULK_RESULT_WAIT_MINUTES = "BULK_RESULT_WAIT_MINUTES";
+    private static final int DEFAULT_WAIT_MINUTES = 60;
+
+    // a job's batches run one after the other, a couple of threads keep up with them
+    private static final int RESULT_THREADS = 2;
+
+    // sets that haven't been used for this long (and have no batch results pending) are dropped
+    private static final long IDLE_EVICT_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final LoadedIds NONE = new LoadedIds(null, null);
+    private static final ConcurrentMap<String, LoadedIds> _stores = new ConcurrentHashMap<>();
+
+    // a set can be saved by two instances (one dropped while still in use), the file is merged under this lock
+    private static final Object _saveLock = new Object();
+    private static ExecutorService _results;
+    private static ScheduledExecutorService _evicter;
+
+    private final String _name;
+    private final File _file;
+    private IdBitmap _ids;
+    private long _lastUsed = System.currentTimeMillis();
+
+    // batches whose results will add to this set
+    private int _pending = 0;
+
+    private LoadedIds(String name, File file)
+    {
+        _name = name;
+        _file = file;
+    }
+
+    /**
+     * Returns the loaded ids of an object in the current migration.
+     *
+     * @param deskService
+     *            The Desk.com service of the migration.
+     * @param object
+     *            The object type, e.g. 'Case', or 'GroupMember-[group id]' for the members of a group.
+     */
+    public static LoadedIds forObject(DeskService deskService, String object)
+    {
+        File dir = Utils.getLocalStoreDir("loaded-ids");
+        if (dir == null || deskService.getMigrationId() == null)
+        {
+            return NONE;
+        }
+
+        startEvicter();
+        return _stores.computeIfAbsent(deskService.getMigrationId() + "-" + object,
+            name -> new LoadedIds(name, new File(dir, name + ".ids")));
+    }
+
+    /**
+     * Returns true if ids are tracked, i.e. local storage is configured and the migration has an id.
+     */
+    public boolean isTracked()
+    {
+        return (_file != null);
+    }
+
+    /**
+     * Returns true if the record with the given Desk.com id is already in the org.
+     */
+    public synchronized boolean contains(int id)
+    {
+        _lastUsed = System.currentTimeMillis();
+        return (_file != null && getIds().contains(id));
+    }
+
+    /**
+     * Returns the source of a record submitted in a bulk batch: the Desk.com ids it was made from. Null if nothing is
+     * tracked.
+     */
+    public Row row(int... ids)
+    {
+        return (_file == null ? null : new Row(this, ids));
+    }
+
+    /**
+     * Read the results of a submitted batch in the background and add the ids of the saved records.
+     *
+     * @param sfService
+     *            The Salesforce service the batch was submitted with.
+     * @param rows
+     *            The source of every record of the batch, in the order they were submitted (null entries for records
+     *            that aren't tracked).
+     */
+    public static void track(SalesforceService sfService, String jobId, String batchId, List<Row> rows)
+    {
+        track(sfService, jobId, batchId, rows, null);
+    }
+
+    /**
+     * Read the results of a submitted batch in the background, add the ids of the saved records and tell the listener
+     * whether the whole batch was saved.
+     *
+     * @param sfService
+     *            The Salesforce service the batch was submitted with.
+     * @param rows
+     *            The source of every record of the batch, in the order they were submitted (null entries for records
+     *            that aren't tracked).
+     * @param onResults
+     *            Called with true once every record of the batch was saved, false if any failed or the results
+     *            couldn't be read (may be null).
+     */
+    public static void track(SalesforceService sfService, String jobId, String batchId, List<Row> rows,
+        Consumer<Boolean> onResults)
+    {
+        if (batchId == null || (onResults == null && rows.stream().allMatch(r -> r == null)))
+        {
+            return;
+        }
+
+        // the sets are kept in memory until the results are in
+        Set<LoadedIds> stores = new HashSet<>();
+        for (Row row : rows)
+        {
+            if (row != null && stores.add(row._store))
+            {
+                row._store.setPending(1);
+            }
+        }
+
+        // the caller keeps using its service (and clears its lists), so hand over copies
+        SalesforceService sf = sfService.duplicate();
+        List<Row> copy = new ArrayList<>(rows);
+        getResultExecutor().execute(() -> {
+            boolean saved = false;
+            try
+            {
+                saved = confirm(sf, jobId, batchId, copy);
+            }
+            finally
+            {
+                for (LoadedIds store : stores)
+                {
+                    store.setPending(-1);
+                }
+                if (onResults != null)
+                {
+                    onResults.accept(saved);
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getResultExecutor()
+    {
+        if (_results == null)
+        {
+            _results = ExecutorUtil.newBoundedExecutor("bulk-results", RESULT_THREADS);
+        }
+        return _results;
+    }
+
+    /**
+     * Add the ids of the saved records, returns true if every record of the batch was saved.
+     */
+    private static boolean confirm(SalesforceService sf, String jobId, String batchId, List<Row> rows)
+    {
+        try
+        {
+            long waitMillis = (getenv(BULK_RESULT_WAIT_MINUTES) == null ? DEFAULT_WAIT_MINUTES
+                : Integer.parseInt(getenv(BULK_RESULT_WAIT_MINUTES))) * 60000L;
+            List<Boolean> saved = sf.getBatchResults(jobId, batchId, waitMillis);
+            if (saved == null)
+            {
+                return false;
+            }
+            if (saved.size() != rows.size())
+            {
+                Utils.log("[BULK] Batch [" + batchId + "] returned " + saved.size() + " results for " + rows.size()
+                    + " records, not tracking it.");
+                return false;
+            }
+
+            // an id is loaded when every record made from it was saved
+            Map<LoadedIds, Set<Integer>> loaded = new HashMap<>();
+            Map<LoadedIds, Set<Integer>> failed = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++)
+            {
+                Row row = rows.get(i);
+                if (row == null)
+                {
+                    continue;
+                }
+
+                Set<Integer> ids = (saved.get(i) ? loaded : failed).computeIfAbsent(row._store, k -> new HashSet<>());
+                for (int id : row._ids)
+                {
+                    ids.add(id);
+                }
+            }
+
+            for (Map.Entry<LoadedIds, Set<Integer>> entry : loaded.entrySet())
+            {
+                Set<Integer> ids = entry.getValue();
+                if (failed.containsKey(entry.getKey()))
+                {
+                    ids.removeAll(failed.get(entry.getKey()));
+                }
+                entry.getKey().addAll(ids);
+            }
+
+            return !saved.contains(Boolean.FALSE);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // the records are migrated again on the next run
+            Utils.log("[BULK] Could not read the results of batch [" + batchId + "]: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private synchronized void setPending(int delta)
+    {
+        _pending += delta;
+        _lastUsed = System.currentTimeMillis();
+    }
+
+    private synchronized boolean isIdle(long now)
+    {
+        return (_pending == 0 && (now - _lastUsed) > IDLE_EVICT_MILLIS);
+    }
+
+    private static synchronized void startEvicter()
+    {
+        if (_evicter != null)
+        {
+            return;
+        }
+
+        _evicter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "loaded-ids-evicter");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // drop the sets of migrations that are done (or moved to another worker), their files stay
+        _evicter.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            _stores.values().removeIf(s -> s.isIdle(now));
+        }, 10, 10, TimeUnit.MINUTES);
+    }
+
+    private synchronized void addAll(Set<Integer> ids)
+    {
+        IdBitmap bitmap = getIds();
+        int added = 0;
+        for (int id : ids)
+        {
+            if (bitmap.add(id))
+            {
+                added++;
+            }
+        }
+
+        if (added > 0)
+        {
+            Utils.log("[BULK] [" + _name + "] " + added + " records confirmed loaded, " + bitmap.getCardinality()
+                + " in total.");
+            save(bitmap);
+        }
+    }
+
+    private IdBitmap getIds()
+    {
+        // read the set of a previous run on first use
+        if (_ids == null)
+        {
+            try
+            {
+                _ids = IdBitmap.load(_file);
+                if (_ids.getCardinality() > 0)
+                {
+                    Utils.log("[BULK] [" + _name + "] " + _ids.getCardinality() + " records already loaded.");
+                }
+            }
+            catch (Exception e)
+            {
+                Utils.log("[BULK] Ignoring unreadable loaded ids file: [" + _file.getAbsolutePath() + "]");
+                _ids = new IdBitmap();
+            }
+        }
+        return _ids;
+    }
+
+    private void save(IdBitmap bitmap)
+    {
+        synchronized (_saveLock)
+        {
+            // keep the ids another instance of this set saved since we read the file
+            if (_file.isFile())
+            {
+                try
+                {
+                    IdBitmap.load(_file).forEach(bitmap::add);
+                }
+                catch (Exception e)
+                {
+                    Utils.log("[BULK] Ignoring unreadable loaded ids file: [" + _file.getAbsolutePath() + "]");
+                }
+            }
+
+            try
+            {
+                bitmap.save(_file);
+            }
+            catch (Exception e)
+            {
+                // the in-memory set is still good
+                Utils.log("[BULK] Could not save loaded ids file: [" + _file.getAbsolutePath() + "] "
+                    + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The Desk.com ids a submitted record was made from.
+     */
+    public static final class Row
+    {
+        private final LoadedIds _store;
+        private final int[] _ids;
+
+        private Row(LoadedIds store, int[] ids)
+        {
+            _store = store;
+            _ids = ids;
+        }
+    }
+}
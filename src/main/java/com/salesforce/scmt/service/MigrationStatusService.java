@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import static java.lang.System.getenv;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.utils.SalesforceConstants;
+import com.salesforce.scmt.utils.SalesforceConstants.DeskMigrationFields;
+import com.salesforce.scmt.utils.Utils;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Write-behind accumulator for the Desk_Migration__c status record.
+ *
+ * Every status update used to query the counters and log of the migration record and then upsert it again, which
+ * doubled the Salesforce API calls of a migration and serialized the workers behind those round trips. Updates are
+ * now merged in memory (counters are summed, log lines are prepended) and written with a single upsert, either every
+ * few seconds or straight away when the status or stage changes. Several processes (tractor, formula1, web) update the
+ * same record, so the counters and log are read again right before each write that adds to them, and a process only
+ * writes the status when it changed the status itself.
+ */
+public final class MigrationStatusService
+{
+    private static final String MIGRATION_STATUS_FLUSH_SECONDS = "MIGRATION_STATUS_FLUSH_SECONDS";
+    private static final int DEFAULT_FLUSH_SECONDS = 15;
+
+    // clean entries that haven't been touched for this long are dropped
+    private static final long IDLE_EVICT_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final DateTimeFormatter LOG_DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+
+    private static final ConcurrentMap<String, MigrationStatusService> _migrations = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService _flusher;
+
+    private final String _migrationId;
+
+    // guards the pending state below
+    private final Object _lock = new Object();
+
+    // serializes the writes, so a slow upsert never overlaps with the next one
+    private final Object _flushLock = new Object();
+
+    private SalesforceService _sfService;
+    private String _sessionId;
+
+    // values on the record, read before each write that adds to them
+    private int _recordsMigrated = 0;
+    private int _recordsFailed = 0;
+    private String _log = "";
+
+    // values waiting to be written
+    private int _pendingMigrated = 0;
+    private int _pendingFailed = 0;
+    private final StringBuilder _pendingLog = new StringBuilder();
+    private String _status;
+
+    // characters inserted at the front of the pending log since the running flush took its copy
+    private int _pendingLogInserted = 0;
+
+    // the status this process last wrote, it is only written again when it changes
+    private String _flushedStatus;
+    private String _stage;
+    private String _jobId;
+    private String _resumePoint;
+    private boolean _dirty = false;
+    private long _lastUpdated = System.currentTimeMillis();
+
+    private MigrationStatusService(String migrationId)
+    {
+        _migrationId = migrationId;
+    }
+
+    /**
+     * Returns the status accumulator for the given migration, creating it if needed.
+     *
+     * @param migrationId
+     *            The Salesforce Id of the Desk_Migration__c record.
+     * @return The accumulator shared by every worker thread of this process.
+     */
+    public static MigrationStatusService forMigration(String migrationId)
+    {
+        startFlusher();
+        return _migrations.computeIfAbsent(migrationId, MigrationStatusService::new);
+    }
+
+    /**
+     * Merge a status update into the pending state. Counters and errors from the deploy response are added to what is
+     * already pending; status, stage and job id replace the pending values. A change of status or stage is written
+     * straight away (in the background), anything else waits for the next periodic flush.
+     */
+    public void update(SalesforceService sfService, String status, String stage, DeployResponse dr, String jobId)
+    {
+        boolean flushNow;
+
+        synchronized (_lock)
+        {
+            setSalesforceService(sfService);
+
+            // a new status, or a new non-blank stage, is something the user is waiting to see
+            flushNow = (status != null && !status.equals(_status))
+                || (stage != null && !stage.isEmpty() && !stage.equals(_stage));
+
+            if (status != null)
+            {
+                _status = status;
+            }
+
+            // keep the old behavior of clearing the stage when an empty one is passed
+            if (stage != null)
+            {
+                _stage = stage;
+            }
+
+            if (jobId != null)
+            {
+                // a job starting here is news, even if the status on the record was changed by another process since
+                // this one last wrote it (e.g. a resubmitted migration set to Queued)
+                if (!jobId.equals(_jobId))
+                {
+                    _flushedStatus = null;
+                }
+                _jobId = jobId;
+            }
+
+            if (dr != null)
+            {
+                // the latest resume point replaces the pending one
+                if (dr.getResumePoint() != null)
+                {
+                    _resumePoint = dr.getResumePoint();
+                }
+
+                _pendingMigrated += dr.getSuccessCount();
+                _pendingFailed += dr.getErrorCount();
+
+                if (dr.getErrors() != null && !dr.getErrors().isEmpty())
+                {
+                    StringBuilder sbErrors = new StringBuilder();
+                    sbErrors.append("[" + LocalDateTime.now().format(LOG_DATE_FORMAT) + "]: ");
+                    for (String err : dr.getErrors())
+                    {
+                        sbErrors.append(err + "\n");
+                    }
+
+                    // newest entries go first, like the log on the record
+                    _pendingLog.insert(0, sbErrors);
+                    _pendingLogInserted += sbErrors.length();
+
+                    // no point holding on to more than the field can store
+                    if (_pendingLog.length() > SalesforceConstants.LONG_TEXT_MAX)
+                    {
+                        _pendingLog.setLength(SalesforceConstants.LONG_TEXT_MAX);
+                    }
+                }
+            }
+
+            _dirty = true;
+            _lastUpdated = System.currentTimeMillis();
+        }
+
+        if (flushNow)
+        {
+            _flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * Write the pending state (if any) to Salesforce with a single upsert. Failures are logged and the pending state
+     * is kept, so it is retried on the next flush.
+     */
+    public void flush()
+    {
+        synchronized (_flushLock)
+        {
+            SalesforceService sfService;
+            int pendingMigrated;
+            int pendingFailed;
+            String pendingLog;
+            String status = null;
+            SObject deskMigration = new SObject(SalesforceConstants.OBJ_DESK_MIGRATION);
+
+            synchronized (_lock)
+            {
+                if (!_dirty || _sfService == null)
+                {
+                    return;
+                }
+
+                sfService = _sfService;
+                pendingMigrated = _pendingMigrated;
+                pendingFailed = _pendingFailed;
+                pendingLog = _pendingLog.toString();
+                _pendingLogInserted = 0;
+                _dirty = false;
+
+                deskMigration.setId(_migrationId);
+
+                // another process may have changed the status since, only write ours when it changed
+                if (_status != null && !_status.equals(_flushedStatus))
+                {
+                    status = _status;
+                    deskMigration.setField(DeskMigrationFields.Status, status);
+                }
+
+                if (_stage != null)
+                {
+                    deskMigration.setField(DeskMigrationFields.Stage, _stage);
+                }
+
+                if (_jobId != null)
+                {
+                    deskMigration.setField(DeskMigrationFields.JobId, _jobId);
+                }
+
+                if (_resumePoint != null)
+                {
+                    deskMigration.setField(DeskMigrationFields.ResumePoint, _resumePoint);
+                }
+
+                // TODO: Set this with a workflow rule
+                if (DeskMigrationFields.StatusComplete.equals(status))
+                {
+                    deskMigration.setField(DeskMigrationFields.EndDate, Calendar.getInstance());
+                }
+            }
+
+            try
+            {
+                boolean hasCounters = (pendingMigrated != 0 || pendingFailed != 0 || !pendingLog.isEmpty());
+
+                if (hasCounters)
+                {
+                    // other processes add to the same counters & log, start from what is on the record now
+                    readCounters(sfService);
+
+                    int recordsMigrated = _recordsMigrated + pendingMigrated;
+                    int recordsFailed = _recordsFailed + pendingFailed;
+
+                    deskMigration.setField(DeskMigrationFields.RecordsMigrated, recordsMigrated);
+                    deskMigration.setField(DeskMigrationFields.RecordsFailed, recordsFailed);
+                    deskMigration.setField(DeskMigrationFields.RecordsTotal, recordsMigrated + recordsFailed);
+
+                    if (!pendingLog.isEmpty())
+                    {
+                        deskMigration.setField(DeskMigrationFields.Log, prependLog(pendingLog, _log));
+                    }
+                }
+
+                // upsert the migration status
+                DeployResponse dr = sfService.upsertData(DeskMigrationFields.ID, Arrays.asList(deskMigration));
+                if (dr.getErrorCount() > 0)
+                {
+                    throw new Exception(String.join("\n", dr.getErrors()));
+                }
+
+                synchronized (_lock)
+                {
+                    // drop what was written from 'pending', keeping anything merged in the meantime
+                    _pendingMigrated -= pendingMigrated;
+                    _pendingFailed -= pendingFailed;
+
+                    // only the entries inserted at the front since the copy weren't written (the rest of the copy may
+                    // have been cut off by now)
+                    _pendingLog.setLength(Math.min(_pendingLog.length(), _pendingLogInserted));
+
+                    if (status != null)
+                    {
+                        _flushedStatus = status;
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                Utils.log(String.format("[STATUS] Failed to update migration [%s]: %s", _migrationId,
+                    e.getMessage()));
+
+                // try again on the next flush
+                synchronized (_lock)
+                {
+                    _dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush every migration with pending changes, blocking until the writes are done.
+     */
+    public static void flushAll()
+    {
+        for (MigrationStatusService status : _migrations.values())
+        {
+            status.flush();
+        }
+    }
+
+    private void readCounters(SalesforceService sfService) throws Exception
+    {
+        String query = String.format("SELECT %s, %s, %s FROM %s WHERE %s = '%s'", DeskMigrationFields.RecordsFailed,
+            DeskMigrationFields.RecordsMigrated, DeskMigrationFields.Log, SalesforceConstants.OBJ_DESK_MIGRATION,
+            DeskMigrationFields.ID, _migrationId);
+        List<SObject> results = sfService.query(query);
+
+        // check if an existing migration record was found
+        if (results == null || results.isEmpty())
+        {
+            // we are in big trouble if we get here, count from zero so the status still gets written
+            Utils.log("[STATUS] Could not find existing Desk Migration record with Id: [" + _migrationId + "]!");
+            _recordsMigrated = 0;
+            _recordsFailed = 0;
+            _log = "";
+        }
+        else
+        {
+            SObject prev = results.get(0);
+
+            _recordsMigrated = (prev.getField(DeskMigrationFields.RecordsMigrated) == null ? 0
+                : Double.valueOf((String) prev.getField(DeskMigrationFields.RecordsMigrated)).intValue());
+            _recordsFailed = (prev.getField(DeskMigrationFields.RecordsFailed) == null ? 0
+                : Double.valueOf((String) prev.getField(DeskMigrationFields.RecordsFailed)).intValue());
+            _log = (prev.getField(DeskMigrationFields.Log) == null ? "" : (String) prev.getField(DeskMigrationFields.Log));
+        }
+    }
+
+    private void setSalesforceService(SalesforceService sfService)
+    {
+        // keep a connection of our own, the flusher thread must not share the worker's connections
+        if (sfService != null && (_sfService == null || !sfService.getSessionId().equals(_sessionId)))
+        {
+            _sfService = sfService.duplicate();
+            _sessionId = sfService.getSessionId();
+        }
+    }
+
+    private static String prependLog(String newEntries, String log)
+    {
+        StringBuilder sb = new StringBuilder(newEntries).append(log);
+
+        // trim to max length
+        if (sb.length() > SalesforceConstants.LONG_TEXT_MAX)
+        {
+            sb.setLength(SalesforceConstants.LONG_TEXT_MAX);
+        }
+
+        return sb.toString();
+    }
+
+    private static synchronized void startFlusher()
+    {
+        if (_flusher != null)
+        {
+            return;
+        }
+
+        int flushSeconds = (getenv(MIGRATION_STATUS_FLUSH_SECONDS) == null ? DEFAULT_FLUSH_SECONDS
+            : Integer.parseInt(getenv(MIGRATION_STATUS_FLUSH_SECONDS)));
+
+        _flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "migration-status-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        _flusher.scheduleWithFixedDelay(() -> {
+            flushAll();
+
+            // drop entries nobody has touched in a while
+            long now = System.currentTimeMillis();
+            _migrations.values().removeIf(s -> {
+                synchronized (s._lock)
+                {
+                    return !s._dirty && (now - s._lastUpdated) > IDLE_EVICT_MILLIS;
+                }
+            });
+        }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+
+        // don't lose the last counters when the dyno is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(MigrationStatusService::flushAll, "migration-status-shutdown"));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.Utils;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Iterates the records of a SOQL query one page at a time. While the caller works through a page, the next one is
+ * already being retrieved with 'queryMore()' on a background thread, so only two pages are held in memory and the
+ * round trip is mostly hidden.
+ * <p>
+ * The pages are retrieved with their own connection, so the caller can keep using its service while it iterates.
+ */
+final class QueryIterator implements RecordIterator
+{
+    private static final ExecutorService _prefetch = Executors.newCachedThreadPool(
+        ExecutorUtil.newThreadFactory("soql-prefetch"));
+
+    private final SalesforceService _sfService;
+    private SObject[] _page;
+    private int _index;
+    private int _count;
+    private Future<QueryResult> _next;
+
+    /**
+     * @param sfService
+     *            The service retrieving the next pages, not used by anyone else.
+     * @param first
+     *            The first page of the query.
+     */
+    QueryIterator(SalesforceService sfService, QueryResult first)
+    {
+        _sfService = sfService;
+        startPage(first);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (_index >= _page.length)
+        {
+            if (_next == null)
+            {
+                return false;
+            }
+
+            try
+            {
+                startPage(_next.get());
+            }
+            catch (InterruptedException e)
+            {
+                _next.cancel(true);
+                _next = null;
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while retrieving query results.", e);
+            }
+            catch (ExecutionException e)
+            {
+                _next = null;
+                throw new IllegalStateException("Error retrieving query results: " + e.getCause().getMessage(),
+                    e.getCause());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SObject next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return _page[_index++];
+    }
+
+    @Override
+    public void close()
+    {
+        // stop retrieving pages nobody will read
+        if (_next != null)
+        {
+            _next.cancel(true);
+            _next = null;
+        }
+        _page = new SObject[0];
+    }
+
+    private void startPage(QueryResult qr)
+    {
+        _page = (qr.getRecords() == null ? new SObject[0] : qr.getRecords());
+        _index = 0;
+        _count += _page.length;
+
+        if (qr.isDone())
+        {
+            _next = null;
+            Utils.log(String.format("[QUERY] Retrieved [%d] records.", _count));
+        }
+        else
+        {
+            // retrieve the next page while this one is processed
+            String locator = qr.getQueryLocator();
+            _next = _prefetch.submit(() -> _sfService.queryMore(locator));
+        }
+    }
+}
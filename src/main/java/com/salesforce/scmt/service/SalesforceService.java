@@ -18,21 +18,49 @@ package com.salesforce.scmt.service;
 import static java.lang.System.getenv;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPOutputStream;
 
 import com.salesforce.scmt.model.DeployException;
 import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.utils.CsvUtil;
+import com.salesforce.scmt.utils.ExecutorUtil;
 import com.salesforce.scmt.utils.JsonUtil;
 import com.salesforce.scmt.utils.SalesforceConstants;
 import com.salesforce.scmt.utils.SalesforceUtil;
 import com.salesforce.scmt.utils.Utils;
 import com.sforce.async.AsyncApiException;
+import com.sforce.async.AsyncExceptionCode;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
 import com.sforce.async.BulkConnection;
+import com.sforce.async.CSVReader;
 import com.sforce.async.ConcurrencyMode;
 import com.sforce.async.ContentType;
 import com.sforce.async.JobInfo;
@@ -47,6 +75,11 @@ import com.sforce.soap.partner.fault.UnexpectedErrorFault;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
 
 public final class SalesforceService
 {
@@ -56,11 +89,54 @@ public final class SalesforceService
     private List<Metadata> _metadata;
     private String _serverUrl;
     private String _sessionId;
-    private Map<String, String> _queues;
     private static String SALESFORCE_TRACE_METADATA = "SALESFORCE_TRACE_METADATA";
     private static String SALESFORCE_TRACE_PARTNER = "SALESFORCE_TRACE_PARTNER";
     private static String SALESFORCE_TRACE_BULK = "SALESFORCE_TRACE_BULK";
 
+    // how often to check on a bulk batch that is still running
+    private static final long BATCH_POLL_MILLIS = 10000;
+
+    // large scans through Bulk API query jobs, split in chunks of this many records, downloaded by this many threads
+    private static final String SALESFORCE_BULK_QUERY = "SALESFORCE_BULK_QUERY";
+    private static final String SALESFORCE_PK_CHUNK_SIZE = "SALESFORCE_PK_CHUNK_SIZE";
+    private static final String SALESFORCE_BULK_QUERY_THREADS = "SALESFORCE_BULK_QUERY_THREADS";
+    private static final String PK_CHUNKING_HEADER = "Sforce-Enable-PKChunking";
+
+    // 'CSV' to send the batches of bulk jobs as CSV, which names each field once instead of on every record
+    private static final String SALESFORCE_BULK_CONTENT_TYPE = "SALESFORCE_BULK_CONTENT_TYPE";
+
+    // API version of the metadata listed before a deploy
+    private static final double METADATA_API_VERSION = 36.0;
+
+    // number of 'upsertMetadata()' calls of a deploy running at the same time
+    private static final String SALESFORCE_METADATA_THREADS = "SALESFORCE_METADATA_THREADS";
+
+    // '2' to load records through Bulk API 2.0 ingest jobs instead of the classic Bulk API
+    private static final String SALESFORCE_BULK_API = "SALESFORCE_BULK_API";
+
+    // the open Bulk API 2.0 jobs by id
+    private static final ConcurrentMap<String, BulkIngestJob> _ingestJobs = new ConcurrentHashMap<>();
+
+    // 'false' to upload bulk batches uncompressed
+    private static final String SALESFORCE_BULK_GZIP = "SALESFORCE_BULK_GZIP";
+
+    // the id of a created batch, in a JSON or XML batch info
+    private static final Pattern BATCH_ID = Pattern.compile("(?:\"id\"\\s*:\\s*\"|<id>)(\\w+)");
+
+    // bytes of bulk batches before and after compression, since startup
+    private static final AtomicLong _batchBytes = new AtomicLong();
+    private static final AtomicLong _batchGzipBytes = new AtomicLong();
+
+    // for the REST calls the WSC connections don't cover, uploads can be up to 150 MB
+    private static final OkHttpClient _http = new OkHttpClient();
+
+    static
+    {
+        _http.setConnectTimeout(30, TimeUnit.SECONDS);
+        _http.setWriteTimeout(10, TimeUnit.MINUTES);
+        _http.setReadTimeout(10, TimeUnit.MINUTES);
+    }
+
     private boolean _auditFieldsEnabled = false;	
 
     /**
@@ -72,6 +148,23 @@ public final class SalesforceService
         this.setSessionId(sessionId);
     }
 
+    private SalesforceService()
+    {
+    }
+
+    /**
+     * Returns a new service for the same org & session, with its own (not yet created) connections. Use this when
+     * another thread needs to call Salesforce alongside this instance.
+     */
+    public SalesforceService duplicate()
+    {
+        SalesforceService copy = new SalesforceService();
+        copy._serverUrl = _serverUrl;
+        copy._sessionId = _sessionId;
+        copy._auditFieldsEnabled = _auditFieldsEnabled;
+        return copy;
+    }
+
     public void setServerUrl(String url)
     {
         // API needs an endpoint URL like this:
@@ -91,18 +184,31 @@ public final class SalesforceService
         return _serverUrl;
     }
 
+    /**
+     * Returns the org id, which is the last part of the server URL.
+     */
+    public String getOrgId()
+    {
+        return _serverUrl.substring(_serverUrl.lastIndexOf('/') + 1);
+    }
+
     public void setQueues() throws Exception
     {
-    	_queues = SalesforceUtil.getQueueName2Id(this);
+        // drop the cached queues of this org and load them again
+        SalesforceUtil.invalidateQueueName2Id(this);
+        SalesforceUtil.getQueueName2Id(this);
     }
     
     public Map<String, String> getQueues() throws Exception
     {
-    	if(_queues == null)
-    	{
-    		setQueues();
-    	}
-    	return _queues;
+        // cached per org, see SalesforceUtil.getQueueName2Id()
+        return SalesforceUtil.getQueueName2Id(this);
+    }
+
+    public Map<String, String> getQueues(String queueName) throws Exception
+    {
+        // loaded again when the queue isn't in the cached map
+        return SalesforceUtil.getQueueName2Id(this, queueName);
     }
     
     public String getMetadataUrl()
@@ -352,47 +458,99 @@ public final class SalesforceService
 
     public DeployResponse deploy()
         throws ConnectionException, DeployException, AsyncApiException
+    {
+        return deploy(false);
+    }
+
+    /**
+     * Create or update the metadata items added since the last deploy. The items are sent to 'upsertMetadata()' 10 at
+     * a time (the most it takes per call), several calls at once, each thread with its own metadata connection. The
+     * custom fields of an object are sent one batch after the other, as changes to the same object at the same time
+     * fail on its lock.
+     *
+     * @param force
+     *            Deploy every item, instead of only those missing from the org (see
+     *            {@link #withoutExisting(List)}).
+     * @return The counts, and an error per failed component naming it (a batch that failed as a whole reports each
+     *         of its components).
+     */
+    public DeployResponse deploy(boolean force)
+        throws ConnectionException, DeployException, AsyncApiException
     {
         // declare the return variable
         DeployResponse dr = new DeployResponse();
 
+        // leave out what an earlier run already created
+        if (_metadata != null && !_metadata.isEmpty() && !force)
+        {
+            _metadata = withoutExisting(_metadata);
+        }
+
         // check if the metadata queue is empty
         if (_metadata != null && !_metadata.isEmpty())
         {
-            // ensure a metadata connection has been initialized
-            createMetadataConnection();
-
-            // declare the variable that will hold each batch of metadata
-            List<Metadata> batch = new ArrayList<>();
-
-            // loop through the items and every 10 items call create
-            for (Metadata m : _metadata)
+            // the custom fields of each object in one chain of batches, every other batch of 10 on its own
+            Map<String, List<Metadata>> fieldsByObject = new LinkedHashMap<>();
+            List<Metadata> others = new ArrayList<>();
+            for (Metadata item : _metadata)
             {
-                // add the item
-                batch.add(m);
-
-                // check if we have reached 10 items
-                if (batch.size() == 10)
+                if (item instanceof CustomField && item.getFullName().indexOf('.') > 0)
                 {
-                    // call the 'createMetadata' API
-                    dr = handleMetadataResponse(dr,
-                        getMetadataConnection().upsertMetadata(batch.toArray(new Metadata[] {})));
-
-                    // clear the batch
-                    batch.clear();
+                    // e.g. 'Case.Desk_Id__c'
+                    fieldsByObject.computeIfAbsent(item.getFullName().substring(0, item.getFullName().indexOf('.')),
+                        k -> new ArrayList<>()).add(item);
+                }
+                else
+                {
+                    others.add(item);
                 }
             }
 
-            // check there was a remainder of metadata
-            if (!batch.isEmpty())
+            List<List<Metadata[]>> chains = new ArrayList<>();
+            for (List<Metadata> fields : fieldsByObject.values())
+            {
+                chains.add(toBatches(fields));
+            }
+            for (Metadata[] batch : toBatches(others))
             {
-                // call the 'createMetadata' API
+                chains.add(Arrays.<Metadata[]>asList(batch));
+            }
+            Utils.log("[METADATA] Deploying [" + _metadata.size() + "] items in [" + chains.size() + "] chains.");
 
-                dr = handleMetadataResponse(dr,
-                    getMetadataConnection().upsertMetadata(batch.toArray(new Metadata[] {})));
+            ExecutorService executor = ExecutorUtil.newBoundedExecutor("metadata-deploy",
+                Math.min(chains.size(), getenvInt(SALESFORCE_METADATA_THREADS, 4)));
+            ThreadLocal<SalesforceService> services = ThreadLocal.withInitial(this::duplicate);
+            try
+            {
+                List<Future<DeployResponse>> results = new ArrayList<>();
+                for (List<Metadata[]> chain : chains)
+                {
+                    results.add(executor.submit(() -> services.get().deployBatches(chain)));
+                }
 
-                // clear the batch
-                batch.clear();
+                // wait for every chain, a failed batch doesn't stop the others
+                for (Future<DeployResponse> result : results)
+                {
+                    DeployResponse chainResponse = result.get();
+                    dr.addErrors(chainResponse.getErrors());
+                    dr.incrementErrorCount(chainResponse.getErrorCount());
+                    dr.incrementSuccessCount(chainResponse.getSuccessCount());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new ConnectionException("Interrupted while deploying metadata.", e);
+            }
+            catch (ExecutionException e)
+            {
+                // deployBatches() reports the failed batches itself, only an unexpected error gets here
+                throw new ConnectionException("Error deploying metadata: " + e.getCause().getMessage(), e.getCause());
+            }
+            finally
+            {
+                executor.shutdown();
             }
         }
 
@@ -406,6 +564,160 @@ public final class SalesforceService
         return dr;
     }
 
+    private static List<Metadata[]> toBatches(List<Metadata> items)
+    {
+        List<Metadata[]> batches = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += 10)
+        {
+            batches.add(items.subList(i, Math.min(i + 10, items.size())).toArray(new Metadata[] {}));
+        }
+        return batches;
+    }
+
+    /**
+     * Deploy the batches one after the other. A batch that fails as a whole is reported as an error per component and
+     * the next batch is still deployed.
+     */
+    private DeployResponse deployBatches(List<Metadata[]> batches) throws DeployException
+    {
+        DeployResponse dr = new DeployResponse();
+        for (Metadata[] batch : batches)
+        {
+            try
+            {
+                createMetadataConnection();
+                handleMetadataResponse(dr, getMetadataConnection().upsertMetadata(batch));
+            }
+            catch (ConnectionException | AsyncApiException e)
+            {
+                Utils.log("[METADATA] Batch of [" + batch.length + "] items failed: " + e);
+                for (Metadata item : batch)
+                {
+                    dr.addError(String.format("Component: [%s]\nMessage: [%s]\n", item.getFullName(),
+                        (e.getMessage() == null ? e.toString() : e.getMessage())));
+                    dr.incrementErrorCount();
+                }
+            }
+        }
+        return dr;
+    }
+
+    /**
+     * Returns the items that are not in the org yet: custom fields and queues that don't exist, and the field
+     * permissions of a permission set that aren't granted yet. Picklist fields are always kept, as their values may
+     * have changed since they were created.
+     */
+    private List<Metadata> withoutExisting(List<Metadata> items) throws ConnectionException, AsyncApiException
+    {
+        createMetadataConnection();
+
+        Set<String> fields = null;
+        Set<String> queues = null;
+        List<Metadata> missing = new ArrayList<>();
+        for (Metadata item : items)
+        {
+            if (item instanceof CustomField && ((CustomField) item).getType() != FieldType.Picklist)
+            {
+                if (fields == null)
+                {
+                    fields = listMetadataNames("CustomField");
+                }
+                if (fields.contains(item.getFullName().toLowerCase()))
+                {
+                    continue;
+                }
+            }
+            else if (item instanceof Queue)
+            {
+                if (queues == null)
+                {
+                    queues = listMetadataNames("Queue");
+                }
+                if (queues.contains(item.getFullName().toLowerCase()))
+                {
+                    continue;
+                }
+            }
+            else if (item instanceof PermissionSet)
+            {
+                item = withoutGrantedPermissions((PermissionSet) item);
+                if (item == null)
+                {
+                    continue;
+                }
+            }
+            missing.add(item);
+        }
+
+        Utils.log("[METADATA] [" + (items.size() - missing.size()) + "] of [" + items.size()
+            + "] items are already in the org.");
+        return missing;
+    }
+
+    /**
+     * Returns the full names of the org's metadata of a type (e.g. 'Case.Desk_Foo__c' for 'CustomField'), in lower
+     * case.
+     */
+    private Set<String> listMetadataNames(String type) throws ConnectionException
+    {
+        ListMetadataQuery query = new ListMetadataQuery();
+        query.setType(type);
+
+        Set<String> names = new HashSet<>();
+        FileProperties[] properties = _mConn.listMetadata(new ListMetadataQuery[] { query }, METADATA_API_VERSION);
+        if (properties != null)
+        {
+            for (FileProperties property : properties)
+            {
+                names.add(property.getFullName().toLowerCase());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the permission set with only the field permissions the org's permission set doesn't grant yet, or null
+     * if it grants them all.
+     */
+    private PermissionSet withoutGrantedPermissions(PermissionSet permissionSet) throws ConnectionException
+    {
+        Metadata[] records = _mConn.readMetadata("PermissionSet", new String[] { permissionSet.getFullName() })
+            .getRecords();
+        if (records == null || records.length == 0 || records[0] == null || records[0].getFullName() == null
+            || permissionSet.getFieldPermissions() == null)
+        {
+            // a new permission set
+            return permissionSet;
+        }
+
+        Set<String> granted = new HashSet<>();
+        PermissionSetFieldPermissions[] existing = ((PermissionSet) records[0]).getFieldPermissions();
+        for (PermissionSetFieldPermissions permission : (existing == null ? new PermissionSetFieldPermissions[0]
+            : existing))
+        {
+            if (permission.isEditable() && permission.isReadable())
+            {
+                granted.add(permission.getField().toLowerCase());
+            }
+        }
+
+        List<PermissionSetFieldPermissions> missing = new ArrayList<>();
+        for (PermissionSetFieldPermissions permission : permissionSet.getFieldPermissions())
+        {
+            if (!granted.contains(permission.getField().toLowerCase()))
+            {
+                missing.add(permission);
+            }
+        }
+
+        if (missing.isEmpty())
+        {
+            return null;
+        }
+        permissionSet.setFieldPermissions(missing.toArray(new PermissionSetFieldPermissions[missing.size()]));
+        return permissionSet;
+    }
+
     private static DeployResponse handleMetadataResponse(DeployResponse dr,
         com.sforce.soap.metadata.UpsertResult[] results) throws DeployException
     {
@@ -419,8 +731,9 @@ public final class SalesforceService
             {
                 for (com.sforce.soap.metadata.Error e : result.getErrors())
                 {
-                    dr.addError(String.format("Status Code: [%s]\nMessage: [%s]\nFields: [%s]\n",
-                        e.getStatusCode().name(), e.getMessage(), String.join(", ", e.getFields())));
+                    dr.addError(String.format("Component: [%s]\nStatus Code: [%s]\nMessage: [%s]\nFields: [%s]\n",
+                        result.getFullName(), e.getStatusCode().name(), e.getMessage(),
+                        String.join(", ", e.getFields())));
                     dr.incrementErrorCount();
                 }
             }
@@ -577,12 +890,24 @@ public final class SalesforceService
     // Bulk API example code:
     // https://developer.salesforce.com/docs/atlas.en-us.api_asynch.meta/api_asynch/asynch_api_code_walkthrough.htm
 
+    /**
+     * Create a bulk job. With SALESFORCE_BULK_API=2 this is a Bulk API 2.0 ingest job, which takes any number of
+     * records and is batched by Salesforce; see {@link BulkIngestJob}.
+     */
     public String createBulkJob(String sobjectType, String upsertField,
         OperationEnum op) throws AsyncApiException
     {
         Utils.log("[BULK] Creating Bulk Job:" + "\n\tObject:       [" + sobjectType + "]" + "\n\tUnique Field: ["
             + upsertField + "]" + "\n\tOperation:    [" + op + "]");
 
+        if ("2".equals(getenv(SALESFORCE_BULK_API)))
+        {
+            BulkIngestJob ingestJob = new BulkIngestJob(getServerUrl(), getSessionId(), sobjectType, upsertField, op);
+            String jobId = ingestJob.open();
+            _ingestJobs.put(jobId, ingestJob);
+            return jobId;
+        }
+
         // create a connection
         createBulkConnection();
 
@@ -592,7 +917,7 @@ public final class SalesforceService
         job.setOperation(op);
         job.setConcurrencyMode(ConcurrencyMode.Serial);
         // JSON available in Spring '16
-        job.setContentType(ContentType.JSON);
+        job.setContentType(getBulkContentType());
         if (upsertField != null)
         {
             job.setExternalIdFieldName(upsertField);
@@ -605,26 +930,186 @@ public final class SalesforceService
         return job.getId();
     }
 
-    public void addBatchToJob(String jobId, List<Map<String, Object>> records)
+    /**
+     * Submit records to a bulk job.
+     *
+     * @return The id of the batch, null for a Bulk API 2.0 job (Salesforce makes the batches).
+     */
+    public String addBatchToJob(String jobId, List<Map<String, Object>> records)
         throws UnsupportedEncodingException, AsyncApiException
     {
         Utils.log("[BULK] Adding [" + records.size() + "] records to job [" + jobId + "].");
 
+        BulkIngestJob ingestJob = _ingestJobs.get(jobId);
+        if (ingestJob != null)
+        {
+            ingestJob.add(records);
+            return null;
+        }
+
         // convert the records into a byte stream
-        ByteArrayInputStream jsonStream = new ByteArrayInputStream(JsonUtil.toJson(records).getBytes("UTF-8"));
+        ContentType contentType = getBulkContentType();
+        byte[] batch = (contentType == ContentType.CSV ? CsvUtil.toCsv(records)
+            : JsonUtil.toJson(records).getBytes("UTF-8"));
+
+        // the connection only compresses responses, so compressed batches are sent directly
+        if (!"false".equalsIgnoreCase(getenv(SALESFORCE_BULK_GZIP)) && !"1".equals(getenv(SALESFORCE_TRACE_BULK)))
+        {
+            return createGzipBatch(jobId, contentType, batch);
+        }
+        ByteArrayInputStream batchStream = new ByteArrayInputStream(batch);
 
         JobInfo job = new JobInfo();
         job.setId(jobId);
-        job.setContentType(ContentType.JSON);
+        job.setContentType(contentType);
 
         // submit a batch to the job
-        _bConn.createBatchFromStream(job, jsonStream);
+        return _bConn.createBatchFromStream(job, batchStream).getId();
+    }
+
+    /**
+     * Submit a batch to a bulk job with a gzip compressed body.
+     *
+     * @return The id of the batch.
+     */
+    private String createGzipBatch(String jobId, ContentType contentType, byte[] batch) throws AsyncApiException
+    {
+        try
+        {
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(batch.length / 4);
+            try (GZIPOutputStream out = new GZIPOutputStream(gzip))
+            {
+                out.write(batch);
+            }
+
+            long total = _batchBytes.addAndGet(batch.length);
+            long totalGzip = _batchGzipBytes.addAndGet(gzip.size());
+            Utils.log(String.format("[BULK] Batch compressed from [%d] to [%d] KB (%d%%), [%d%%] since startup.",
+                batch.length / 1024, gzip.size() / 1024, 100L * gzip.size() / Math.max(1, batch.length),
+                100L * totalGzip / Math.max(1, total)));
+
+            Request request = new Request.Builder().url(getBulkEndpoint() + "/job/" + jobId + "/batch")
+                .header("X-SFDC-Session", getSessionId())
+                .header("Content-Encoding", "gzip")
+                .post(RequestBody.create(MediaType.parse((contentType == ContentType.CSV ? "text/csv"
+                    : "application/json") + "; charset=UTF-8"), gzip.toByteArray()))
+                .build();
+            Response response = _http.newCall(request).execute();
+            String body = response.body().string();
+            Matcher batchId = BATCH_ID.matcher(body);
+            if (!response.isSuccessful() || !batchId.find())
+            {
+                throw new AsyncApiException("Could not add batch to job [" + jobId + "] [" + response.code() + "]: "
+                    + body, AsyncExceptionCode.Unknown);
+            }
+            return batchId.group(1);
+        }
+        catch (IOException e)
+        {
+            throw new AsyncApiException("Could not add batch to job [" + jobId + "]: " + e.getMessage(),
+                AsyncExceptionCode.Unknown);
+        }
+    }
+
+    /**
+     * Wait for a bulk batch to finish and return which of its records were saved.
+     *
+     * @param timeoutMillis
+     *            How long to wait for the batch (the batches of a serial job wait for each other).
+     * @return One entry per record in the order they were submitted, true if the record was saved. Null if the batch
+     *         did not finish in time or failed as a whole.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Boolean> getBatchResults(String jobId, String batchId, long timeoutMillis)
+        throws AsyncApiException, IOException, InterruptedException
+    {
+        createBulkConnection();
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ContentType contentType = getBulkContentType();
+        BatchInfo batch = _bConn.getBatchInfo(jobId, batchId, contentType);
+        while (batch.getState() == BatchStateEnum.Queued || batch.getState() == BatchStateEnum.InProgress)
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                Utils.log("[BULK] Gave up waiting for batch [" + batchId + "] of job [" + jobId + "].");
+                return null;
+            }
+            Thread.sleep(BATCH_POLL_MILLIS);
+            batch = _bConn.getBatchInfo(jobId, batchId, contentType);
+        }
+
+        if (batch.getState() != BatchStateEnum.Completed)
+        {
+            Utils.log("[BULK] Batch [" + batchId + "] of job [" + jobId + "] " + batch.getState() + ": "
+                + batch.getStateMessage());
+            return null;
+        }
+
+        List<Boolean> saved = new ArrayList<>();
+        if (contentType == ContentType.CSV)
+        {
+            // read the results, e.g. "Id","Success","Created","Error"
+            try (InputStream in = _bConn.getBatchResultStream(jobId, batchId))
+            {
+                CSVReader reader = new CSVReader(in);
+                List<String> header = reader.nextRecord();
+                int success = (header == null ? -1 : header.indexOf("Success"));
+                List<String> row;
+                while (success >= 0 && (row = reader.nextRecord()) != null)
+                {
+                    saved.add(Boolean.parseBoolean(row.get(success)));
+                }
+            }
+            return saved;
+        }
+
+        // read the results, e.g. [{"success":true,"created":true,"id":"500...","errors":[]}, ...]
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try (InputStream in = _bConn.getBatchResultStream(jobId, batchId))
+        {
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+            {
+                json.write(buffer, 0, n);
+            }
+        }
+
+        for (Map<String, Object> result : (List<Map<String, Object>>) JsonUtil.fromJson(json.toString("UTF-8"),
+            List.class))
+        {
+            saved.add(Boolean.TRUE.equals(result.get("success")));
+        }
+        return saved;
     }
 
     public void closeBulkJob(String jobId) throws AsyncApiException
+    {
+        closeBulkJob(jobId, null);
+    }
+
+    /**
+     * Close a bulk job.
+     *
+     * @param onResults
+     *            Called with true once every record of a Bulk API 2.0 job was saved, false if any failed or the results
+     *            couldn't be read (may be null). Not called for a Bulk API 1.0 job, whose results are read per batch.
+     */
+    public void closeBulkJob(String jobId, Consumer<Boolean> onResults) throws AsyncApiException
     {
         Utils.log("[BULK] Closing Bulk Job: [" + jobId + "]");
 
+        if ("2".equals(getenv(SALESFORCE_BULK_API)))
+        {
+            // uploads what's left, the results are logged once the job is done
+            BulkIngestJob ingestJob = _ingestJobs.remove(jobId);
+            if (ingestJob != null)
+            {
+                ingestJob.close(onResults);
+            }
+            return;
+        }
+
         JobInfo job = new JobInfo();
         job.setId(jobId);
         job.setState(JobStateEnum.Closed);
@@ -635,12 +1120,39 @@ public final class SalesforceService
         _bConn.closeJob(jobId);
     }
 
+    /**
+     * Abort a job the migration failed half way through. Only a Bulk API 2.0 job is aborted, as it holds the records
+     * added to it until it is closed; the batches of a Bulk API 1.0 job are already processed as they are added.
+     */
+    public void abortBulkJob(String jobId)
+    {
+        BulkIngestJob ingestJob = (jobId == null ? null : _ingestJobs.remove(jobId));
+        if (ingestJob != null)
+        {
+            ingestJob.abort();
+        }
+    }
+
+    /**
+     * Returns true if the records added to the job only reach Salesforce once it is closed (a Bulk API 2.0 job).
+     */
+    public boolean isUploadedOnClose(String jobId)
+    {
+        return (jobId != null && _ingestJobs.containsKey(jobId));
+    }
+
     /*
      * Check to see if a valid job exists in Salesforce Valid job is less than 12 hours old
      */
     public boolean createNewJob(String jobId) throws AsyncApiException
     {
-        JobInfo job = _bConn.getJobStatus(jobId, ContentType.JSON);
+        // a Bulk API 2.0 job has no batch limit and opens new jobs itself when it gets big
+        if (_ingestJobs.containsKey(jobId))
+        {
+            return false;
+        }
+
+        JobInfo job = _bConn.getJobStatus(jobId, getBulkContentType());
         Utils.log("[BULK] Getting Bulk Job Status: [" + jobId + "]");
         Calendar cal = job.getCreatedDate();
 
@@ -668,7 +1180,7 @@ public final class SalesforceService
         QueryResult qr = _pConn.query(query);
 
         // put the results into my return list
-        results = Arrays.asList(qr.getRecords());
+        results.addAll(Arrays.asList(qr.getRecords()));
 
         // check if the query is done
         while (queryMore && !qr.isDone())
@@ -688,6 +1200,117 @@ public final class SalesforceService
         return results;
     }
 
+    /**
+     * Run a query and iterate its records without holding them all in memory. The next page of results is retrieved
+     * in the background while the current one is processed.
+     */
+    public RecordIterator queryIterator(String query) throws ConnectionException
+    {
+        Utils.log("[QUERY] " + query);
+        // create connection
+        createPartnerConnection();
+
+        // the first page is retrieved right away, the next ones with a connection of their own
+        return new QueryIterator(duplicate(), _pConn.query(query));
+    }
+
+    /**
+     * Same as {@link #queryIterator(String)}, as a stream.
+     */
+    public Stream<SObject> queryStream(String query) throws ConnectionException
+    {
+        RecordIterator records = queryIterator(query);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records,
+            Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(records::close);
+    }
+
+    /**
+     * Run a query as a Bulk API query job with PK chunking: Salesforce splits the job into batches of an Id range each,
+     * the batches are downloaded (several at a time) as soon as they complete and their records streamed to the
+     * caller. Much faster for millions of records, but the job takes a few seconds to start, so only use it for large
+     * scans. The field values are all strings (null for empty values) and ORDER BY isn't supported.
+     *
+     * @param sobjectType
+     *            The object queried, e.g. 'User'.
+     */
+    public RecordIterator bulkQueryIterator(String sobjectType, String query) throws AsyncApiException
+    {
+        Utils.log("[BULK] Query: " + query);
+
+        // the chunking header is sent with every request of the connection, so the job gets a connection of its own
+        SalesforceService sf = duplicate();
+        sf.createBulkConnection();
+        sf._bConn.addHeader(PK_CHUNKING_HEADER, "chunkSize=" + getenvInt(SALESFORCE_PK_CHUNK_SIZE, 100000));
+
+        JobInfo job = new JobInfo();
+        job.setObject(sobjectType);
+        job.setOperation(OperationEnum.query);
+        job.setConcurrencyMode(ConcurrencyMode.Parallel);
+        job.setContentType(ContentType.CSV);
+        job = sf._bConn.createJob(job);
+
+        String batchId;
+        try
+        {
+            batchId = sf._bConn.createBatchFromStream(job,
+                new ByteArrayInputStream(query.getBytes(StandardCharsets.UTF_8))).getId();
+        }
+        finally
+        {
+            // no more batches, the job still runs
+            sf._bConn.closeJob(job.getId());
+        }
+
+        return new BulkQueryIterator(sf._bConn, job.getId(), batchId, sobjectType,
+            getenvInt(SALESFORCE_BULK_QUERY_THREADS, 4));
+    }
+
+    /**
+     * Iterate the records of a query that may return a large number of them: through a Bulk API query job when
+     * SALESFORCE_BULK_QUERY=true, with {@link #queryIterator(String)} otherwise.
+     *
+     * @param sobjectType
+     *            The object queried, e.g. 'User'.
+     */
+    public RecordIterator scan(String sobjectType, String query) throws ConnectionException, AsyncApiException
+    {
+        return (Boolean.parseBoolean(getenv(SALESFORCE_BULK_QUERY)) ? bulkQueryIterator(sobjectType, query)
+            : queryIterator(query));
+    }
+
+    /**
+     * Returns the content type of the batches of bulk jobs, JSON unless SALESFORCE_BULK_CONTENT_TYPE=CSV.
+     */
+    private static ContentType getBulkContentType()
+    {
+        return ("CSV".equalsIgnoreCase(getenv(SALESFORCE_BULK_CONTENT_TYPE)) ? ContentType.CSV : ContentType.JSON);
+    }
+
+    /**
+     * Returns the HTTP client for the REST calls the WSC connections don't cover.
+     */
+    static OkHttpClient getHttpClient()
+    {
+        return _http;
+    }
+
+    private static int getenvInt(String name, int defaultValue)
+    {
+        return (getenv(name) == null ? defaultValue : Integer.parseInt(getenv(name)));
+    }
+
+    /**
+     * Retrieve the next page of a query.
+     */
+    QueryResult queryMore(String queryLocator) throws ConnectionException
+    {
+        Utils.log("[QUERY] Calling 'queryMore()' to retrieve more results...");
+        // create connection
+        createPartnerConnection();
+
+        return _pConn.queryMore(queryLocator);
+    }
+
     public void setAuditFieldsEnabled(Boolean valueOf)
     {
         this._auditFieldsEnabled = valueOf;
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.scmt.model.ErrorResponse;
+import com.salesforce.scmt.model.Submission;
+import com.salesforce.scmt.utils.ExecutorUtil;
+import com.salesforce.scmt.utils.Utils;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Runs the work of a submitted request (status updates in Salesforce, publishing to RabbitMQ) in the background, so
+ * the request is answered with a 202 and a job id right away. The progress of the submissions is kept in this process
+ * and served by '/desk/jobs/:id' for an hour after they finished.
+ */
+public final class SubmissionService
+{
+    // the work is mostly waiting on Salesforce and RabbitMQ
+    private static final int SUBMISSION_THREADS = 4;
+
+    private static final long RETAIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final ConcurrentMap<String, Submission> _submissions = new ConcurrentHashMap<>();
+    private static ExecutorService _executor;
+
+    /**
+     * The work of a submission, queuing a migration for the workers.
+     */
+    @FunctionalInterface
+    public interface Work
+    {
+        void run() throws Exception;
+    }
+
+    /**
+     * Called when the work of a submission failed, e.g. to mark the migration Failed.
+     */
+    @FunctionalInterface
+    public interface FailureHandler
+    {
+        void failed(Exception e) throws Exception;
+    }
+
+    /**
+     * Private constructor for utility class.
+     */
+    private SubmissionService() {}
+
+    /**
+     * Start the work of a request in the background and answer it with a 202.
+     *
+     * @param type
+     *            What was submitted, e.g. 'MigrateData'.
+     * @param migrationId
+     *            The Desk_Migration__c id, may be null.
+     * @param onFailure
+     *            Called if the work fails, may be null.
+     * @return The response body: the job id and status.
+     */
+    public static Object submit(String type, String migrationId, Work work, FailureHandler onFailure, Response res)
+    {
+        evictFinished();
+
+        Submission submission = new Submission(type, migrationId);
+        _submissions.put(submission.getId(), submission);
+        getExecutor().execute(() -> run(submission, work, onFailure));
+
+        res.status(202);
+        Map<String, Object> response = new TreeMap<>();
+        response.put("job_id", submission.getId());
+        response.put("status", submission.getStatus());
+        return response;
+    }
+
+    /**
+     * Returns the progress of a submission, for GET '/desk/jobs/:id'.
+     */
+    public static Object getSubmission(Request req, Response res)
+    {
+        Submission submission = _submissions.get(req.params(":id"));
+        if (submission == null)
+        {
+            res.status(404);
+            return new ErrorResponse("NotFound", "Unknown job [%s].", req.params(":id"));
+        }
+        return submission.toMap();
+    }
+
+    private static void run(Submission submission, Work work, FailureHandler onFailure)
+    {
+        submission.setStatus(Submission.STATUS_RUNNING, null);
+        try
+        {
+            work.run();
+            submission.setStatus(Submission.STATUS_QUEUED, null);
+        }
+        catch (Exception e)
+        {
+            Utils.log("[SUBMIT] " + submission.getType() + " [" + submission.getId() + "] failed: " + e.getMessage());
+            Utils.logException(e);
+            submission.setStatus(Submission.STATUS_FAILED, e.getMessage());
+
+            if (onFailure != null)
+            {
+                try
+                {
+                    onFailure.failed(e);
+                }
+                catch (Exception fe)
+                {
+                    Utils.logException(fe);
+                }
+            }
+        }
+    }
+
+    private static void evictFinished()
+    {
+        for (Iterator<Submission> it = _submissions.values().iterator(); it.hasNext();)
+        {
+            if (it.next().isFinishedBefore(RETAIN_MILLIS))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (_executor == null)
+        {
+            _executor = ExecutorUtil.newBoundedExecutor("submissions", SUBMISSION_THREADS);
+        }
+        return _executor;
+    }
+}
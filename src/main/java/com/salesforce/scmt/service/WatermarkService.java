@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.salesforce.scmt.utils.SalesforceConstants.DeskMessageFields;
+import com.salesforce.scmt.utils.Utils;
+
+/**
+ * High-water marks of the incremental (delta) sync, one per Desk.com site and object type. A watermark is the
+ * 'updated_at' timestamp (and the id, to break ties between records updated in the same second) of the last record a
+ * sync migrated. The next sync only retrieves records updated at or after it.
+ * <p>
+ * Watermarks are stored in the org as Desk_Message__c records named 'Desk-Watermark-[object]-[site]', with the values
+ * as JSON in the Data__c field, so they survive dyno restarts and every worker sees the same value.
+ * <p>
+ * A sync moves the watermark as the bulk results confirm its records saved. A batch that failed holds the watermark of
+ * its sync before its first record ('Desk-Watermark-Hold-[object]-[site]'): the next sync starts from the lower of
+ * the two, even when a later batch was confirmed first, so the failed records are retrieved again.
+ */
+public final class WatermarkService
+{
+    public static final String NAME_PREFIX = "Desk-Watermark-";
+    public static final String HOLD_PREFIX = "Desk-Watermark-Hold-";
+
+    private static final String KEY_UPDATED_AT = "updated_at";
+    private static final String KEY_ID = "id";
+    private static final String KEY_SYNC = "sync";
+
+    /**
+     * Private constructor for utility class.
+     */
+    private WatermarkService() {}
+
+    /**
+     * Returns the watermark of the last sync of the given object, or null if it was never synced.
+     *
+     * @param deskService
+     *            The Desk.com service of the migration.
+     * @param object
+     *            The object type, e.g. 'Case'.
+     */
+    public static Watermark load(DeskService deskService, String object) throws Exception
+    {
+        SalesforceService sfService = deskService.getSalesforceService();
+        String site = deskService.getClient().getHostname();
+        Map<String, Object> data = DeskMessageStore.read(sfService, getName(NAME_PREFIX, object, site));
+
+        if (data == null)
+        {
+            Utils.log("[DELTA] No watermark for [" + object + "], running a full sync.");
+            return null;
+        }
+
+        Watermark watermark = toWatermark(data);
+        Utils.log("[DELTA] Watermark for [" + object + "]: " + watermark);
+
+        // records of the sync that set the watermark failed, start from the first of them
+        Map<String, Object> hold = (data.get(KEY_SYNC) == null ? null
+            : DeskMessageStore.read(sfService, getName(HOLD_PREFIX, object, site)));
+        if (hold != null && data.get(KEY_SYNC).equals(hold.get(KEY_SYNC)) && watermark.isAfter(toWatermark(hold)))
+        {
+            watermark = toWatermark(hold);
+            Utils.log("[DELTA] Records after " + watermark + " failed in the last sync, starting from there.");
+        }
+        return watermark;
+    }
+
+    /**
+     * Store the watermark of the given object.
+     *
+     * @param deskService
+     *            The Desk.com service of the migration.
+     * @param object
+     *            The object type, e.g. 'Case'.
+     * @param watermark
+     *            The watermark.
+     */
+    public static void save(DeskService deskService, String object, Watermark watermark) throws Exception
+    {
+        save(deskService.getSalesforceService(), deskService.getClient().getHostname(), object, null, watermark);
+    }
+
+    /**
+     * Store the watermark a sync reached.
+     *
+     * @param sfService
+     *            The Salesforce service of the migration.
+     * @param site
+     *            The Desk.com site hostname.
+     * @param object
+     *            The object type, e.g. 'Case'.
+     * @param sync
+     *            Identifies the sync, e.g. the time it started at (may be null).
+     * @param watermark
+     *            The watermark.
+     */
+    public static void save(SalesforceService sfService, String site, String object, String sync,
+        Watermark watermark) throws Exception
+    {
+        Utils.log("[DELTA] Saving watermark for [" + object + "]: " + watermark);
+        DeskMessageStore.write(sfService, getName(NAME_PREFIX, object, site), DeskMessageFields.StatusConverted,
+            toData(watermark, sync));
+    }
+
+    /**
+     * Keep the next sync from starting after the given watermark, because records of the sync after it failed. The
+     * lowest watermark held by the sync is kept.
+     *
+     * @param sfService
+     *            The Salesforce service of the migration.
+     * @param site
+     *            The Desk.com site hostname.
+     * @param object
+     *            The object type, e.g. 'Case'.
+     * @param sync
+     *            Identifies the sync, e.g. the time it started at.
+     * @param watermark
+     *            The watermark before the first record that failed.
+     */
+    public static void hold(SalesforceService sfService, String site, String object, String sync,
+        Watermark watermark) throws Exception
+    {
+        String name = getName(HOLD_PREFIX, object, site);
+        Map<String, Object> previous = DeskMessageStore.read(sfService, name);
+        if (previous != null && sync.equals(previous.get(KEY_SYNC)) && !toWatermark(previous).isAfter(watermark))
+        {
+            return;
+        }
+
+        Utils.log("[DELTA] Holding watermark for [" + object + "] at: " + watermark);
+        DeskMessageStore.write(sfService, name, DeskMessageFields.StatusConverted, toData(watermark, sync));
+    }
+
+    private static Map<String, Object> toData(Watermark watermark, String sync)
+    {
+        Map<String, Object> data = new HashMap<>();
+        data.put(KEY_UPDATED_AT, watermark.getUpdatedAt());
+        data.put(KEY_ID, watermark.getId());
+        if (sync != null)
+        {
+            data.put(KEY_SYNC, sync);
+        }
+        return data;
+    }
+
+    private static Watermark toWatermark(Map<String, Object> data)
+    {
+        return new Watermark(((Number) data.get(KEY_UPDATED_AT)).intValue(),
+            (data.get(KEY_ID) == null ? 0 : ((Number) data.get(KEY_ID)).intValue()));
+    }
+
+    private static String getName(String prefix, String object, String site)
+    {
+        return DeskMessageStore.getName(prefix, object, site);
+    }
+
+    /**
+     * The 'updated_at' timestamp (in seconds) and id of the last record migrated.
+     */
+    public static final class Watermark
+    {
+        private final int _updatedAt;
+        private final int _id;
+
+        public Watermark(int updatedAt, int id)
+        {
+            _updatedAt = updatedAt;
+            _id = id;
+        }
+
+        public int getUpdatedAt()
+        {
+            return _updatedAt;
+        }
+
+        public int getId()
+        {
+            return _id;
+        }
+
+        /**
+         * Returns true if a record with the given timestamp and id was already migrated by the sync that set this
+         * watermark.
+         */
+        public boolean covers(int updatedAt, int id)
+        {
+            return updatedAt < _updatedAt || (updatedAt == _updatedAt && id <= _id);
+        }
+
+        /**
+         * Returns true if this watermark is past the given one.
+         */
+        public boolean isAfter(Watermark other)
+        {
+            return !other.covers(_updatedAt, _id);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[updated_at: " + _updatedAt + ", id: " + _id + "]";
+        }
+    }
+}
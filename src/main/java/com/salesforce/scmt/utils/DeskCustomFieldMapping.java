@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.desk.java.apiclient.model.CustomField;
+import com.desk.java.apiclient.model.CustomFieldDataType;
+
+/**
+ * A Desk.com custom field with everything needed to copy its values to Salesforce worked out once: the API name of
+ * the Salesforce field and the conversion of the Desk string value to the Salesforce field type.
+ */
+public final class DeskCustomFieldMapping
+{
+    private static final Function<String, Object> TO_BOOLEAN = Boolean::valueOf;
+    private static final Function<String, Object> TO_INTEGER = Integer::valueOf;
+    private static final Function<String, Object> TO_STRING = String::valueOf;
+
+    private final CustomField _customField;
+    private final String _sfFieldName;
+    private final Function<String, Object> _converter;
+
+    private DeskCustomFieldMapping(CustomField cf)
+    {
+        _customField = cf;
+        _sfFieldName = "Desk_" + cf.getName() + SalesforceConstants.CF_SUFFIX;
+
+        if (cf.getData().getType() == CustomFieldDataType.BOOLEAN)
+        {
+            _converter = TO_BOOLEAN;
+        }
+        else if (cf.getData().getType() == CustomFieldDataType.INTEGER)
+        {
+            _converter = TO_INTEGER;
+        }
+        else
+        {
+            _converter = TO_STRING;
+        }
+    }
+
+    /**
+     * Returns the Desk.com custom field.
+     */
+    public CustomField getCustomField()
+    {
+        return _customField;
+    }
+
+    /**
+     * Returns the API name of the Salesforce custom field, e.g. 'Desk_foo__c'.
+     */
+    public String getSalesforceFieldName()
+    {
+        return _sfFieldName;
+    }
+
+    /**
+     * Converts the Desk.com value to the type of the Salesforce field.
+     */
+    public Object convert(String value)
+    {
+        return _converter.apply(value);
+    }
+
+    /**
+     * Build the index of the Desk.com custom fields, keyed by the Desk.com field name.
+     *
+     * @param customFields
+     *            The Desk.com custom fields.
+     * @return The unmodifiable index.
+     */
+    public static Map<String, DeskCustomFieldMapping> index(List<CustomField> customFields)
+    {
+        Map<String, DeskCustomFieldMapping> index = new HashMap<>();
+
+        for (CustomField cf : customFields)
+        {
+            // keep the first field with a given name, like the old linear lookup did
+            index.putIfAbsent(cf.getName(), new DeskCustomFieldMapping(cf));
+        }
+
+        return Collections.unmodifiableMap(index);
+    }
+}
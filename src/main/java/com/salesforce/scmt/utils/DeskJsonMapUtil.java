@@ -16,7 +16,6 @@
 package com.salesforce.scmt.utils;
 
 import java.util.*;
-import java.util.function.Predicate;
 import java.util.regex.Matcher;
 
 import com.desk.java.apiclient.model.*;
@@ -49,27 +48,22 @@ public final class DeskJsonMapUtil
         // migrate custom fields
         if (deskCFs != null && !deskCFs.isEmpty())
         {
+            Map<String, DeskCustomFieldMapping> mappings = deskUtil.getDeskCustomFieldMappings();
+
             // key is the field name
-            for (String key : deskCFs.keySet())
+            for (Map.Entry<String, String> deskCF : deskCFs.entrySet())
             {
-                String sfCFkey = "Desk_" + key + SalesforceConstants.CF_SUFFIX;
-                CustomField cf = deskUtil.getDeskCustomField(key);
+                // blank values are not migrated
+                if (deskCF.getValue() == null || deskCF.getValue().isEmpty()) continue;
 
-                if (deskCFs.get(key) == null) continue;
+                // skip fields we don't know about, there is no Salesforce field for them
+                DeskCustomFieldMapping mapping = mappings.get(deskCF.getKey());
+                if (mapping == null) continue;
 
-                if (cf.getData().getType() == CustomFieldDataType.BOOLEAN)
-                    sfCFs.put(sfCFkey, Boolean.valueOf(deskCFs.get(key)));
-                else if (cf.getData().getType() == CustomFieldDataType.INTEGER && deskCFs.get(key) != null) {
-                    sfCFs.put(sfCFkey, Integer.valueOf(deskCFs.get(key)));
-                } else
-                    sfCFs.put(sfCFkey, String.valueOf(deskCFs.get(key)));
+                sfCFs.put(mapping.getSalesforceFieldName(), mapping.convert(deskCF.getValue()));
             }
         }
 
-        sfCFs.values().removeIf(Objects::isNull);
-        Predicate<Object> removePredicate = (Object o) -> String.valueOf(o).isEmpty();
-        sfCFs.values().removeIf(removePredicate);
-
         return sfCFs;
     }
 
@@ -526,6 +520,22 @@ public final class DeskJsonMapUtil
     public static void deskInteractionToSalesforceJsonMaps(DeskUtil deskUtil,
         Map<String, List<Map<String, Object>>> jsonMaps, Interaction[] interactions, DeployResponse deployResponse)
     {
+        deskInteractionToSalesforceJsonMaps(deskUtil, jsonMaps, interactions, deployResponse, null);
+    }
+
+    /**
+     * Converts interaction records into Map's that can be JSON encoded.
+     * @param jsonMaps The Map where the key is the object type, and the value is a list of Map's that will be JSON
+     * encoded later.
+     * @param interactions The array of interaction records.
+     * @param deployResponse The deploy response for logging messages.
+     * @param sources Filled with the interaction id's each Map was made from (an IdentityHashMap, the Map's are
+     * compared by reference), or null.
+     */
+    public static void deskInteractionToSalesforceJsonMaps(DeskUtil deskUtil,
+        Map<String, List<Map<String, Object>>> jsonMaps, Interaction[] interactions, DeployResponse deployResponse,
+        Map<Map<String, Object>, int[]> sources)
+    {
 
         // local variable for holding JSON map temporarily
         Map<String, Object> jsonMap = null;
@@ -560,7 +570,8 @@ public final class DeskJsonMapUtil
                         // ensure object is not null
                         if (jsonMap != null)
                         {
-                            jsonMaps.get(SalesforceConstants.OBJ_EMAIL_MESSAGE).add(jsonMap);
+                            addJsonMaps(jsonMaps.get(SalesforceConstants.OBJ_EMAIL_MESSAGE),
+                                Collections.singletonList(jsonMap), sources, interaction.getId());
                         }
                         break;
                     case TWEET:
@@ -580,13 +591,15 @@ public final class DeskJsonMapUtil
 //                            jsonMaps.get(SalesforceConstants.OBJ_FEED_ITEM).add(jsonMap);
 //                        }
                         // convert the interaction
-                        jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT).addAll(
-                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse));
+                        addJsonMaps(jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT),
+                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse), sources,
+                            interaction.getId());
                         break;
                     case PHONE_CALL:
                         // convert the interaction
-                        jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT).addAll(
-                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse));
+                        addJsonMaps(jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT),
+                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse), sources,
+                            interaction.getId());
                         break;
                     case CHAT_MESSAGE:
                         // check if this is a new case id
@@ -601,8 +614,9 @@ public final class DeskJsonMapUtil
                     case COMMUNITY_ANSWER:
                     case COMMUNITY_QUESTION:
                         // convert the interaction
-                        jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT).addAll(
-                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse));
+                        addJsonMaps(jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT),
+                            deskInteractionToSalesforceComment(deskUtil, interaction, deployResponse), sources,
+                            interaction.getId());
                         break;
                     case UNKNOWN:
                     default:
@@ -618,14 +632,31 @@ public final class DeskJsonMapUtil
             // loop through the cases
             for (Integer caseId : chatInteractionsByCase.keySet())
             {
-                // convert and add to the map
-                jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT).addAll(
-                    deskInteractionToSalesforceChat(deskUtil, chatInteractionsByCase.get(caseId), deployResponse));
+                // convert and add to the map, the chat comments of a case come from all its chat interactions
+                List<Interaction> chat = chatInteractionsByCase.get(caseId);
+                addJsonMaps(jsonMaps.get(SalesforceConstants.OBJ_CASE_COMMENT),
+                    deskInteractionToSalesforceChat(deskUtil, chat, deployResponse), sources,
+                    chat.stream().mapToInt(Interaction::getId).toArray());
             }
         }
 
     }
 
+    private static void addJsonMaps(List<Map<String, Object>> jsonMaps, List<Map<String, Object>> recs,
+        Map<Map<String, Object>, int[]> sources, int... ids)
+    {
+        jsonMaps.addAll(recs);
+
+        // remember which interactions the records came from
+        if (sources != null)
+        {
+            for (Map<String, Object> rec : recs)
+            {
+                sources.put(rec, ids);
+            }
+        }
+    }
+
     public static Map<String, Object> deskInteractionToSalesforceEmail(Interaction interaction, DeployResponse deployResponse)
     {
         // create the map
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.utils;
+
+import static java.lang.System.getenv;
+
+import java.io.File;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.squareup.okhttp.Cache;
+
+/**
+ * Per Desk.com site cache of the metadata every job needs before it can move data: groups, users, custom fields, site
+ * languages and site settings. Entries are kept in memory for the life of the worker and, when 'SCMT_LOCAL_STORE_DIR'
+ * is set, on local disk so a restarted dyno doesn't have to fetch them again. Expired entries are fetched again
+ * through the Desk.com client, whose HTTP cache turns the request into a conditional one when Desk.com sent a
+ * validator for the previous response. Each migration carries the time it was submitted, and metadata fetched
+ * before it is fetched again, so the workers pick up the fields and groups deployed by another process.
+ */
+public final class DeskMetadataCache
+{
+    public static final String GROUPS = "groups";
+    public static final String USERS = "users";
+    public static final String CUSTOM_FIELDS = "custom_fields";
+    public static final String SITE_LANGUAGES = "site_languages";
+    public static final String SITE_SETTINGS = "site_settings";
+
+    private static final String DESK_METADATA_CACHE_SECONDS = "DESK_METADATA_CACHE_SECONDS";
+    private static final long DEFAULT_CACHE_SECONDS = 3600;
+
+    private static final String DESK_HTTP_CACHE_MB = "DESK_HTTP_CACHE_MB";
+    private static final long DEFAULT_HTTP_CACHE_MB = 20;
+
+    /**
+     * Desk.com API paths of the metadata we cache, the responses of every other request are never stored in the HTTP
+     * cache (there is no point filling the disk with pages of cases).
+     */
+    private static final Pattern METADATA_PATHS = Pattern.compile(
+        "^/api/v2/(users|groups(/\\d+/users)?|custom_fields|site_settings|site/languages)$");
+
+    private static final Gson _gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create();
+
+    private static final ConcurrentMap<String, DeskMetadataCache> _sites = new ConcurrentHashMap<>();
+    private static Cache _httpCache;
+    private static boolean _httpCacheCreated = false;
+
+    private final String _key;
+    private final File _dir;
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> _locks = new ConcurrentHashMap<>();
+    private volatile long _notBefore = 0;
+
+    private DeskMetadataCache(String key)
+    {
+        _key = key;
+        _dir = Utils.getLocalStoreDir("desk-metadata");
+    }
+
+    /**
+     * Returns the cache of a Desk.com site. The access token is part of the key, so a different set of credentials
+     * for the same site never sees data fetched with another one.
+     *
+     * @param deskUrl
+     *            The Desk.com site hostname.
+     * @param accessToken
+     *            The OAuth access token used for the site.
+     * @return The cache of the site.
+     */
+    public static DeskMetadataCache forSite(String deskUrl, String accessToken)
+    {
+        String key = sha256(deskUrl.toLowerCase() + "\n" + accessToken);
+        return _sites.computeIfAbsent(key, DeskMetadataCache::new);
+    }
+
+    /**
+     * Returns the cached list, loading it with the loader if it isn't cached or has expired. Only one thread loads a
+     * given list at a time.
+     *
+     * @param name
+     *            The name of the list, e.g. {@link #USERS}.
+     * @param listType
+     *            The type of the list, used to read it back from JSON.
+     * @param loader
+     *            Retrieves the list from Desk.com.
+     * @return A new (modifiable) copy of the list.
+     */
+    public <T> List<T> get(String name, Type listType, Callable<List<T>> loader) throws Exception
+    {
+        Entry entry = getEntry(name);
+        if (entry == null)
+        {
+            synchronized (_locks.computeIfAbsent(name, k -> new Object()))
+            {
+                entry = getEntry(name);
+                if (entry == null)
+                {
+                    Utils.log("[DESK] Loading [" + name + "] metadata.");
+                    entry = new Entry(System.currentTimeMillis(), _gson.toJson(loader.call(), listType));
+                    _entries.put(name, entry);
+                    save(name, entry);
+                }
+            }
+        }
+
+        return _gson.fromJson(entry.json, listType);
+    }
+
+    /**
+     * Treat every list fetched before the given time as expired, e.g. the time the migration was submitted at, which
+     * is after any deploy it depends on. The time never moves back.
+     *
+     * @param millis
+     *            The time, in milliseconds since the epoch.
+     */
+    public synchronized void requireFetchedSince(long millis)
+    {
+        if (millis > _notBefore)
+        {
+            _notBefore = millis;
+        }
+    }
+
+    /**
+     * Drop every cached list of the site, in memory and on disk, including the lists saved by other processes.
+     */
+    public void invalidate()
+    {
+        requireFetchedSince(System.currentTimeMillis());
+        _entries.clear();
+
+        File[] files = (_dir == null ? null : _dir.listFiles((dir, name) -> name.startsWith(_key + "-")));
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the HTTP response cache shared by all Desk.com clients of the process, or null when local storage is
+     * not configured. OkHttp requires a single cache instance per directory.
+     */
+    public static synchronized Cache getHttpCache()
+    {
+        if (!_httpCacheCreated)
+        {
+            _httpCacheCreated = true;
+
+            File dir = Utils.getLocalStoreDir("desk-http");
+            if (dir != null)
+            {
+                long maxMb = (getenv(DESK_HTTP_CACHE_MB) == null ? DEFAULT_HTTP_CACHE_MB
+                    : Long.parseLong(getenv(DESK_HTTP_CACHE_MB)));
+                _httpCache = new Cache(dir, maxMb * 1024 * 1024);
+            }
+        }
+
+        return _httpCache;
+    }
+
+    /**
+     * Returns true if the response of a request to the given path may be stored in the HTTP cache.
+     */
+    public static boolean isCacheablePath(String encodedPath)
+    {
+        return METADATA_PATHS.matcher(encodedPath).matches();
+    }
+
+    private Entry getEntry(String name)
+    {
+        Entry entry = _entries.get(name);
+
+        // not in memory, look on disk (e.g. after a dyno restart)
+        if (entry == null && _dir != null)
+        {
+            entry = load(name);
+            if (entry != null)
+            {
+                _entries.putIfAbsent(name, entry);
+            }
+        }
+
+        return (entry == null || entry.isExpired() || entry.fetched < _notBefore ? null : entry);
+    }
+
+    private Entry load(String name)
+    {
+        File file = getFile(name);
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            return _gson.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), Entry.class);
+        }
+        catch (Exception e)
+        {
+            Utils.log("[DESK] Ignoring unreadable metadata cache file: [" + file.getAbsolutePath() + "]");
+            return null;
+        }
+    }
+
+    private void save(String name, Entry entry)
+    {
+        if (_dir == null)
+        {
+            return;
+        }
+
+        File file = getFile(name);
+        try
+        {
+            // write to a temp file and rename it, so readers never see a partial file
+            File tmp = File.createTempFile(file.getName(), ".tmp", _dir);
+            Files.write(tmp.toPath(), _gson.toJson(entry).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (Exception e)
+        {
+            // the in-memory entry is still good
+            Utils.log("[DESK] Could not save metadata cache file: [" + file.getAbsolutePath() + "] " + e.getMessage());
+        }
+    }
+
+    private File getFile(String name)
+    {
+        return new File(_dir, _key + "-" + name + ".json");
+    }
+
+    private static long getCacheMillis()
+    {
+        return TimeUnit.SECONDS.toMillis(getenv(DESK_METADATA_CACHE_SECONDS) == null ? DEFAULT_CACHE_SECONDS
+            : Long.parseLong(getenv(DESK_METADATA_CACHE_SECONDS)));
+    }
+
+    private static String sha256(String value)
+    {
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)))
+            {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (Exception e)
+        {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry
+    {
+        private long fetched;
+        private String json;
+
+        private Entry(long fetched, String json)
+        {
+            this.fetched = fetched;
+            this.json = json;
+        }
+
+        private boolean isExpired()
+        {
+            return (System.currentTimeMillis() - fetched) > getCacheMillis();
+        }
+    }
+}
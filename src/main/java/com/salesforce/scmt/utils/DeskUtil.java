@@ -30,20 +30,25 @@ import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.InvalidParameterException;
 import java.security.spec.InvalidParameterSpecException;
-import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -82,9 +87,19 @@ import com.desk.java.apiclient.service.UserService;
 import com.desk.java.apiclient.util.StringUtils;
 import com.google.gson.reflect.TypeToken;
 import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.model.MigrationFailedException;
 import com.salesforce.scmt.rabbitmq.RabbitConfiguration;
+import com.salesforce.scmt.rabbitmq.RabbitWorker;
+import com.salesforce.scmt.service.AttachmentRegistry;
+import com.salesforce.scmt.service.CheckpointService;
+import com.salesforce.scmt.service.CheckpointService.Checkpoint;
 import com.salesforce.scmt.service.DeskService;
+import com.salesforce.scmt.service.LoadedIds;
+import com.salesforce.scmt.service.MigrationStatusService;
+import com.salesforce.scmt.service.RecordIterator;
 import com.salesforce.scmt.service.SalesforceService;
+import com.salesforce.scmt.service.WatermarkService;
+import com.salesforce.scmt.service.WatermarkService.Watermark;
 import com.salesforce.scmt.utils.SalesforceConstants.AccountFields;
 import com.salesforce.scmt.utils.SalesforceConstants.AttachmentFields;
 import com.salesforce.scmt.utils.SalesforceConstants.CaseCommentFields;
@@ -109,6 +124,7 @@ import com.squareup.okhttp.Headers;
 import oauth.signpost.exception.OAuthCommunicationException;
 import oauth.signpost.exception.OAuthExpectationFailedException;
 import oauth.signpost.exception.OAuthMessageSignerException;
+import retrofit.Call;
 import retrofit.Response;
 
 public final class DeskUtil
@@ -231,8 +247,6 @@ public final class DeskUtil
     private static final String DESK_HEADER_LIMIT_REMAINING = "X-Rate-Limit-Remaining";
     public static final String DESK_HEADER_LIMIT_RESET = "X-Rate-Limit-Reset";
     
-    private static final SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
-    
     private static final Pattern SINCE_ID_PATTERN = Pattern.compile(".*since_id=(\\d+).*");
 
     // example date: 2014-12-08T04:58:01Z,
@@ -259,9 +273,41 @@ public final class DeskUtil
     private static final int DESK_PAGE_SIZE_FEED = 50;
     private static final int DESK_COMPANY_ID_MAX = 50;
 
+    // checkpoint and watermark name of the interactions, which are migrated and synced by id
+    private static final String WATERMARK_INTERACTION = "Interaction";
+
+    // the defaults below are higher on virtual threads, where a waiting request doesn't hold a platform thread (the
+    // Desk.com rate limit is the real ceiling there, throttled requests wait for the reset and retry)
+
+    // number of Desk groups whose members are retrieved at the same time
+    private static final String DESK_GROUP_MEMBER_THREADS = "DESK_GROUP_MEMBER_THREADS";
+    private static final int DEFAULT_GROUP_MEMBER_THREADS = (ExecutorUtil.isVirtualThreads() ? 32 : 8);
+
+    // number of attachments downloaded from Desk.com at the same time (by all consumers of this process)
+    private static final String DESK_ATTACHMENT_DOWNLOADS = "DESK_ATTACHMENT_DOWNLOADS";
+    private static final int DEFAULT_ATTACHMENT_DOWNLOADS = (ExecutorUtil.isVirtualThreads() ? 16 : 4);
+
+    // downloads the attachment bodies, created on first use
+    private static ExecutorService _attachmentDownloads;
+
+    // number of pages of a metadata list (users, groups, custom fields) retrieved at the same time
+    private static final String DESK_METADATA_PAGE_THREADS = "DESK_METADATA_PAGE_THREADS";
+    private static final int DEFAULT_METADATA_PAGE_THREADS = (ExecutorUtil.isVirtualThreads() ? 16 : 4);
+
+    // retrieves the pages of metadata lists, created on first use
+    private static ExecutorService _metadataPages;
+
+    // shortest Desk rate limit wait (in seconds) that parks a resumable job in a retry queue instead of waiting in the
+    // consumer
+    private static final String DESK_THROTTLE_PARK_SECONDS = "DESK_THROTTLE_PARK_SECONDS";
+    private static final int DEFAULT_THROTTLE_PARK_SECONDS = 10;
+
     private DeskService _deskService;
 
     private List<CustomField> _deskCustomFields;
+
+    // Desk.com custom fields keyed by name, built from '_deskCustomFields' on first use
+    private Map<String, DeskCustomFieldMapping> _deskCustomFieldMappings;
     
     /**
      * Private constructor for utility class.
@@ -332,6 +378,13 @@ public final class DeskUtil
     }
 
     private List<SiteLanguage> getDeskSiteLanguages() throws Exception
+    {
+        // served from the site metadata cache when it has them
+        return getDeskService().getMetadataCache().get(DeskMetadataCache.SITE_LANGUAGES,
+            new TypeToken<List<SiteLanguage>>() {}.getType(), this::retrieveDeskSiteLanguages);
+    }
+
+    private List<SiteLanguage> retrieveDeskSiteLanguages() throws Exception
     {
         // declare the response objects at this scope so I can check them in the do/while loop
         Response<ApiResponse<SiteLanguage>> resp = null;
@@ -380,6 +433,13 @@ public final class DeskUtil
     }
 
     public List<SiteSetting> getDeskSiteSettings() throws Exception
+    {
+        // served from the site metadata cache when it has them
+        return getDeskService().getMetadataCache().get(DeskMetadataCache.SITE_SETTINGS,
+            new TypeToken<List<SiteSetting>>() {}.getType(), this::retrieveDeskSiteSettings);
+    }
+
+    private List<SiteSetting> retrieveDeskSiteSettings() throws Exception
     {
 
         // declare the response objects at this scope so I can check them in the do/while loop
@@ -411,59 +471,42 @@ public final class DeskUtil
 
     public CustomField getDeskCustomField(String name) throws Exception
     {
-        for (CustomField cf : getDeskCustomFields()) {
-            if (cf.getName().equals(name)) {
-                return cf;
-            }
+        DeskCustomFieldMapping mapping = getDeskCustomFieldMappings().get(name);
+        return (mapping == null ? null : mapping.getCustomField());
+    }
+
+    /**
+     * Returns the Desk.com custom fields keyed by name, each with its Salesforce field name and value converter.
+     */
+    public Map<String, DeskCustomFieldMapping> getDeskCustomFieldMappings() throws Exception
+    {
+        if (_deskCustomFieldMappings == null) {
+            _deskCustomFieldMappings = DeskCustomFieldMapping.index(getDeskCustomFields());
         }
-        return null;
+        return _deskCustomFieldMappings;
     }
 
     public List<CustomField> getDeskCustomFields() throws Exception
     {
         if (_deskCustomFields == null) {
-            // declare page counter
-            int page = 0;
-
-            // declare the response objects at this scope so I can check them in the do/while loop
-            Response<ApiResponse<CustomField>> resp = null;
-            ApiResponse<CustomField> apiResp = null;
-
-            // declare the list that will be returned
-            _deskCustomFields = new ArrayList<>();
-
-            // get a service
-            CustomFieldsService service = getDeskClient().customFields();
-
-            // loop through retrieving records
-            do {
-                // increment the page counter
-                page++;
-
-                // retrieve the records synchronously
-                resp = service.getCustomFields(DESK_PAGE_SIZE_CF, page).execute();
-
-                // check for success
-                if (resp.isSuccess()) {
-                    // get the response body
-                    apiResp = resp.body();
-
-                    // add the list of records to the return list
-                    _deskCustomFields.addAll(apiResp.getEntriesAsList());
-                } else {
-                    Utils.log(resp.headers().toString());
-                    throw new Exception(
-                            String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
-                }
-            }
-            // continue to loop while the request is successful and there are subsequent pages of results
-            while (resp.isSuccess() && apiResp.hasNextPage());
+            // served from the site metadata cache when it has them
+            _deskCustomFields = getDeskService().getMetadataCache().get(DeskMetadataCache.CUSTOM_FIELDS,
+                new TypeToken<List<CustomField>>() {}.getType(), this::retrieveDeskCustomFields);
         }
 
         // return the list of records
         return _deskCustomFields;
     }
 
+    private List<CustomField> retrieveDeskCustomFields() throws Exception
+    {
+        // get a service
+        CustomFieldsService service = getDeskClient().customFields();
+
+        // retrieve all the pages of records
+        return retrieveAllPages(page -> service.getCustomFields(DESK_PAGE_SIZE_CF, page));
+    }
+
     public Map<Integer, String> getDeskGroupIdAndName() throws Exception
     {            	
         if (getDeskService().getDeskGroupId2Name() == null || getDeskService().getDeskGroupId2Name().isEmpty())
@@ -488,108 +531,128 @@ public final class DeskUtil
     public List<User> getDeskUsers() throws Exception
     {
         if (getDeskService().getDeskUsers() == null || getDeskService().getDeskUsers().isEmpty()) {
-            int page = 1;
-            boolean bRetry = false;
-            Response<ApiResponse<User>> resp = null;
-            ApiResponse<User> apiResp = null;
-            getDeskService().setDeskUsers(new ArrayList<>());
-            UserService service = getDeskClient().users();
-
-            do {
-                bRetry = false;
-                resp = service.getUsers(DESK_PAGE_SIZE_USER, page).execute();
-                if (resp.isSuccess()) {
-                    apiResp = resp.body();
-                    getDeskService().getDeskUsers().addAll(apiResp.getEntriesAsList());
-                    page++;
-                } else {
-                    if (resp.code() == 429) {
-                        bRetry = true;
-                    } else if (resp.code() == java.net.HttpURLConnection.HTTP_INTERNAL_ERROR) {
-                        bRetry = true;
-                    } else {
-                        Utils.log(resp.headers().toString());
-                        throw new Exception(
-                                String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
-                    }
-                }
-            } while (bRetry || (resp.isSuccess() && apiResp.hasNextPage()));
+            // served from the site metadata cache when it has them
+            getDeskService().setDeskUsers(getDeskService().getMetadataCache().get(DeskMetadataCache.USERS,
+                new TypeToken<List<User>>() {}.getType(), this::retrieveDeskUsers));
         }
 
         return getDeskService().getDeskUsers();
     }
 
+    private List<User> retrieveDeskUsers() throws Exception
+    {
+        UserService service = getDeskClient().users();
+        return retrieveAllPages(page -> service.getUsers(DESK_PAGE_SIZE_USER, page));
+    }
+
     public List<Group> getDeskGroups() throws Exception
     {
         // check if we have retrieved the groups already
         if (getDeskService().getDeskGroups() == null || getDeskService().getDeskGroups().isEmpty())
         {
-            // declare page counter
-            int page = 1;
-
-            // declare the retry flag
-            boolean bRetry = false;
+            // served from the site metadata cache when it has them
+            getDeskService().setDeskGroups(getDeskService().getMetadataCache().get(DeskMetadataCache.GROUPS,
+                new TypeToken<List<Group>>() {}.getType(), this::retrieveDeskGroups));
+        }
 
-            // declare the response objects at this scope so I can check them in the do/while loop
-            Response<ApiResponse<Group>> resp = null;
-            ApiResponse<Group> apiResp = null;
+        // return the list of records        
+        return getDeskService().getDeskGroups();
+    }
 
-            // declare the list that will be returned
-            getDeskService().setDeskGroups(new ArrayList<>());
+    private List<Group> retrieveDeskGroups() throws Exception
+    {
+        // get a service
+        GroupService service = getDeskClient().groups();
 
-            // get a service
-            GroupService service = getDeskClient().groups();
+        // retrieve all the pages of records
+        return retrieveAllPages(page -> service.getGroups(DESK_PAGE_SIZE_GROUP, page));
+    }
 
-            // loop through retrieving records
-            do
-            {
-                // reset the retry flag
-                bRetry = false;
+    /**
+     * Retrieve every page of a Desk.com metadata list (users, groups, custom fields). The first page tells how many
+     * entries there are, the other pages are then retrieved at the same time.
+     *
+     * @param pageCall
+     *            Returns the request for a page number (starting at 1).
+     * @return The entries of all the pages, in order.
+     */
+    private static <T> List<T> retrieveAllPages(IntFunction<Call<ApiResponse<T>>> pageCall) throws Exception
+    {
+        ApiResponse<T> first = retrievePage(pageCall, 1);
+        List<T> entries = new ArrayList<>(first.getEntriesAsList());
+        if (!first.hasNextPage() || entries.isEmpty())
+        {
+            return entries;
+        }
 
-                // retrieve the records synchronously
-                resp = service.getGroups(DESK_PAGE_SIZE_GROUP, page).execute();
+        // Desk.com caps the page size, so count the pages by what the first one held
+        long total = first.getTotalEntries();
+        int pages = (int) ((total + entries.size() - 1) / entries.size());
 
-                // check for success
-                if (resp.isSuccess())
-                {
-                    // get the response body
-                    apiResp = resp.body();
+        List<Future<ApiResponse<T>>> rest = new ArrayList<>();
+        for (int page = 2; page <= pages; page++)
+        {
+            int p = page;
+            rest.add(getMetadataPages().submit(() -> retrievePage(pageCall, p)));
+        }
 
-                    // add the list of records to the return list
-                    getDeskService().getDeskGroups().addAll(apiResp.getEntriesAsList());
+        try
+        {
+            for (Future<ApiResponse<T>> page : rest)
+            {
+                entries.addAll(page.get().getEntriesAsList());
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+        finally
+        {
+            // stop the other pages when one failed
+            for (Future<ApiResponse<T>> page : rest)
+            {
+                page.cancel(true);
+            }
+        }
+        return entries;
+    }
 
-                    // increment the page counter
-                    page++;
-                }
-                else
-                {
-                    if (resp.code() == 429)
-                    {
-                        // 'too many requests'
-                        // re-queue or retry
-                        bRetry = true;
-                    }
-                    else if (resp.code() == java.net.HttpURLConnection.HTTP_INTERNAL_ERROR)
-                    {
-                        // when we run imports through the API with threaded requests we'll occasionally get a 500
-                        // response and have to retry the request (which succeeds on the retry).
-                        // TODO: Retry
-                        bRetry = true;
-                    }
-                    else
-                    {
-                        Utils.log(resp.headers().toString());
-                        throw new Exception(
-                            String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
-                    }
-                }
+    private static <T> ApiResponse<T> retrievePage(IntFunction<Call<ApiResponse<T>>> pageCall, int page)
+        throws Exception
+    {
+        for (int retryCount = 0;; retryCount++)
+        {
+            Response<ApiResponse<T>> resp = pageCall.apply(page).execute();
+            if (resp.isSuccess())
+            {
+                return resp.body();
+            }
+            else if (resp.code() == 429)
+            {
+                // 'too many requests', wait for the rate limit window to reset before retrying
+                String reset = resp.headers().get(DESK_HEADER_LIMIT_RESET);
+                Thread.sleep((reset == null ? 1 : Integer.parseInt(reset)) * 1000L);
+            }
+            else if (resp.code() != java.net.HttpURLConnection.HTTP_INTERNAL_ERROR || retryCount >= 3)
+            {
+                // a 500 usually succeeds on a retry
+                Utils.log(resp.headers().toString());
+                throw new Exception(
+                    String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
             }
-            // continue to loop while the request is successful and there are subsequent pages of results
-            while (bRetry || (resp.isSuccess() && apiResp.hasNextPage()));
         }
+    }
 
-        // return the list of records        
-        return getDeskService().getDeskGroups();
+    private static synchronized ExecutorService getMetadataPages()
+    {
+        if (_metadataPages == null)
+        {
+            _metadataPages = ExecutorUtil.newBoundedExecutor("desk-metadata-pages",
+                (System.getenv(DESK_METADATA_PAGE_THREADS) == null ? DEFAULT_METADATA_PAGE_THREADS
+                    : Integer.parseInt(System.getenv(DESK_METADATA_PAGE_THREADS))));
+        }
+        return _metadataPages;
     }
 
     public Set<String> getDeskGroupNames() throws Exception
@@ -632,14 +695,28 @@ public final class DeskUtil
      * Get the SFDC Id for a queue when passing the Desk Id for a group
      */
     public String getQueueId(int deskGroupId) throws Exception
+    {
+        // get the queue name => id map, with the queue of the group if it was created since it was cached
+        return getQueueId(deskGroupId, getSalesforceService().getQueues(getQueueName(deskGroupId)));
+    }
+
+    /**
+     * Returns the developer name of the queue created for a Desk.com group.
+     */
+    private static String getQueueName(int deskGroupId)
+    {
+        return String.format("Desk_%d", deskGroupId);
+    }
+
+    /**
+     * Get the SFDC Id for a queue when passing the Desk Id for a group and an already retrieved queue name => id map
+     */
+    private static String getQueueId(int deskGroupId, Map<String, String> queueName2Id)
     {
         String queueId = null;
 
         // get the desk group name, trim trailing spaces and ensure it is the max 40 char limit of Salesforce
-        String deskGroupName = String.format("Desk_%d", deskGroupId);
-        
-        // get the queue name => id map
-        Map<String, String> queueName2Id = getSalesforceService().getQueues();
+        String deskGroupName = getQueueName(deskGroupId);
         
         // check if the map contains the desk group name
         if (queueName2Id.containsKey(deskGroupName))
@@ -661,13 +738,25 @@ public final class DeskUtil
         return queueId;
     }
 
-    public DeployResponse createCustomFields(String json) throws Exception
+    /**
+     * Create the custom fields that aren't in the org yet, or all of them with force.
+     */
+    public DeployResponse createCustomFields(String json, boolean force) throws Exception
     {
         getSalesforceService().addCustomFields(convertCustomFields(json));
-        return getSalesforceService().deploy();
+        DeployResponse dr = getSalesforceService().deploy(force);
+
+        // the fields were picked from what the client just retrieved from Desk.com, which can be newer than the cached
+        // metadata; have the migration fetch it again so it maps the new fields
+        getDeskService().getMetadataCache().invalidate();
+
+        return dr;
     }
 
-    public DeployResponse createFieldPermissions(String json) throws Exception
+    /**
+     * Grant the field permissions the permission set doesn't have yet, or all of them with force.
+     */
+    public DeployResponse createFieldPermissions(String json, boolean force) throws Exception
     {
         List<Metadata> sfCFs = convertCustomFields(json);
 
@@ -686,7 +775,7 @@ public final class DeskUtil
         permissionSet.setFieldPermissions(fieldPermissions.toArray(new PermissionSetFieldPermissions[fieldPermissions.size()]));
 
         getSalesforceService().addCustomFields(Arrays.asList(permissionSet));
-        return getSalesforceService().deploy();
+        return getSalesforceService().deploy(force);
     }
 
     private static List<com.sforce.soap.metadata.Metadata> convertCustomFields(String json)
@@ -829,7 +918,10 @@ public final class DeskUtil
         return clean;
     }
 
-    public DeployResponse createQueues(String json) throws Exception
+    /**
+     * Create the queues that aren't in the org yet, or all of them with force.
+     */
+    public DeployResponse createQueues(String json, boolean force) throws Exception
     {
         Utils.log("Queue JSON: " + json);
         // define the list of queues to create using the Salesforce metadata API
@@ -884,51 +976,75 @@ public final class DeskUtil
         }
 
         getSalesforceService().addQueues(sfQs);
-        return getSalesforceService().deploy();
+        DeployResponse dr = getSalesforceService().deploy(force);
+
+        // the cached queue name => id map of the org no longer has the new queues, and the cached Desk.com groups may
+        // not have the groups they were created for
+        SalesforceUtil.invalidateQueueName2Id(getSalesforceService());
+        getDeskService().getMetadataCache().invalidate();
+
+        return dr;
     }
 
     public DeployResponse getDeskGroupMembers(Set<Integer> groupIds, Map<String, String> config) throws Exception
     {
-        // declare the response objects at this scope so I can check them in the do/while loop
-        Response<ApiResponse<User>> resp = null;
-        ApiResponse<User> apiResp = null;
-
-        // declare the list that will be returned
+        // declare the list of group members waiting to be bulk inserted, and the desk user each one came from
         List<HashMap<String, Object>> recList = new ArrayList<>();
+        List<LoadedIds.Row> recSources = new ArrayList<>();
 
         //deploy Response
         DeployResponse dr = new DeployResponse();
         // get a service
         GroupService service = getDeskClient().groups();
 
+        String currentUserId = null;
+
+        // get the queue name => id map once, and resolve the queue id of each group up front
+        Map<String, String> queueName2Id = getSalesforceService().getQueues();
+        String unassignedQueue = queueName2Id.get(SalesforceConstants.QueueUnassigned);
+        Map<Integer, String> groupId2QueueId = new HashMap<>();
+        for (Integer groupId : groupIds)
+        {
+            if (!queueName2Id.containsKey(getQueueName(groupId)))
+            {
+                queueName2Id = getSalesforceService().getQueues(getQueueName(groupId));
+            }
+            groupId2QueueId.put(groupId, getQueueId(groupId, queueName2Id));
+        }
+
         //get All SFDC users
         String query = String.format("Select %s, %s, %s From %s Where %s != null Or %s = '%s'",
                 UserFields.Id, UserFields.DeskId, UserFields.Email, SalesforceConstants.OBJ_USER, UserFields.DeskId,
                 UserFields.Email, config.get("user_email"));
-        List<SObject> sfUsers = getSalesforceService().query(query);
-
-        String currentUserId = null;
-        String unassignedQueue = getSalesforceService().getQueues().get(SalesforceConstants.QueueUnassigned);
 
-        //map deskId to sfdcId
+        //map deskId to sfdcId, the users are streamed so they are never all in memory
         Map<Integer, String> deskIdToSfdcId = new HashMap<Integer, String>();
-        for (SObject u : sfUsers)
+        try (RecordIterator sfUsers = getSalesforceService().scan(SalesforceConstants.OBJ_USER, query))
         {
-            if (u.getField(UserFields.Email).equals(config.get("user_email")))
-                currentUserId = (String) u.getField(UserFields.Id);
-
-            if (u.getField(UserFields.DeskId) != null) {
-                // better way to not lose precision? Values come back from sfdc as sci notation eg. 2.3091629E7
-                int deskId = new BigDecimal(String.valueOf(u.getField(UserFields.DeskId))).intValue();
-                deskIdToSfdcId.put(deskId, (String) u.getField(UserFields.Id));
+            while (sfUsers.hasNext())
+            {
+                SObject u = sfUsers.next();
+                if (u.getField(UserFields.Email).equals(config.get("user_email")))
+                    currentUserId = (String) u.getField(UserFields.Id);
+
+                if (u.getField(UserFields.DeskId) != null) {
+                    // better way to not lose precision? Values come back from sfdc as sci notation eg. 2.3091629E7
+                    int deskId = new BigDecimal(String.valueOf(u.getField(UserFields.DeskId))).intValue();
+                    deskIdToSfdcId.put(deskId, (String) u.getField(UserFields.Id));
+                }
             }
         }
 
-        // unassigned record
-        HashMap<String, Object> unassigned = new HashMap<String, Object>();
-        unassigned.put(GroupMemberFields.GroupId, unassignedQueue);
-        unassigned.put(GroupMemberFields.UserOrGroupId, currentUserId);
-        recList.add(unassigned);
+        // unassigned record, unless an earlier run of this migration inserted it
+        LoadedIds unassignedLoaded = LoadedIds.forObject(getDeskService(), "GroupMember-unassigned");
+        if (!unassignedLoaded.contains(0))
+        {
+            HashMap<String, Object> unassigned = new HashMap<String, Object>();
+            unassigned.put(GroupMemberFields.GroupId, unassignedQueue);
+            unassigned.put(GroupMemberFields.UserOrGroupId, currentUserId);
+            recList.add(unassigned);
+            recSources.add(unassignedLoaded.row(0));
+        }
 
         // create bulk job
         String jobId = getSalesforceService().createBulkJob(SalesforceConstants.OBJ_GROUP_MEMBER,
@@ -936,125 +1052,221 @@ public final class DeskUtil
 
         updateMigrationStatus(DeskMigrationFields.StatusRunning, "", dr, jobId);
 
-        for (Integer groupId : groupIds)
-        {
-            // declare the retry flag
-            boolean bRetry = false;
-            int retryCount = 0;
+        // fetch the members of each group concurrently, and handle each group as soon as its members arrive
+        int threads = Math.max(1, Math.min(groupIds.size(), getGroupMemberThreads()));
+        ExecutorService executor = ExecutorUtil.newBoundedExecutor("desk-group-members", threads);
+        CompletionService<Map.Entry<Integer, ApiResponse<User>>> completion = new ExecutorCompletionService<>(executor);
 
-//            Thread.sleep(1000);
+        try
+        {
+            for (Integer groupId : groupIds)
+            {
+                completion.submit(() -> new AbstractMap.SimpleImmutableEntry<>(groupId,
+                    getDeskUsersForGroup(service, groupId)));
+            }
 
-            do
+            for (int i = 0; i < groupIds.size(); i++)
             {
+                Map.Entry<Integer, ApiResponse<User>> groupUsers;
                 try
                 {
-                    // reset the retry flag
-                    bRetry = false;
-
-                    // get all users for a particular desk group
-                    resp = service.getUsersForGroup(groupId, DESK_PAGE_SIZE_USER).execute();
-
-                    if (resp.isSuccess())
-                    {
-                        apiResp = resp.body();
+                    groupUsers = completion.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    // we retried 5 times, let exception go
+                    throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
 
-                        List<User> deskUsers = apiResp.getEntriesAsList();
+                int groupId = groupUsers.getKey();
+                String queueId = groupId2QueueId.get(groupId);
+                LoadedIds loaded = LoadedIds.forObject(getDeskService(), "GroupMember-" + groupId);
 
-                        // convert deskGroupMember to SFDC Queue Member
-                        // NOTE JSON Map not used to avoid passing sfUsers by value
-                        for (User u : deskUsers)
-                        {
-                            // make sure we have a value queue id and user id
-                            if (getQueueId(groupId) == null || !deskIdToSfdcId.containsKey(u.getId()))
-                            {
-                                Utils.log(String.format("[ERROR] Group [%d] or User [%d] is missing!", groupId, u.getId()));
-                            }
-                            else
-                            {
-                                HashMap<String, Object> groupMember = new HashMap<String, Object>();
-                                groupMember.put(GroupMemberFields.GroupId, getQueueId(groupId));
-                                groupMember.put(GroupMemberFields.UserOrGroupId, deskIdToSfdcId.get(u.getId()));
-                                recList.add(groupMember);
-                            }
-                        }
+                // the group users endpoint isn't paged by this client, so only the first page of a group is migrated
+                if (groupUsers.getValue().hasNextPage())
+                {
+                    String msg = String.format("Group [%d] has more than [%d] users, only the first page was migrated!",
+                        groupId, DESK_PAGE_SIZE_USER);
+                    Utils.log("[WARN] " + msg);
+                    dr.addError(msg);
+                }
 
-                        if (recList.size() >= SalesforceConstants.BULK_MAX_SIZE && !SalesforceConstants.READ_ONLY)
-                        {
-                            // create the group members
-                            dr.addDeployResponse(createGroupMembers(jobId, recList));
-                            //update dr success count
-                            dr.incrementSuccessCount(recList.size());
+                // convert deskGroupMember to SFDC Queue Member
+                // NOTE JSON Map not used to avoid passing sfUsers by value
+                for (User u : groupUsers.getValue().getEntriesAsList())
+                {
+                    // an earlier run of this migration already inserted the member
+                    if (loaded.contains(u.getId()))
+                    {
+                        continue;
+                    }
 
-                            // clear the records that were bulk inserted
-                            recList.subList(0, SalesforceConstants.BULK_MAX_SIZE).clear();
-                        }
+                    // make sure we have a value queue id and user id
+                    if (queueId == null || !deskIdToSfdcId.containsKey(u.getId()))
+                    {
+                        Utils.log(String.format("[ERROR] Group [%d] or User [%d] is missing!", groupId, u.getId()));
                     }
                     else
                     {
-                        if (resp.code() == 429)
-                        {
-                            // 'too many requests'
-                            // re-queue or retry
-                            bRetry = true;
-                        }
-                        else if (resp.code() == java.net.HttpURLConnection.HTTP_INTERNAL_ERROR)
-                        {
-                            // when we run imports through the API with threaded requests we'll occasionally get a 500
-                            // response and have to retry the request (which succeeds on the retry).
-                            // TODO: Retry
-                            bRetry = true;
-                        }
-                        else
-                        {
-                            throw new Exception(String.format("Error (%d): %s\n%s", resp.code(), resp.message(),
-                                resp.errorBody().string()));
-                        }
+                        HashMap<String, Object> groupMember = new HashMap<String, Object>();
+                        groupMember.put(GroupMemberFields.GroupId, queueId);
+                        groupMember.put(GroupMemberFields.UserOrGroupId, deskIdToSfdcId.get(u.getId()));
+                        recList.add(groupMember);
+                        recSources.add(loaded.row(u.getId()));
                     }
                 }
-                catch (Exception e)
+
+                // send every full batch to the bulk job while the other groups are still being fetched
+                while (recList.size() >= SalesforceConstants.BULK_MAX_SIZE && !SalesforceConstants.READ_ONLY)
+                {
+                    List<HashMap<String, Object>> batch = recList.subList(0, SalesforceConstants.BULK_MAX_SIZE);
+                    List<LoadedIds.Row> batchSources = recSources.subList(0, SalesforceConstants.BULK_MAX_SIZE);
+
+                    // create the group members
+                    dr.addDeployResponse(createGroupMembers(jobId, batch, batchSources));
+                    //update dr success count
+                    dr.incrementSuccessCount(batch.size());
+
+                    // clear the records that were bulk inserted
+                    batch.clear();
+                    batchSources.clear();
+                }
+            }
+
+            if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
+            {
+                dr.addDeployResponse(createGroupMembers(jobId, recList, recSources));
+                //update dr success count
+                dr.incrementSuccessCount(recList.size());
+            }
+
+            // close the bulk job
+            getSalesforceService().closeBulkJob(jobId);
+        }
+        catch (Exception e)
+        {
+            // the members held by a Bulk API 2.0 job are inserted by the next run (the confirmed ones are skipped)
+            getSalesforceService().abortBulkJob(jobId);
+            throw e;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        updateMigrationStatus(DeskMigrationFields.StatusComplete, "Group Member", dr);
+
+        return dr;
+    }
+
+    /**
+     * Retrieve the first page of users of a single Desk group, retrying throttled and failed requests. Any other error
+     * response is thrown right away, as retrying it would only fail the same way.
+     */
+    private static ApiResponse<User> getDeskUsersForGroup(GroupService service, int groupId) throws Exception
+    {
+        int retryCount = 0;
+
+        while (true)
+        {
+            String error = null;
+            try
+            {
+                // get all users for a particular desk group
+                Response<ApiResponse<User>> resp = service.getUsersForGroup(groupId, DESK_PAGE_SIZE_USER).execute();
+
+                if (resp.isSuccess())
+                {
+                    return resp.body();
+                }
+                else if (resp.code() == 429)
+                {
+                    // 'too many requests', wait for the rate limit window to reset before retrying
+                    String reset = resp.headers().get(DESK_HEADER_LIMIT_RESET);
+                    Thread.sleep((reset == null ? 1 : Integer.parseInt(reset)) * 1000L);
+                }
+                else if (resp.code() == java.net.HttpURLConnection.HTTP_INTERNAL_ERROR)
+                {
+                    // when we run imports through the API with threaded requests we'll occasionally get a 500
+                    // response and have to retry the request (which succeeds on the retry).
+                    retryCount++;
+                }
+                else
+                {
+                    error = String.format("Error (%d): %s\n%s", resp.code(), resp.message(),
+                        resp.errorBody().string());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                // retry if we hit a socket timeout exception
+                retryCount++;
+                Utils.log("[EXCEPTION] Group [" + groupId + "] Retry Attempt: " + retryCount);
+                if (retryCount > 5)
                 {
-                    // retry if we hit a socket timeout exception
-                    retryCount++;
-                    Utils.log("[EXCEPTION] Retry Attempt: " + retryCount);
-                    if (retryCount > 5)
-                    {
-                        // we retried 5 times, let exception go
-                        throw e;
-                    }
-                    else
-                    {
-                        bRetry = true;
-                    }
+                    // we retried 5 times, let exception go
+                    throw e;
                 }
             }
-            while (bRetry || resp.isSuccess() && apiResp.hasNextPage() && SalesforceConstants.RETRIEVE_ALL);
-        }
 
-        if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
-        {
-            dr.addDeployResponse(createGroupMembers(jobId, recList));
-            //update dr success count
-            dr.incrementSuccessCount(recList.size());
+            // the request was rejected (e.g. bad credentials or a deleted group), don't retry it
+            if (error != null)
+            {
+                throw new Exception(error);
+            }
+
+            if (retryCount > 5)
+            {
+                throw new Exception(String.format("Error retrieving users for group [%d], gave up after %d retries.",
+                    groupId, retryCount - 1));
+            }
         }
+    }
 
-        // close the bulk job
-        getSalesforceService().closeBulkJob(jobId);
+    private static int getGroupMemberThreads()
+    {
+        return (System.getenv(DESK_GROUP_MEMBER_THREADS) == null ? DEFAULT_GROUP_MEMBER_THREADS
+            : Integer.parseInt(System.getenv(DESK_GROUP_MEMBER_THREADS)));
+    }
 
-        updateMigrationStatus(DeskMigrationFields.StatusComplete, "Group Member", dr);
+    private static synchronized ExecutorService getAttachmentDownloads()
+    {
+        if (_attachmentDownloads == null)
+        {
+            _attachmentDownloads = ExecutorUtil.newBoundedExecutor("desk-attachments",
+                (System.getenv(DESK_ATTACHMENT_DOWNLOADS) == null ? DEFAULT_ATTACHMENT_DOWNLOADS
+                    : Integer.parseInt(System.getenv(DESK_ATTACHMENT_DOWNLOADS))));
+        }
+        return _attachmentDownloads;
+    }
 
-        return dr;
+    /**
+     * Returns the shortest Desk.com rate limit wait that parks a resumable job in a retry queue instead of holding the
+     * consumer for it.
+     */
+    public static long getThrottleParkMillis()
+    {
+        return 1000L * (System.getenv(DESK_THROTTLE_PARK_SECONDS) == null ? DEFAULT_THROTTLE_PARK_SECONDS
+            : Integer.parseInt(System.getenv(DESK_THROTTLE_PARK_SECONDS)));
     }
 
-    private DeployResponse createGroupMembers(String jobId, List<HashMap<String, Object>> groupMembers)
+    private DeployResponse createGroupMembers(String jobId, List<HashMap<String, Object>> groupMembers,
+        List<LoadedIds.Row> sources)
     {
         DeployResponse dr = new DeployResponse();
         try
         {
             List<Map<String, Object>> sfRecs = new ArrayList<>();
+            List<LoadedIds.Row> sfRecSources = new ArrayList<>();
 
             int counter = 0;
             for (HashMap<String, Object> gm : groupMembers)
             {
+                sfRecSources.add(sources.get(counter));
                 counter++;
                 sfRecs.add(gm);
 
@@ -1062,10 +1274,12 @@ public final class DeskUtil
                 if ((counter % SalesforceConstants.BULK_MAX_SIZE) == 0)
                 {
                     Utils.log("Calling insert Data GroupMembers");
-                    getSalesforceService().addBatchToJob(jobId, sfRecs);
+                    String batchId = getSalesforceService().addBatchToJob(jobId, sfRecs);
+                    LoadedIds.track(getSalesforceService(), jobId, batchId, sfRecSources);
 
                     // clear the list
                     sfRecs.clear();
+                    sfRecSources.clear();
                 }
             }
 
@@ -1073,7 +1287,8 @@ public final class DeskUtil
             Utils.log("Calling insert Data GroupMembers");
             if (!sfRecs.isEmpty())
             {
-                getSalesforceService().addBatchToJob(jobId, sfRecs);
+                String batchId = getSalesforceService().addBatchToJob(jobId, sfRecs);
+                LoadedIds.track(getSalesforceService(), jobId, batchId, sfRecSources);
             }
         }
         catch (Exception e)
@@ -1125,11 +1340,50 @@ public final class DeskUtil
     }
 
     public DeployResponse migrateDeskInteractions(Map<String, String> config, Integer startId) throws Exception
+    {
+        // the bulk job of each object type
+        Map<String, String> jobIds = new HashMap<>();
+
+        try
+        {
+            return migrateDeskInteractions(config, startId, jobIds);
+        }
+        catch (Exception e)
+        {
+            // the interactions held by a Bulk API 2.0 job are retrieved again from the last checkpoint
+            for (String jobId : jobIds.values())
+            {
+                getSalesforceService().abortBulkJob(jobId);
+            }
+            throw e;
+        }
+    }
+
+    private DeployResponse migrateDeskInteractions(Map<String, String> config, Integer startId,
+        Map<String, String> jobIds) throws Exception
     {
         Utils.log("Entered DeskUtil::migrateDeskInteractions()");
 
+        // a migration started again continues after the last interactions it submitted
+        if (startId == null)
+        {
+            Checkpoint checkpoint = CheckpointService.load(getDeskService(), WATERMARK_INTERACTION, null);
+            startId = (checkpoint == null ? null : checkpoint.getStartId());
+        }
+
+        // an incremental sync continues after the last interaction of the previous sync (interactions don't change)
+        boolean deltaSync = Boolean.valueOf(config.get("delta_sync"));
+        if (startId == null && deltaSync)
+        {
+            Watermark previous = WatermarkService.load(getDeskService(), WATERMARK_INTERACTION);
+            startId = (previous == null ? null : previous.getId());
+        }
+
         // declare last record id
         int nextRecordId = (startId == null ? 1 : startId);
+
+        // the id the interactions before it have all been submitted to a bulk job
+        int committedId = nextRecordId;
         
         // initialize a flag which indicates if this is a delta migration
         boolean delta = (startId != null);
@@ -1156,9 +1410,11 @@ public final class DeskUtil
 
         // map of records
         Map<String, List<Map<String, Object>>> recLists = new HashMap<>();
-        
-        // map of job id's
-        Map<String, String> jobIds = new HashMap<>();
+
+        // interactions an earlier run of this migration loaded are skipped, and the interactions each record waiting
+        // in the lists came from (null when not tracked)
+        LoadedIds loadedIds = LoadedIds.forObject(getDeskService(), WATERMARK_INTERACTION);
+        Map<Map<String, Object>, int[]> recSources = (loadedIds.isTracked() ? new IdentityHashMap<>() : null);
         
         // initialize soType specific items
         for (String soType : soTypes)
@@ -1181,6 +1437,8 @@ public final class DeskUtil
         // declare the job management variables
         boolean bRetry = false;
         boolean bRequeue = false;
+        boolean bPublishOnClose = false;
+        long parkMillis = 0;
         int requestCount = 1;
         int retryExCount = 0;
         int retry500Count = 0;
@@ -1233,7 +1491,13 @@ public final class DeskUtil
 //                     List<SObject> recList = deskInteractionToSalesforceSObjects(apiResp.getEntries(), dr);
                     if(apiResp.getEntries() != null)
                     {
-                    	deskInteractionToSalesforceJsonMaps(this, recLists, apiResp.getEntries(), dr);
+                        Interaction[] entries = apiResp.getEntries();
+                        if (loadedIds.isTracked())
+                        {
+                            entries = Arrays.stream(entries).filter(i -> !loadedIds.contains(i.getId()))
+                                .toArray(Interaction[]::new);
+                        }
+                    	deskInteractionToSalesforceJsonMaps(this, recLists, entries, dr, recSources);
                     }
                     
 //                    // loop through the objects and add to the holder
@@ -1272,7 +1536,9 @@ public final class DeskUtil
                                 int iMax = (recLists.get(soType).size() > batchMaxSize ? batchMaxSize : recLists.get(soType).size());
 
                                 // create the records
-                                getSalesforceService().addBatchToJob(jobIds.get(soType), recLists.get(soType).subList(0, iMax));
+                                List<Map<String, Object>> batch = recLists.get(soType).subList(0, iMax);
+                                String batchId = getSalesforceService().addBatchToJob(jobIds.get(soType), batch);
+                                trackInteractions(jobIds.get(soType), batchId, batch, recSources, loadedIds);
                                 
                                 //reset bulkCount
                                 retryBulkCount = 0;
@@ -1290,13 +1556,24 @@ public final class DeskUtil
                         }
                         updateMigrationStatus(DeskMigrationFields.StatusRunning, "Interactions", dr);
                         dr = new DeployResponse();
-                        
+
                         // update the start id
                         config.put("start_id", String.format("%d", nextRecordId));
-                        
-                        // re-queue the job with the updated id
-                        RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION,
-                            RabbitConfiguration.EXCHANGE_TRACTOR, JsonUtil.toJson(config).getBytes());
+
+                        // a Bulk API 2.0 job only uploads the interactions when it is closed, the checkpoint and the
+                        // continuation wait until then
+                        bPublishOnClose = jobIds.values().stream().anyMatch(getSalesforceService()::isUploadedOnClose);
+                        if (!bPublishOnClose)
+                        {
+                            // everything retrieved so far is submitted
+                            committedId = nextRecordId;
+                            CheckpointService.save(getDeskService(), WATERMARK_INTERACTION, null,
+                                new Checkpoint(committedId, null));
+
+                            // re-queue the job with the updated id
+                            RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION,
+                                RabbitConfiguration.EXCHANGE_TRACTOR, JsonUtil.toJson(config).getBytes());
+                        }
                         
                         //flip flag so job will end gracefully, queued job will start
                         bRequeue = true;
@@ -1323,8 +1600,18 @@ public final class DeskUtil
 
                         // check for 'too many requests' response
                         case 429:
-                            // get the reset seconds and sleep for that many seconds
-                            Thread.sleep(Integer.parseInt(resp.headers().get(DESK_HEADER_LIMIT_RESET)) * 1000);
+                            // get the reset seconds, long waits park the job in a retry queue instead of holding the
+                            // consumer
+                            String reset = resp.headers().get(DESK_HEADER_LIMIT_RESET);
+                            long resetMillis = (reset == null ? 5 : Integer.parseInt(reset)) * 1000L;
+                            if (resetMillis >= getThrottleParkMillis())
+                            {
+                                parkMillis = resetMillis;
+                            }
+                            else
+                            {
+                                RabbitWorker.pause(resetMillis);
+                            }
 
                             // re-queue or retry
                             bRetry = true;
@@ -1377,18 +1664,14 @@ public final class DeskUtil
                 //Utils.logException(e);
                 if (retryExCount > 10)
                 {
-                	if (delta)
-                	{
-                		dr.setResumePoint(nextRecordId);                		                		
-                	}
-                	else
-                	{
-                		dr.setResumePoint(nextRecordId);
-                	}                	
+                    // the interactions retrieved since the last flush are lost, resume after the last ones submitted
+                    dr.setResumePoint(committedId);
+                    CheckpointService.fail(getDeskService(), WATERMARK_INTERACTION, null,
+                        new Checkpoint(committedId, null));
                 	updateMigrationStatus(DeskMigrationFields.StatusFailed, "Interactions", dr);
                 	//Utils.sendEmail();
                     // we retried 5 times, let exception go
-                    throw e;
+                    throw new MigrationFailedException(e.getMessage(), e);
                 }
                 else
                 {
@@ -1407,18 +1690,14 @@ public final class DeskUtil
                 //Utils.logException(e);
                 if (retryBulkCount > 10)
                 {
-                	if (delta)
-                	{
-                		dr.setResumePoint(nextRecordId);                		                		
-                	}
-                	else
-                	{
-                		dr.setResumePoint(nextRecordId);
-                	}                	
+                    // the interactions retrieved since the last flush are lost, resume after the last ones submitted
+                    dr.setResumePoint(committedId);
+                    CheckpointService.fail(getDeskService(), WATERMARK_INTERACTION, null,
+                        new Checkpoint(committedId, null));
                 	updateMigrationStatus(DeskMigrationFields.StatusFailed, "Interactions", dr);
                 	//Utils.sendEmail();
                     // we retried 5 times, let exception go
-                    throw e;
+                    throw new MigrationFailedException(e.getMessage(), e);
                 }
                 else
                 {
@@ -1427,7 +1706,13 @@ public final class DeskUtil
             }
         }
         // continue to loop while the request is successful and there are subsequent pages of results
-        while (bRetry || (resp.isSuccess() && !bRequeue && apiResp.hasNextPage() && SalesforceConstants.RETRIEVE_ALL));
+        while (parkMillis == 0 && !RabbitWorker.isShuttingDown() &&
+            (bRetry || (resp.isSuccess() && !bRequeue && apiResp.hasNextPage() && SalesforceConstants.RETRIEVE_ALL)));
+
+        // check if the job is throttled or the worker is being stopped half way, the rest is handed over once the
+        // records are submitted
+        boolean bHandOver = (parkMillis > 0 || RabbitWorker.isShuttingDown()) &&
+            (bRetry || (resp.isSuccess() && !bRequeue && apiResp.hasNextPage() && SalesforceConstants.RETRIEVE_ALL));
         
         // loop through the object types
         for (String soType : soTypes)
@@ -1442,7 +1727,9 @@ public final class DeskUtil
                 int iMax = (recLists.get(soType).size() > batchMaxSize ? batchMaxSize : recLists.get(soType).size());
 
                 // create the records
-                getSalesforceService().addBatchToJob(jobIds.get(soType), recLists.get(soType).subList(0, iMax));
+                List<Map<String, Object>> batch = recLists.get(soType).subList(0, iMax);
+                String batchId = getSalesforceService().addBatchToJob(jobIds.get(soType), batch);
+                trackInteractions(jobIds.get(soType), batchId, batch, recSources, loadedIds);
 
                 // clear the records that were inserted
                 recLists.get(soType).subList(0, iMax).clear();
@@ -1459,6 +1746,52 @@ public final class DeskUtil
             fiveHundreds.clear();
         }
         
+        // everything retrieved is submitted, the next run continues after it (or starts over once complete)
+        if (bHandOver || bRequeue)
+        {
+            CheckpointService.save(getDeskService(), WATERMARK_INTERACTION, null, new Checkpoint(nextRecordId, null));
+        }
+        else
+        {
+            CheckpointService.complete(getDeskService(), WATERMARK_INTERACTION, null,
+                new Checkpoint(nextRecordId, null));
+        }
+
+        // the interactions of the Bulk API 2.0 jobs are uploaded now, queue the job with the updated id
+        if (bPublishOnClose)
+        {
+            RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION,
+                RabbitConfiguration.EXCHANGE_TRACTOR, JsonUtil.toJson(config).getBytes());
+        }
+
+        if (bHandOver)
+        {
+            Utils.log("[DESK] " + (parkMillis > 0 ? "Throttled for [" + parkMillis + "] ms" : "Worker is shutting down")
+                + ", re-queueing interactions from: [" + nextRecordId + "]");
+            dr.setResumePoint(nextRecordId);
+            updateMigrationStatus(DeskMigrationFields.StatusRunning, "Interactions", dr);
+
+            // continue with the page after the last one retrieved
+            config.put("start_id", String.format("%d", nextRecordId));
+            byte[] message = JsonUtil.toJson(config).getBytes();
+            if (parkMillis > 0)
+            {
+                RabbitUtil.publishDelayed(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION, null, message, parkMillis);
+            }
+            else
+            {
+                RabbitUtil.publishToQueue(RabbitConfiguration.QUEUE_DESK_DATA_MIGRATION,
+                    RabbitConfiguration.EXCHANGE_TRACTOR, message);
+            }
+            return new DeployResponse();
+        }
+
+        if (deltaSync)
+        {
+            WatermarkService.save(getDeskService(), WATERMARK_INTERACTION,
+                new Watermark((int) (System.currentTimeMillis() / 1000), nextRecordId));
+        }
+
         dr.addError(String.format("Final Interaction Page migrated [%d]", startId));
         updateMigrationStatus(DeskMigrationFields.StatusComplete, "Interactions", dr);
         dr = new DeployResponse();
@@ -1467,6 +1800,26 @@ public final class DeskUtil
         return dr;
     }
 
+    /**
+     * Add the interactions of a submitted batch to the loaded ids once the batch results confirm them.
+     */
+    private void trackInteractions(String jobId, String batchId, List<Map<String, Object>> batch,
+        Map<Map<String, Object>, int[]> recSources, LoadedIds loadedIds)
+    {
+        if (recSources == null)
+        {
+            return;
+        }
+
+        List<LoadedIds.Row> rows = new ArrayList<>(batch.size());
+        for (Map<String, Object> rec : batch)
+        {
+            int[] ids = recSources.remove(rec);
+            rows.add(ids == null ? null : loadedIds.row(ids));
+        }
+        LoadedIds.track(getSalesforceService(), jobId, batchId, rows);
+    }
+
 
     public byte[] getDeskAttachment(int caseId, String attachmentUrl)
         throws OAuthCommunicationException, OAuthExpectationFailedException, OAuthMessageSignerException, IOException,
@@ -1643,110 +1996,158 @@ public final class DeskUtil
         // list of error message strings
         List<String> errorMessages = new ArrayList<>();
 
-        // loop through the case id's
-        for (Integer caseId : caseIds)
-        {
-            // reset the page counter
-            page = 1;
+        // the cases are tracked in a shared registry instead of with a desk message per case (null when they aren't)
+        AttachmentRegistry registry = AttachmentRegistry.forSite(getDeskService());
 
-            // loop through retrieving records
-            do
+        try
+        {
+            // loop through the case id's
+            for (Integer caseId : caseIds)
             {
-                try
+                // skip cases that were done since the job was queued (e.g. a redelivered message)
+                if (registry != null && !registry.isPending(caseId))
                 {
-                    // reset the error handling flag
-                    bRetry = false;
-                    
-                    // reset the error messages
-                    errorMessages.clear();
+                    continue;
+                }
+
+                // reset the page counter
+                page = 1;
 
-                    // call the desk api
-                    resp = service.getAttachments(caseId, 100, page).execute();
+                // set when a page of the case failed, it then stays pending in the registry
+                boolean caseFailed = false;
 
-                    if (resp.isSuccess())
+                // loop through retrieving records
+                do
+                {
+                    try
                     {
-                        // log the Desk.com rate limiting headers
-                        DeskUtil.logDeskRateHeaders(resp.headers());
+                        // reset the error handling flag
+                        bRetry = false;
+                    
+                        // reset the error messages
+                        errorMessages.clear();
+
+                        // call the desk api
+                        resp = service.getAttachments(caseId, 100, page).execute();
+
+                        if (resp.isSuccess())
+                        {
+                            // log the Desk.com rate limiting headers
+                            DeskUtil.logDeskRateHeaders(resp.headers());
                         
-                        // reset the error handling counter
-                        retryCount = 0;
+                            // reset the error handling counter
+                            retryCount = 0;
 
-                        // increment the page counter
-                        page++;
+                            // increment the page counter
+                            page++;
 
-                        // get the ApiResponse (so I can check for 'hasNextPage')
-                        apiResp = resp.body();
+                            // get the ApiResponse (so I can check for 'hasNextPage')
+                            apiResp = resp.body();
                         
-                        // check if there are results
-                        if (apiResp.getTotalEntries() > 0)
-                        {
-                            // pass the list of attachments to the method that will migrate them
-                            errorMessages = createAttachments(apiResp.getEntriesAsList(), dr);
+                            // check if there are results
+                            if (apiResp.getTotalEntries() > 0)
+                            {
+                                // pass the list of attachments to the method that will migrate them
+                                errorMessages = createAttachments(apiResp.getEntriesAsList(), dr);
+                            }
+                            else if (registry == null)
+                            {
+                                errorMessages.add(String.format("Case [%d] has no attachments.", caseId));
+                            }
+                            else
+                            {
+                                // nothing to migrate, the case is done
+                                Utils.log(String.format("[DESK] Case [%d] has no attachments.", caseId));
+                            }
+                        
+                            // check if there were errors
+                            if (errorMessages != null && !errorMessages.isEmpty())
+                            {
+                                // add the error message to deploy response
+                                dr.addErrors(errorMessages);
+                            }
+
+                            // update the Desk Message record with the failure (a failed case stays pending in the
+                            // registry)
+                            if (registry == null)
+                            {
+                                getSalesforceService().upsertData(DeskMessageFields.Name,
+                                    Arrays.asList(getDeskMessageCaseAttachment(caseId, errorMessages)));
+                            }
+                            else if (errorMessages != null && !errorMessages.isEmpty())
+                            {
+                                caseFailed = true;
+                            }
                         }
                         else
                         {
-                            errorMessages.add(String.format("Case [%d] has no attachments.", caseId));
-                        }
-                        
-                        // check if there were errors
-                        if (errorMessages != null && !errorMessages.isEmpty())
-                        {
-                            // add the error message to deploy response
-                            dr.addErrors(errorMessages);
+                            switch (resp.code())
+                            {
+                                // not found
+                                case 404:
+                                    // let it continue
+                                    break;
+                                // check for 'too many requests' response
+                                case 429:
+                                    // get the reset seconds and sleep for that many seconds
+                                    Thread.sleep(Integer.parseInt(resp.headers().get(DESK_HEADER_LIMIT_RESET)) * 1000);
+
+                                    // re-queue or retry
+                                    bRetry = true;
+                                    break;
+                                case 500:
+                                    // when we run imports through the API with threaded requests we'll occasionally get a
+                                    // 500
+                                    // response and have to retry the request (which succeeds on the retry).
+                                    // TODO: Retry
+                                    bRetry = true;
+                                    break;
+                                default:
+                                    Utils.log(resp.headers().toString());
+                                    throw new Exception(String.format("Error (%d): %s\n%s", resp.code(), resp.message(),
+                                        resp.errorBody().string()));
+                            }
                         }
-
-                        // update the Desk Message record with the failure
-                        getSalesforceService().upsertData(DeskMessageFields.Name,
-                            Arrays.asList(getDeskMessageCaseAttachment(caseId, errorMessages)));
                     }
-                    else
+                    catch (Exception e)
                     {
-                        switch (resp.code())
+                        // retry if we hit a socket timeout exception
+                        retryCount++;
+                        Utils.log("[EXCEPTION] Retry Attempt: " + retryCount);
+                        if (retryCount > 5)
                         {
-                            // not found
-                            case 404:
-                                // let it continue
-                                break;
-                            // check for 'too many requests' response
-                            case 429:
-                                // get the reset seconds and sleep for that many seconds
-                                Thread.sleep(Integer.parseInt(resp.headers().get(DESK_HEADER_LIMIT_RESET)) * 1000);
-
-                                // re-queue or retry
-                                bRetry = true;
-                                break;
-                            case 500:
-                                // when we run imports through the API with threaded requests we'll occasionally get a
-                                // 500
-                                // response and have to retry the request (which succeeds on the retry).
-                                // TODO: Retry
-                                bRetry = true;
-                                break;
-                            default:
-                                Utils.log(resp.headers().toString());
-                                throw new Exception(String.format("Error (%d): %s\n%s", resp.code(), resp.message(),
-                                    resp.errorBody().string()));
+                            // we retried 5 times, let exception go
+                            throw e;
+                        }
+                        else
+                        {
+                            bRetry = true;
                         }
                     }
                 }
-                catch (Exception e)
+                while (bRetry || (resp.isSuccess() && apiResp.hasNextPage()));
+
+                // the case is done once all of its pages are (a case that isn't found has nothing to migrate)
+                if (registry != null && !caseFailed && (resp.isSuccess() || resp.code() == 404))
                 {
-                    // retry if we hit a socket timeout exception
-                    retryCount++;
-                    Utils.log("[EXCEPTION] Retry Attempt: " + retryCount);
-                    if (retryCount > 5)
-                    {
-                        // we retried 5 times, let exception go
-                        throw e;
-                    }
-                    else
-                    {
-                        bRetry = true;
-                    }
+                    registry.markDone(caseId);
                 }
+            } // FOR Case Id
+        }
+        finally
+        {
+            if (registry != null)
+            {
+                registry.save();
             }
-            while (bRetry || (resp.isSuccess() && apiResp.hasNextPage()));
-        } // FOR Case Id
+        }
+
+        // report the totals when there is no record per case
+        if (registry != null)
+        {
+            dr.addError(String.format("Cases with attachments: [%d] pending, [%d] done.", registry.getPendingCount(),
+                registry.getDoneCount()));
+        }
 
         // update the migration status
         updateMigrationStatus(DeskMigrationFields.StatusComplete, "Attachments", dr);
@@ -1799,56 +2200,65 @@ public final class DeskUtil
         String jobId = getSalesforceService().createBulkJob(SalesforceConstants.OBJ_TOPIC, TopicFields.Name,
             OperationEnum.upsert);
 
-        // loop through retrieving records
-        do
+        try
         {
-            // increment the page counter
-            page++;
+            // loop through retrieving records
+            do
+            {
+                // increment the page counter
+                page++;
 
-            // retrieve the records synchronously
-            // TODO: replace "language" with actual language?
-            resp = service.getLabels(DESK_PAGE_SIZE_LABEL, page).execute();
+                // retrieve the records synchronously
+                // TODO: replace "language" with actual language?
+                resp = service.getLabels(DESK_PAGE_SIZE_LABEL, page).execute();
 
-            // check for success
-            if (resp.isSuccess())
-            {
-                // get the response body
-                apiResp = resp.body();
+                // check for success
+                if (resp.isSuccess())
+                {
+                    // get the response body
+                    apiResp = resp.body();
 
-                // add the list of records to the return list
-                recList.addAll(apiResp.getEntriesAsList());
+                    // add the list of records to the return list
+                    recList.addAll(apiResp.getEntriesAsList());
 
-                Utils.log("Retrieved [" + recList.size() + "] records. Max is [" + DESK_PAGE_SIZE_CASE + "]");
+                    Utils.log("Retrieved [" + recList.size() + "] records. Max is [" + DESK_PAGE_SIZE_CASE + "]");
 
-                // every 10k records, pass to createCases() to bulk upsert them
-                if (recList.size() >= SalesforceConstants.BULK_MAX_SIZE && !SalesforceConstants.READ_ONLY)
-                {
-                    // create the cases
-                    dr.addDeployResponse(createTopicsFromLabels(jobId, recList));
+                    // every 10k records, pass to createCases() to bulk upsert them
+                    if (recList.size() >= SalesforceConstants.BULK_MAX_SIZE && !SalesforceConstants.READ_ONLY)
+                    {
+                        // create the cases
+                        dr.addDeployResponse(createTopicsFromLabels(jobId, recList));
 
-                    // clear the records that were bulk inserted
-                    recList = recList.subList(SalesforceConstants.BULK_MAX_SIZE, recList.size());
+                        // clear the records that were bulk inserted
+                        recList = recList.subList(SalesforceConstants.BULK_MAX_SIZE, recList.size());
+                    }
+                }
+                else
+                {
+                    Utils.log(resp.headers().toString());
+                    throw new Exception(
+                        String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
                 }
             }
-            else
+            // continue to loop while the request is successful and there are subsequent pages of results
+            while (resp.isSuccess() && apiResp.hasNextPage());
+
+            // process any records over the 10k chunk
+            if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
             {
-                Utils.log(resp.headers().toString());
-                throw new Exception(
-                    String.format("Error (%d): %s\n%s", resp.code(), resp.message(), resp.errorBody().string()));
+                dr.addDeployResponse(createTopicsFromLabels(jobId, recList));
             }
-        }
-        // continue to loop while the request is successful and there are subsequent pages of results
-        while (resp.isSuccess() && apiResp.hasNextPage());
 
-        // process any records over the 10k chunk
-        if (!recList.isEmpty() && !SalesforceConstants.READ_ONLY)
+            // close the bulk job
+            getSalesforceService().closeBulkJob(jobId);
+        }
+        catch (Exception e)
         {
-            dr.addDeployResponse(createTopicsFromLabels(jobId, recList));
+            // don't leave the labels retrieved so far in an open Bulk API 2.0 job
+            getSalesforceService().abortBulkJob(jobId);
+            throw e;
         }
 
-        // close the bulk job
-        getSalesforceService().closeBulkJob(jobId);
-
         // return the list of records
         return dr;
     }
@@ -2165,11 +2575,19 @@ public final class DeskUtil
                 return errMessages;
             }
 
-            // loop through the desk attachments
+            // start downloading all the attachment bodies
+            List<Future<byte[]>> bodies = new ArrayList<>();
             for (Attachment a : attachments)
+            {
+                bodies.add(getAttachmentDownloads().submit(() -> getDeskAttachment(a.getCaseId(), a.getUrl())));
+            }
+
+            // loop through the desk attachments
+            for (int i = 0; i < attachments.size(); i++)
             {
                 // add to the list to be inserted
-                sfAttachments.add(deskAttachmentToSalesforceAttachment(a, dr, errMessages));
+                sfAttachments.add(deskAttachmentToSalesforceAttachment(attachments.get(i), bodies.get(i), dr,
+                    errMessages));
             }
             
             // found an error converting attachments
@@ -2249,8 +2667,8 @@ public final class DeskUtil
         return errMessages;
     }
     
-    private SObject deskAttachmentToSalesforceAttachment(Attachment a, DeployResponse dr, List<String> errMessages)
-        throws OAuthCommunicationException, OAuthExpectationFailedException, OAuthMessageSignerException
+    private SObject deskAttachmentToSalesforceAttachment(Attachment a, Future<byte[]> body, DeployResponse dr,
+        List<String> errMessages)
     {
         // create the attachment object and set some fields
         SObject sfAttachment = new SObject(SalesforceConstants.OBJ_ATTACHMENT);
@@ -2279,8 +2697,16 @@ public final class DeskUtil
 
         try
         {
-            // get the file attachment bytes
-            byte[] attachmentBytes = getDeskAttachment(a.getCaseId(), a.getUrl());
+            // wait for the file attachment bytes
+            byte[] attachmentBytes;
+            try
+            {
+                attachmentBytes = body.get();
+            }
+            catch (ExecutionException e)
+            {
+                throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            }
             
             // set the 'Body' field to the Base64 encoded contents of the file
             sfAttachment.setField(AttachmentFields.Body, attachmentBytes);
@@ -2303,111 +2729,9 @@ public final class DeskUtil
 
     public void updateMigrationStatus(String status, String stage, DeployResponse dr, String jobId)
     {
-        try
-        {
-            SObject deskMigration = new SObject(SalesforceConstants.OBJ_DESK_MIGRATION);
-            deskMigration.setId(getDeskService().getMigrationId());
-    
-            // check if we need to increment the counters & append to log
-            if (dr != null)
-            {
-                // retrieve the existing counts so I can increment them
-                String query = String.format("SELECT %s, %s, %s FROM %s WHERE %s = '%s'", DeskMigrationFields.RecordsFailed,
-                    DeskMigrationFields.RecordsMigrated, DeskMigrationFields.Log, SalesforceConstants.OBJ_DESK_MIGRATION,
-                    DeskMigrationFields.ID, getDeskService().getMigrationId());
-                List<SObject> results = getSalesforceService().query(query);
-    
-                // check if an existing migration record was found
-                if (results == null || results.isEmpty())
-                {
-                    // we are in big trouble if we get here
-                    throw new InvalidParameterException(
-                        "Could not find existing Desk Migration record with Id: [" + getDeskService().getMigrationId() + "]!");
-                }
-    
-                SObject prev = results.get(0);
-    
-                Double recordsMigrated = (prev.getField(DeskMigrationFields.RecordsMigrated) == null ? 0
-                    : Double.valueOf((String) prev.getField(DeskMigrationFields.RecordsMigrated)));
-                Double recordsFailed = (prev.getField(DeskMigrationFields.RecordsFailed) == null ? 0
-                    : Double.valueOf((String) prev.getField(DeskMigrationFields.RecordsFailed)));
-    
-                // increment counters
-                deskMigration.setField(DeskMigrationFields.RecordsMigrated,
-                    recordsMigrated.intValue() + dr.getSuccessCount());
-                deskMigration.setField(DeskMigrationFields.RecordsFailed, recordsFailed.intValue() + dr.getErrorCount());
-                deskMigration.setField(DeskMigrationFields.RecordsTotal,
-                    recordsMigrated.intValue() + dr.getSuccessCount() + recordsFailed.intValue() + dr.getErrorCount());
-    
-                if (dr.getErrors() != null && !dr.getErrors().isEmpty())
-                {
-                    StringBuilder sbErrors = new StringBuilder();
-    
-                    sbErrors.append("[" + _dateFormat.format(Calendar.getInstance().getTime()) + "]: ");
-                    for (String err : dr.getErrors())
-                    {
-                        sbErrors.append(err + "\n");
-                        // Utils.log(err);
-                    }
-    
-                    // check if there are previous log messages to pre-pend
-                    if (prev.getField(DeskMigrationFields.Log) != null)
-                    {
-                        sbErrors.append(prev.getField(DeskMigrationFields.Log));
-                    }
-    
-                    // trim to max length
-                    if (sbErrors.length() > SalesforceConstants.LONG_TEXT_MAX)
-                    {
-                        sbErrors.setLength(SalesforceConstants.LONG_TEXT_MAX);
-                    }
-    
-                    // append errors to log
-                    deskMigration.setField(DeskMigrationFields.Log, sbErrors.toString());
-                }
-            }
-    
-            deskMigration.setField(DeskMigrationFields.Status, status);
-    
-            // set stage if provides
-            if (stage != null)
-            {
-                deskMigration.setField(DeskMigrationFields.Stage, stage);
-            }
-
-            if (jobId != null) {
-                deskMigration.setField(DeskMigrationFields.JobId, jobId);
-            }
-    
-            // TODO: Set this with a workflow rule
-            if (status == DeskMigrationFields.StatusComplete)
-            {
-                deskMigration.setField(DeskMigrationFields.EndDate, java.util.Calendar.getInstance());
-            }
-            
-            if (status == DeskMigrationFields.StatusFailed)
-            {
-//            	deskMigration.setField(DeskMigrationFields.EndDate, java.util.Calendar.getInstance());
-//            	deskMigration.setField(DeskMigrationFields.ResumePoint, dr.getResumePoint());
-            	
-            }
-            
-    
-            // upsert the migration status
-            getSalesforceService().upsertData(DeskMigrationFields.ID, Arrays.asList(deskMigration));
-        }
-        catch (UnexpectedErrorFault e)
-        {
-            Utils.log(String.format("[%s] %s", e.getExceptionCode().name(), e.getExceptionMessage()));
-        }
-        catch (AsyncApiException e)
-        {
-            Utils.log(String.format("[%s] %s", e.getExceptionCode().name(), e.getExceptionMessage()));
-        }
-        catch (Exception e)
-        {
-            Utils.log(String.format("[EXCEPTION] %s", e.getMessage()));
-        }
+        // merged in memory and written behind, see MigrationStatusService
+        MigrationStatusService.forMigration(getDeskService().getMigrationId())
+            .update(getSalesforceService(), status, stage, dr, jobId);
     }
 
     public static void logDeskRateHeaders(Headers headers)
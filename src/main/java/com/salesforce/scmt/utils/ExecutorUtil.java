@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.utils;
+
+import static java.lang.System.getenv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used for blocking Desk.com and Salesforce calls. By default these are fixed pools of platform
+ * threads. With SCMT_VIRTUAL_THREADS=true (on a JDK with virtual threads) every task gets a virtual thread instead and
+ * the limit is enforced by a semaphore, so a small dyno can keep hundreds of requests in flight without hundreds of
+ * platform threads.
+ */
+public final class ExecutorUtil
+{
+    /**
+     * Environment variable turning on the virtual thread mode.
+     */
+    private static final String SCMT_VIRTUAL_THREADS = "SCMT_VIRTUAL_THREADS";
+
+    /**
+     * The virtual thread builder (Thread.ofVirtual()), null when the mode is off or the JDK has no virtual threads.
+     */
+    private static final Object _virtualBuilder = getVirtualBuilder();
+
+    /**
+     * Private constructor for utility class.
+     */
+    private ExecutorUtil() {}
+
+    /**
+     * Returns true if blocking calls run on virtual threads.
+     */
+    public static boolean isVirtualThreads()
+    {
+        return _virtualBuilder != null;
+    }
+
+    /**
+     * Returns an executor running at most the given number of tasks at the same time.
+     *
+     * @param name
+     *            The thread name prefix.
+     * @param limit
+     *            The maximum number of tasks running at the same time.
+     * @return The executor, shut it down when done.
+     */
+    public static ExecutorService newBoundedExecutor(String name, int limit)
+    {
+        if (isVirtualThreads())
+        {
+            return new BoundedExecutor(Executors.newCachedThreadPool(newThreadFactory(name)), limit);
+        }
+
+        return Executors.newFixedThreadPool(limit, newThreadFactory(name));
+    }
+
+    /**
+     * Returns a thread factory creating virtual threads, or daemon platform threads when the virtual thread mode is off.
+     *
+     * @param name
+     *            The thread name prefix.
+     * @return The thread factory.
+     */
+    public static ThreadFactory newThreadFactory(String name)
+    {
+        if (isVirtualThreads())
+        {
+            try
+            {
+                // Thread.ofVirtual().name(name + "-", 0).factory(), through the public Thread.Builder interface
+                Class<?> type = Class.forName("java.lang.Thread$Builder");
+                Object builder = type.getMethod("name", String.class, long.class)
+                    .invoke(_virtualBuilder, name + "-", 0L);
+                return (ThreadFactory) type.getMethod("factory").invoke(builder);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                Utils.logException(e);
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static Object getVirtualBuilder()
+    {
+        if (!Boolean.parseBoolean(getenv(SCMT_VIRTUAL_THREADS)))
+        {
+            return null;
+        }
+
+        try
+        {
+            // the code is built for Java 8, so look the API up at runtime
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Utils.log("[EXEC] Running blocking calls on virtual threads.");
+            return builder;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            Utils.log("[EXEC] " + SCMT_VIRTUAL_THREADS + " is set but this JDK has no virtual threads ("
+                + System.getProperty("java.version") + "), using platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * Runs every task on its own (virtual) thread, but only the given number of them at the same time. Waiting tasks
+     * park on the semaphore, which costs a virtual thread next to nothing.
+     */
+    private static final class BoundedExecutor extends AbstractExecutorService
+    {
+        private final ExecutorService _delegate;
+        private final Semaphore _permits;
+
+        // tasks parked on the semaphore, the ones shutdownNow() hands back
+        private final Set<Task> _waiting = ConcurrentHashMap.newKeySet();
+
+        private BoundedExecutor(ExecutorService delegate, int limit)
+        {
+            _delegate = delegate;
+            _permits = new Semaphore(limit);
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            Task task = new Task(command);
+            _waiting.add(task);
+            try
+            {
+                _delegate.execute(task);
+            }
+            catch (RuntimeException e)
+            {
+                _waiting.remove(task);
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown()
+        {
+            _delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            // claim the tasks that haven't started before interrupting them, so they are returned and not cancelled
+            List<Runnable> pending = new ArrayList<>();
+            for (Task task : new ArrayList<>(_waiting))
+            {
+                if (_waiting.remove(task))
+                {
+                    pending.add(task._command);
+                }
+            }
+
+            for (Runnable r : _delegate.shutdownNow())
+            {
+                if (r instanceof Task && _waiting.remove(r))
+                {
+                    pending.add(((Task) r)._command);
+                }
+            }
+
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return _delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return _delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return _delegate.awaitTermination(timeout, unit);
+        }
+
+        /**
+         * A submitted task waiting for a permit. Whoever removes it from the waiting set owns it: the task itself runs
+         * it, shutdownNow() returns it.
+         */
+        private final class Task implements Runnable
+        {
+            private final Runnable _command;
+
+            private Task(Runnable command)
+            {
+                _command = command;
+            }
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    _permits.acquire();
+                }
+                catch (InterruptedException e)
+                {
+                    // shut down while waiting, make sure nobody waits for this task (unless shutdownNow returned it)
+                    if (_waiting.remove(this) && _command instanceof Future)
+                    {
+                        ((Future<?>) _command).cancel(false);
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                try
+                {
+                    if (_waiting.remove(this))
+                    {
+                        _command.run();
+                    }
+                }
+                finally
+                {
+                    _permits.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.scmt.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of int ids, in the style of a Roaring bitmap. The ids are split by their high 16 bits into chunks of
+ * 65536, each chunk holds its low 16 bits in a sorted array while it is sparse and in a 8 KB bitmap once it has more
+ * than 4096 of them. Desk.com ids are mostly dense runs, so a million ids take about 128 KB.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+public final class IdBitmap
+{
+    private static final int FORMAT_VERSION = 1;
+
+    // a sorted array of more values than this is bigger than the bitmap
+    private static final int ARRAY_MAX_SIZE = 4096;
+    private static final int BITMAP_WORDS = 65536 / 64;
+
+    private final TreeMap<Integer, Container> _containers = new TreeMap<>();
+    private long _cardinality;
+
+    /**
+     * Add an id.
+     *
+     * @return True if the id was not in the set yet.
+     */
+    public boolean add(int id)
+    {
+        Container container = _containers.get(id >>> 16);
+        if (container == null)
+        {
+            container = new Container();
+            _containers.put(id >>> 16, container);
+        }
+
+        if (container.add((char) id))
+        {
+            _cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove an id.
+     *
+     * @return True if the id was in the set.
+     */
+    public boolean remove(int id)
+    {
+        Container container = _containers.get(id >>> 16);
+        if (container == null || !container.remove((char) id))
+        {
+            return false;
+        }
+
+        if (container._size == 0)
+        {
+            _containers.remove(id >>> 16);
+        }
+        _cardinality--;
+        return true;
+    }
+
+    /**
+     * Returns true if the id is in the set.
+     */
+    public boolean contains(int id)
+    {
+        Container container = _containers.get(id >>> 16);
+        return (container != null && container.contains((char) id));
+    }
+
+    /**
+     * Returns the number of ids in the set.
+     */
+    public long getCardinality()
+    {
+        return _cardinality;
+    }
+
+    /**
+     * Pass every id of the set to the action, in unsigned order (0 first, -1 last).
+     */
+    public void forEach(IntConsumer action)
+    {
+        for (Map.Entry<Integer, Container> entry : _containers.entrySet())
+        {
+            int high = entry.getKey() << 16;
+            Container container = entry.getValue();
+            if (container._bits != null)
+            {
+                for (int word = 0; word < BITMAP_WORDS; word++)
+                {
+                    for (long bits = container._bits[word]; bits != 0; bits &= bits - 1)
+                    {
+                        action.accept(high | (word << 6) | Long.numberOfTrailingZeros(bits));
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; i < container._size; i++)
+                {
+                    action.accept(high | container._values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the set to a stream.
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(_containers.size());
+        for (Map.Entry<Integer, Container> entry : _containers.entrySet())
+        {
+            Container container = entry.getValue();
+            data.writeChar(entry.getKey());
+            data.writeInt(container._size);
+            data.writeBoolean(container._bits != null);
+            if (container._bits != null)
+            {
+                for (long word : container._bits)
+                {
+                    data.writeLong(word);
+                }
+            }
+            else
+            {
+                for (int i = 0; i < container._size; i++)
+                {
+                    data.writeChar(container._values[i]);
+                }
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a set written by {@link #write(OutputStream)}.
+     */
+    public static IdBitmap read(InputStream in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readInt();
+        if (version != FORMAT_VERSION)
+        {
+            throw new IOException("Unknown id bitmap format: " + version);
+        }
+
+        IdBitmap bitmap = new IdBitmap();
+        int count = data.readInt();
+        for (int c = 0; c < count; c++)
+        {
+            int key = data.readChar();
+            Container container = new Container();
+            container._size = data.readInt();
+            if (data.readBoolean())
+            {
+                container._values = null;
+                container._bits = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                {
+                    container._bits[i] = data.readLong();
+                }
+            }
+            else
+            {
+                container._values = new char[Math.max(4, container._size)];
+                for (int i = 0; i < container._size; i++)
+                {
+                    container._values[i] = data.readChar();
+                }
+            }
+            bitmap._containers.put(key, container);
+            bitmap._cardinality += container._size;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Read a set from a file written by {@link #save(File)}, or return an empty set if the file doesn't exist.
+     */
+    public static IdBitmap load(File file) throws IOException
+    {
+        if (!file.isFile())
+        {
+            return new IdBitmap();
+        }
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+        {
+            return read(in);
+        }
+    }
+
+    /**
+     * Write the set to a file. The set is written to a temp file that is then renamed, so a crash never leaves a
+     * partial file.
+     */
+    public void save(File file) throws IOException
+    {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp)))
+        {
+            write(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The low 16 bits of the ids sharing the same high 16 bits.
+     */
+    private static final class Container
+    {
+        // sorted values while sparse, null once converted to the bitmap
+        private char[] _values = new char[4];
+        private long[] _bits;
+        private int _size;
+
+        private boolean contains(char low)
+        {
+            if (_bits != null)
+            {
+                return (_bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(_values, 0, _size, low) >= 0;
+        }
+
+        private boolean add(char low)
+        {
+            if (_bits != null)
+            {
+                long mask = 1L << low;
+                if ((_bits[low >>> 6] & mask) != 0)
+                {
+                    return false;
+                }
+                _bits[low >>> 6] |= mask;
+                _size++;
+                return true;
+            }
+
+            int pos = Arrays.binarySearch(_values, 0, _size, low);
+            if (pos >= 0)
+            {
+                return false;
+            }
+
+            // too dense for an array, switch to the bitmap
+            if (_size == ARRAY_MAX_SIZE)
+            {
+                _bits = new long[BITMAP_WORDS];
+                for (int i = 0; i < _size; i++)
+                {
+                    _bits[_values[i] >>> 6] |= 1L << _values[i];
+                }
+                _values = null;
+                return add(low);
+            }
+
+            pos = -pos - 1;
+            if (_size == _values.length)
+            {
+                _values = Arrays.copyOf(_values, Math.min(ARRAY_MAX_SIZE, _size * 2));
+            }
+            System.arraycopy(_values, pos, _values, pos + 1, _size - pos);
+            _values[pos] = low;
+            _size++;
+            return true;
+        }
+
+        private boolean remove(char low)
+        {
+            if (_bits != null)
+            {
+                long mask = 1L << low;
+                if ((_bits[low >>> 6] & mask) == 0)
+                {
+                    return false;
+                }
+                // stays a bitmap, a set that was this dense usually fills up again
+                _bits[low >>> 6] &= ~mask;
+                _size--;
+                return true;
+            }
+
+            int pos = Arrays.binarySearch(_values, 0, _size, low);
+            if (pos < 0)
+            {
+                return false;
+            }
+            System.arraycopy(_values, pos + 1, _values, pos, _size - pos - 1);
+            _size--;
+            return true;
+        }
+    }
+}
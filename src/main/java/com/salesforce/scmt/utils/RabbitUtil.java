@@ -15,84 +15,345 @@
 
 package com.salesforce.scmt.utils;
 
+import static java.lang.System.getenv;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
 import com.salesforce.scmt.rabbitmq.RabbitConfiguration;
 
+/**
+ * Publishes messages through a pool of channels. Every channel is in confirm mode: a message stays in the channel's
+ * outstanding map until the broker confirms it (confirms arrive asynchronously and usually cover many messages at
+ * once), and is published again if the broker rejects it or the channel dies. Messages are persistent, so together
+ * with the durable queues declared by the workers they survive a broker restart.
+ */
 public final class RabbitUtil
 {
     /**
-     * Private static member variable for holding the channel.
+     * Environment variable with the number of publisher channels.
+     */
+    private static final String MQ_PUBLISH_CHANNELS = "MQ_PUBLISH_CHANNELS";
+    private static final int DEFAULT_PUBLISH_CHANNELS = 4;
+
+    /**
+     * Private static member variable for holding the connection used for publishing.
+     */
+    private static Connection _connection;
+
+    /**
+     * The idle publisher channels, a channel is used by one thread at a time.
+     */
+    private static BlockingQueue<PublisherChannel> _channels;
+
+    /**
+     * Every publisher channel, idle or not.
      */
-    private static Channel _channel;
-    
+    private static final List<PublisherChannel> _allChannels = new ArrayList<>();
+
+    /**
+     * Re-publishes messages the broker rejected (never from the connection thread that delivered the 'nack').
+     */
+    private static final ExecutorService _republisher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rabbit-republisher");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Private constructor for utility class.
      */
     private RabbitUtil() {}
-    
-//    public static void publishToQueue(String routingKey, String exchange, Object params) throws IOException
-//    {
-//        Utils.log("RabbitUtil::publishToQueue() entered. Routing Key: [" + routingKey + "]");
-//        // build the RabbitMQ connection
-//        Connection connection = RabbitConfiguration.connectionFactory().newConnection();
-//        Channel channel = connection.createChannel();
-//        
-//        // push the job to the queue
-//        String message = JsonUtil.toJson(params);
-//        channel.basicPublish(exchange, routingKey, null, message.getBytes());
-//        Utils.log("[MQ] Sent '" + message + "'");
-//        
-//        // null out the message to avoid a memory leak
-//        message = null;
-//        
-//        // close the RabbitMQ connection
-//        channel.close();
-//        connection.close();
-//    }
-    
+
     /**
-     * Get a channel (create it if needed).
-     * @return The channel.
+     * Get the pool of channels (create it if needed).
+     * @return The pool.
      */
-    private static Channel getChannel()
+    private static synchronized BlockingQueue<PublisherChannel> getChannels() throws IOException
     {
-        // thread-safe singleton
-        synchronized (RabbitUtil.class)
+        // check if the pool is null
+        if (_channels == null)
         {
-            // check if channel is null
-            if (_channel == null)
+            int size = (getenv(MQ_PUBLISH_CHANNELS) == null ? DEFAULT_PUBLISH_CHANNELS
+                : Integer.parseInt(getenv(MQ_PUBLISH_CHANNELS)));
+
+            _channels = new LinkedBlockingQueue<>();
+            for (int i = 0; i < size; i++)
             {
-                try
-                {
-                    // create a new connection and then a new channel
-                    _channel = RabbitConfiguration.connectionFactory().newConnection().createChannel();
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+                PublisherChannel channel = new PublisherChannel(getConnection().createChannel());
+                _allChannels.add(channel);
+                _channels.add(channel);
             }
         }
-        
-        // return channel
-        return _channel;
+
+        return _channels;
     }
 
     /**
-     * Publish a message to the queue.
+     * Get the connection (create it, or create it again if it was closed).
+     * @return The connection.
+     */
+    private static synchronized Connection getConnection() throws IOException
+    {
+        if (_connection == null || !_connection.isOpen())
+        {
+            // create a new connection
+            _connection = RabbitConfiguration.connectionFactory().newConnection();
+        }
+        return _connection;
+    }
+
+    /**
+     * Publish a persistent message to the queue.
      * @param routingKey
      * @param exchange
      * @param message
      * @throws IOException
      */
     public static void publishToQueue(String routingKey, String exchange, byte[] message) throws IOException
+    {
+        publishToQueue(routingKey, exchange, MessageProperties.PERSISTENT_BASIC, message);
+    }
+
+    /**
+     * Publish a message to the queue with the given properties.
+     * @param routingKey
+     * @param exchange
+     * @param props
+     * @param message
+     * @throws IOException
+     */
+    public static void publishToQueue(String routingKey, String exchange, AMQP.BasicProperties props, byte[] message)
+        throws IOException
     {
         Utils.log("[MQ] Publish: Routing Key: [" + routingKey + "] Exchange: [" + exchange + "]");
-        
-        // push the job to the queue
-        getChannel().basicPublish(exchange, routingKey, null, message);
-//        Utils.log("[MQ] Sent '" + message + "'");
+
+        publish(new PendingMessage(exchange, routingKey, props, message));
+    }
+
+    /**
+     * Park a message in a retry tier; it goes back to its queue once the delay has passed.
+     * @param queue
+     *            The queue the message goes back to.
+     * @param headers
+     *            The message headers, may be null.
+     * @param message
+     * @param delayMillis
+     *            The minimum time to wait (rounded up to the next retry tier).
+     * @throws IOException
+     */
+    public static void publishDelayed(String queue, Map<String, Object> headers, byte[] message, long delayMillis)
+        throws IOException
+    {
+        publishToQueue(queue, RabbitConfiguration.getRetryExchange(delayMillis), persistent(headers), message);
+    }
+
+    /**
+     * Move a message to the dead-letter queue.
+     * @param queue
+     *            The queue the message came from.
+     * @param headers
+     *            The message headers, may be null.
+     * @param message
+     * @throws IOException
+     */
+    public static void publishDead(String queue, Map<String, Object> headers, byte[] message) throws IOException
+    {
+        publishToQueue(queue, RabbitConfiguration.EXCHANGE_DEAD, persistent(headers), message);
+    }
+
+    private static AMQP.BasicProperties persistent(Map<String, Object> headers)
+    {
+        return MessageProperties.PERSISTENT_BASIC.builder().headers(headers).build();
+    }
+
+    /**
+     * Wait until the broker has confirmed every message published so far.
+     * @param timeoutMillis
+     *            The maximum time to wait.
+     * @return True if everything was confirmed in time.
+     */
+    public static boolean awaitConfirms(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (System.currentTimeMillis() < deadline)
+        {
+            boolean pending = false;
+            synchronized (RabbitUtil.class)
+            {
+                for (PublisherChannel channel : _allChannels)
+                {
+                    pending |= !channel.outstanding.isEmpty();
+                }
+            }
+
+            if (!pending)
+            {
+                return true;
+            }
+
+            Thread.sleep(50);
+        }
+
+        Utils.log("[MQ] Timed out waiting for publisher confirms.");
+        return false;
+    }
+
+    private static void publish(PendingMessage message) throws IOException
+    {
+        BlockingQueue<PublisherChannel> channels = getChannels();
+        PublisherChannel channel;
+
+        try
+        {
+            // borrow a channel
+            channel = channels.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a publisher channel.", e);
+        }
+
+        try
+        {
+            // the channel (or its connection) died, replace it and send again whatever it didn't get confirmed
+            if (!channel.channel.isOpen())
+            {
+                channel = replace(channel);
+            }
+
+            channel.publish(message);
+        }
+        finally
+        {
+            // return the channel to the pool
+            channels.add(channel);
+        }
+    }
+
+    private static PublisherChannel replace(PublisherChannel dead) throws IOException
+    {
+        PublisherChannel channel = new PublisherChannel(getConnection().createChannel());
+
+        synchronized (RabbitUtil.class)
+        {
+            _allChannels.remove(dead);
+            _allChannels.add(channel);
+        }
+
+        for (PendingMessage message : dead.outstanding.values())
+        {
+            channel.publish(message);
+        }
+        dead.outstanding.clear();
+
+        return channel;
+    }
+
+    /**
+     * A message waiting for its publisher confirm.
+     */
+    private static final class PendingMessage
+    {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
+
+        private PendingMessage(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+        {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A channel in confirm mode and the messages it published that are not confirmed yet, keyed by sequence number.
+     */
+    private static final class PublisherChannel
+    {
+        private final Channel channel;
+        private final ConcurrentNavigableMap<Long, PendingMessage> outstanding = new ConcurrentSkipListMap<>();
+
+        private PublisherChannel(Channel channel) throws IOException
+        {
+            this.channel = channel;
+
+            channel.confirmSelect();
+            channel.addConfirmListener(new ConfirmListener()
+            {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple)
+                {
+                    confirmed(deliveryTag, multiple);
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple)
+                {
+                    Utils.log("[MQ] Broker rejected message(s) up to [" + deliveryTag + "], publishing again.");
+
+                    for (PendingMessage message : confirmed(deliveryTag, multiple))
+                    {
+                        _republisher.execute(() -> {
+                            try
+                            {
+                                publish(message);
+                            }
+                            catch (IOException e)
+                            {
+                                Utils.logException(e);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        private void publish(PendingMessage message) throws IOException
+        {
+            outstanding.put(channel.getNextPublishSeqNo(), message);
+            channel.basicPublish(message.exchange, message.routingKey, message.props, message.body);
+        }
+
+        private List<PendingMessage> confirmed(long deliveryTag, boolean multiple)
+        {
+            List<PendingMessage> messages = new ArrayList<>();
+
+            if (multiple)
+            {
+                // every message up to and including this one
+                ConcurrentNavigableMap<Long, PendingMessage> confirmed = outstanding.headMap(deliveryTag, true);
+                messages.addAll(confirmed.values());
+                confirmed.clear();
+            }
+            else
+            {
+                PendingMessage message = outstanding.remove(deliveryTag);
+                if (message != null)
+                {
+                    messages.add(message);
+                }
+            }
+
+            return messages;
+        }
     }
 }
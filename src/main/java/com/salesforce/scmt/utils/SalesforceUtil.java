@@ -19,12 +19,17 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.salesforce.scmt.service.SalesforceService;
 import com.salesforce.scmt.utils.SalesforceConstants.GroupFields;
@@ -94,6 +99,18 @@ public final class SalesforceUtil
      */
     private SalesforceUtil() {}
 
+    // how long the queue name => id map of an org is cached for
+    private static final String SALESFORCE_QUEUE_CACHE_SECONDS = "SALESFORCE_QUEUE_CACHE_SECONDS";
+    private static final long DEFAULT_QUEUE_CACHE_SECONDS = 600;
+
+    // a map without the queue asked for is loaded again, at most this often (the queue may really not exist)
+    private static final long QUEUE_MISS_RELOAD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // queue name => id maps, keyed by org id
+    private static final ConcurrentMap<String, QueueCacheEntry> _queueCache = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> _queueLocks = new ConcurrentHashMap<>();
+    private static final AtomicLong _queueCacheVersion = new AtomicLong();
+
     public static String nameToDevName(String name, int maxLength)
     {
 //        Utils.log("nameToDevName() entered: " + name);
@@ -143,31 +160,117 @@ public final class SalesforceUtil
         return nameToDevName(name, 255);
     }
     
+    /**
+     * Returns the queue developer name => id map of the org the service is connected to. The map is cached for the
+     * whole process and shared by every service connected to the same org, until it expires or is invalidated. Reads
+     * of a cached map don't lock, and only one thread per org runs the query when it needs to be (re)loaded.
+     */
     public static Map<String, String> getQueueName2Id(SalesforceService service) throws Exception
     {
-    	// initialize the map
-        Map<String, String> _QueueName2Id = new HashMap<>();
-        
-        // thread-safe singleton
-        synchronized (SalesforceUtil.class)
+        String orgId = service.getOrgId();
+
+        // fast path, no locking
+        QueueCacheEntry entry = _queueCache.get(orgId);
+        if (entry != null && !entry.isExpired())
+        {
+            return entry.queues;
+        }
+
+        // one loader per org, the others wait for it and then use what it loaded
+        synchronized (_queueLocks.computeIfAbsent(orgId, k -> new Object()))
+        {
+            entry = _queueCache.get(orgId);
+            if (entry != null && !entry.isExpired())
+            {
+                return entry.queues;
+            }
+
+            long version = _queueCacheVersion.get();
+
+            // initialize the map
+            Map<String, String> queueName2Id = new HashMap<>();
+
+            // query for the queue names & ids
+            List<SObject> queues = service.query("SELECT Id, DeveloperName FROM Group WHERE Type = 'Queue'");
+
+            // loop through the queues and put them into the map
+            for (SObject queue : queues)
+            {
+                // Key = Name, Value = Id
+                queueName2Id.put((String) queue.getField(GroupFields.DeveloperName),
+                    (String) queue.getField(GroupFields.Id));
+            }
+
+            entry = new QueueCacheEntry(Collections.unmodifiableMap(queueName2Id), System.currentTimeMillis());
+
+            // don't cache what we loaded if the queues were invalidated while we were querying
+            if (version == _queueCacheVersion.get())
+            {
+                _queueCache.put(orgId, entry);
+            }
+
+            // return the map
+            return entry.queues;
+        }
+    }
+
+    /**
+     * Returns the queue developer name => id map of the org, like {@link #getQueueName2Id(SalesforceService)}, but
+     * loads it again first when it doesn't have the given queue. The queue may have been created by another process
+     * (e.g. the web dyno deploying the Desk.com groups) after this one cached the map.
+     */
+    public static Map<String, String> getQueueName2Id(SalesforceService service, String queueName) throws Exception
+    {
+        Map<String, String> queues = getQueueName2Id(service);
+        if (queues.containsKey(queueName))
+        {
+            return queues;
+        }
+
+        // drop the map unless it was just loaded, a concurrent miss drops the same entry only once
+        String orgId = service.getOrgId();
+        QueueCacheEntry entry = _queueCache.get(orgId);
+        if (entry != null && entry.queues == queues
+            && System.currentTimeMillis() - entry.loaded > QUEUE_MISS_RELOAD_MILLIS && _queueCache.remove(orgId, entry))
+        {
+            Utils.log("[METADATA] Queue [" + queueName + "] isn't in the cached queues of org [" + orgId
+                + "], reloading them.");
+        }
+
+        return getQueueName2Id(service);
+    }
+
+    /**
+     * Drop the cached queue name => id map of the org the service is connected to, call this after queues have been
+     * created or changed.
+     */
+    public static void invalidateQueueName2Id(SalesforceService service)
+    {
+        _queueCacheVersion.incrementAndGet();
+        _queueCache.remove(service.getOrgId());
+    }
+
+    private static long getQueueCacheMillis()
+    {
+        return TimeUnit.SECONDS.toMillis(System.getenv(SALESFORCE_QUEUE_CACHE_SECONDS) == null
+            ? DEFAULT_QUEUE_CACHE_SECONDS : Long.parseLong(System.getenv(SALESFORCE_QUEUE_CACHE_SECONDS)));
+    }
+
+    private static final class QueueCacheEntry
+    {
+        private final Map<String, String> queues;
+        private final long loaded;
+
+        private QueueCacheEntry(Map<String, String> queues, long loaded)
         {
-            
-                                
-                // query for the queue names & ids
-                List<SObject> queues = service.query("SELECT Id, DeveloperName FROM Group WHERE Type = 'Queue'");
-
-                // loop through the queues and put them into the map
-                for (SObject queue : queues)
-                {
-                    // Key = Name, Value = Id
-                    _QueueName2Id.put((String) queue.getField(GroupFields.DeveloperName),
-                        (String) queue.getField(GroupFields.Id));
-                }                                
-            
+            this.queues = queues;
+            this.loaded = loaded;
         }
-        // return the map
-        return _QueueName2Id;
 
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() > loaded + getQueueCacheMillis();
+        }
     }
     
     /**
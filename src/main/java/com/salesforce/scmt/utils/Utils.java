@@ -17,6 +17,7 @@ package com.salesforce.scmt.utils;
 
 import static java.lang.System.getenv;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -38,6 +39,8 @@ public final class Utils
     {
     }
 
+    private static final String SCMT_LOCAL_STORE_DIR = "SCMT_LOCAL_STORE_DIR";
+
     /**
      * Reads an environment variable, or throws an exception if it is not defined.
      * 
@@ -55,6 +58,31 @@ public final class Utils
         return env;
     }
 
+    /**
+     * Returns a sub-directory of the local state directory, creating it if needed. The local state directory is set
+     * with the 'SCMT_LOCAL_STORE_DIR' environment variable, when it isn't set nothing is kept on disk.
+     * 
+     * @param name
+     *            The name of the sub-directory.
+     * @return The directory, or null when local storage is not configured.
+     */
+    public static File getLocalStoreDir(String name)
+    {
+        final String root = getenv(SCMT_LOCAL_STORE_DIR);
+        if (root == null || root.isEmpty())
+        {
+            return null;
+        }
+
+        File dir = new File(root, name);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            log("[ERROR] Could not create local store directory: [" + dir.getAbsolutePath() + "]");
+            return null;
+        }
+        return dir;
+    }
+
     public static void log(String msg)
     {
         System.out.println(msg);
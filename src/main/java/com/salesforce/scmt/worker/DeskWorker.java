@@ -36,7 +36,11 @@ import com.salesforce.scmt.desk.DeskContactMigration;
 import com.salesforce.scmt.desk.DeskNoteMigration;
 import com.salesforce.scmt.desk.DeskUserMigration;
 import com.salesforce.scmt.model.DeployResponse;
+import com.salesforce.scmt.model.MigrationFailedException;
+import com.salesforce.scmt.rabbitmq.WorkEnvelope;
+import com.salesforce.scmt.service.AttachmentRegistry;
 import com.salesforce.scmt.service.DeskService;
+import com.salesforce.scmt.service.RecordIterator;
 //import com.salesforce.scmt.service.DeskService;
 import com.salesforce.scmt.service.SalesforceService;
 import com.salesforce.scmt.utils.DeskUtil;
@@ -62,7 +66,7 @@ public final class DeskWorker
      */
     private DeskWorker() {}
     
-	public static <S, D> void migrateData(String json)
+	public static <S, D> void migrateData(String json) throws Exception
 	{
 		Utils.log("[DESK] DeskWorker::migrateData() entered.");
 		// Utils.log("JSON: " + json);
@@ -82,6 +86,7 @@ public final class DeskWorker
                 (config.containsKey("desk_migration_id") ? (String)config.get("desk_migration_id") : null),
                 (String)config.get("server_url"), (String)config.get("session_id"),
                 (config.containsKey("auditEnabled") ? Boolean.valueOf(config.get("auditEnabled")): false)));
+            deskUtil.getDeskService().setMetadataVersion(config.get(DeskService.METADATA_VERSION));
 
 			Integer startId = (config.containsKey("start_id") && !((String) config.get("start_id")).isEmpty() &&
                 // avoid: java.lang.NumberFormatException: For input string: "null"
@@ -170,10 +175,11 @@ public final class DeskWorker
         catch (Exception e)
         {
             Utils.logException(e);
+            throw e;
         }
     }
 
-    public static void migrateCaseFeedData(String json)
+    public static void migrateCaseFeedData(String json) throws Exception
     {
         Utils.log("[DESK] DeskWorker::migrateCaseFeedData() entered.");
         // Utils.log("JSON: " + json);
@@ -184,37 +190,67 @@ public final class DeskWorker
             @SuppressWarnings("unchecked")
             Map<String, Object> config = (Map<String, Object>) JsonUtil.fromJson(json, Map.class);
 
-            DeskUtil deskUtil = new DeskUtil(new DeskService(config));
-            
-            // define the list of desk messages for saving the attachments so I can migrate them later
-            List<SObject> deskMessages = new ArrayList<>();
-            
             @SuppressWarnings("unchecked")
             // casting to Integer produced entries like '5.0', so explicitly parse to Integer
             List<Integer> caseIdsWithAttachments = Utils.listDoubleToListInteger(
                 (List<Double>) config.get("case_ids_with_attachments"));
 
-            // make sure the values are integers
-            for (Integer caseId : caseIdsWithAttachments)
-            {
-                // add the attachment ids to the custom object for later processing
-                SObject deskMessage = new SObject(SalesforceConstants.OBJ_DESK_MESSAGE);
-                deskMessage.setField(DeskMessageFields.Name, String.format("%s%d",
-                    DeskUtil.DESK_MESSAGE_ATTACHMENT_PREFIX, caseId));
-                deskMessage.setField(DeskMessageFields.Status, DeskMessageFields.StatusNew);
-                deskMessages.add(deskMessage);
-            }
-            
-            // check if there are desk messages
-            if (!deskMessages.isEmpty())
-            {
-                // upsert the records
-                deskUtil.getSalesforceService().upsertData(DeskMessageFields.Name, deskMessages);
-            }
+            migrateCaseFeedData(config, caseIdsWithAttachments);
         }
         catch (Exception e)
         {
             Utils.logException(e);
+            throw e;
+        }
+    }
+
+    public static void migrateCaseFeedData(WorkEnvelope envelope) throws Exception
+    {
+        Utils.log("[DESK] DeskWorker::migrateCaseFeedData() entered.");
+
+        try
+        {
+            migrateCaseFeedData(envelope.getSettings(), envelope.getIds("case_ids_with_attachments"));
+        }
+        catch (Exception e)
+        {
+            Utils.logException(e);
+            throw e;
+        }
+    }
+
+    private static void migrateCaseFeedData(Map<String, Object> config, List<Integer> caseIdsWithAttachments)
+        throws Exception
+    {
+        DeskUtil deskUtil = new DeskUtil(new DeskService(config));
+
+        // track the cases in a shared registry instead of with a desk message per case
+        AttachmentRegistry registry = AttachmentRegistry.forSite(deskUtil.getDeskService());
+        if (registry != null)
+        {
+            registry.addPending(caseIdsWithAttachments);
+            return;
+        }
+        
+        // define the list of desk messages for saving the attachments so I can migrate them later
+        List<SObject> deskMessages = new ArrayList<>();
+
+        // make sure the values are integers
+        for (Integer caseId : caseIdsWithAttachments)
+        {
+            // add the attachment ids to the custom object for later processing
+            SObject deskMessage = new SObject(SalesforceConstants.OBJ_DESK_MESSAGE);
+            deskMessage.setField(DeskMessageFields.Name, String.format("%s%d",
+                DeskUtil.DESK_MESSAGE_ATTACHMENT_PREFIX, caseId));
+            deskMessage.setField(DeskMessageFields.Status, DeskMessageFields.StatusNew);
+            deskMessages.add(deskMessage);
+        }
+        
+        // check if there are desk messages
+        if (!deskMessages.isEmpty())
+        {
+            // upsert the records
+            deskUtil.getSalesforceService().upsertData(DeskMessageFields.Name, deskMessages);
         }
     }
 
@@ -252,7 +288,7 @@ public final class DeskWorker
         }
     }
     
-    public static void queryDeskMessageAttachments(String json)
+    public static void queryDeskMessageAttachments(String json) throws Exception
     {
         Utils.log("[DESK] DeskWorker::queryDeskMessageAttachments() entered.");
 
@@ -263,93 +299,57 @@ public final class DeskWorker
         
         try
         {
-            // initialize the id
-            String sfId = SalesforceConstants.MIN_ID; 
+            // the cases are tracked in the registry, no need to query the desk messages
+            AttachmentRegistry registry = AttachmentRegistry.forSite(deskUtil.getDeskService());
+            if (registry != null)
+            {
+                publishPendingAttachments(deskUtil, registry, config);
+                return;
+            }
 
-            // build the query
-            String queryBase = String.format(
-                "SELECT %s, %s FROM %s WHERE %s IN ('%s', '%s') AND %s > '__ID__' AND %s LIKE '%s%%' ORDER BY %s LIMIT %d",
-                DeskMessageFields.Id, DeskMessageFields.Name,
+            // stream the desk messages of the cases still to do, the next records are retrieved while these are
+            // published
+            String query = String.format(
+                "SELECT %s FROM %s WHERE %s IN ('%s', '%s') AND %s LIKE '%s%%'",
+                DeskMessageFields.Name,
                 SalesforceConstants.OBJ_DESK_MESSAGE,
                 DeskMessageFields.Status, DeskMessageFields.StatusNew, DeskMessageFields.StatusFailed,
-                DeskMessageFields.Id,
-                DeskMessageFields.Name, DeskUtil.DESK_MESSAGE_ATTACHMENT_PREFIX,
-                DeskMessageFields.Id,
-                //100);
-                SalesforceConstants.SOQL_MAX_SIZE);
-            
-            // list of case id's with attachments
-            List<Integer> caseIdsWithAttachments = new ArrayList<>();
-            
-            // attachments list
-            List<SObject> deskMessages = null;
-            
-//            int page = 0;
-            
-            // flag which indicates if the SOQL query is returning results to process
-            boolean hasResults = false;
-            
-            do
+                DeskMessageFields.Name, DeskUtil.DESK_MESSAGE_ATTACHMENT_PREFIX);
+
+            try (RecordIterator deskMessages = deskUtil.getSalesforceService().scan(
+                SalesforceConstants.OBJ_DESK_MESSAGE, query))
             {
-                // update the query with the Id filter
-                String query = queryBase.replaceAll("__ID__", sfId);
-
-                // query for the results
-                deskMessages = deskUtil.getSalesforceService().query(query, false);
-                
-                // check if the results are empty
-                if (deskMessages == null || deskMessages.isEmpty())
+                if (!deskMessages.hasNext())
                 {
-                    // check if we had results at least once
-                    if (!hasResults)
-                    {
-                        Utils.log("[ERROR] Query returned no results! Please try again.");
-                    }
-                    
-                    // flip the flag so we can exit gracefully
-                    hasResults = false;
+                    Utils.log("[ERROR] Query returned no results! Please try again.");
                 }
-                else
+
+                // list of case id's with attachments
+                List<Integer> caseIdsWithAttachments = new ArrayList<>();
+
+                while (deskMessages.hasNext())
                 {
-                    // flip the flag indicating we received results
-                    hasResults = true;
-                    
-                    // clear the attachment id holder
-                    caseIdsWithAttachments.clear();
-                    
-                    // loop through the results and build the list of case id's with attachments
-                    for (SObject deskMessage : deskMessages)
+                    // get the name (can we assume it is never null?)
+                    String name = deskMessages.next().getField(DeskMessageFields.Name).toString();
+
+                    // add the integer value of the case id to the list
+                    caseIdsWithAttachments.add(Integer.valueOf(name.substring(name.lastIndexOf("-") + 1)));
+
+                    // publish a job for every chunk of case id's
+                    if (caseIdsWithAttachments.size() >= SalesforceConstants.SOQL_MAX_SIZE || !deskMessages.hasNext())
                     {
-                        // get the name (can we assume it is never null?)
-                        String name = deskMessage.getField(DeskMessageFields.Name).toString();
-                        
-                        // // get the case Id as string
-                        String caseId = name.substring(name.lastIndexOf("-") + 1);
-                        
-                        // add the integer value of the case id to the list
-                        caseIdsWithAttachments.add(Integer.valueOf(caseId));
+                        // add the case id's to the map with the config
+                        config.put("desk_case_ids_with_attachments", caseIdsWithAttachments);
+
+                        // publish the job to RabbitMQ
+                        RabbitUtil.publishToQueue(QUEUE_DESK_ATTACHMENT_BACKGROUND, EXCHANGE_FORMULA1,
+                            WorkEnvelope.fromConfig(config).encode());
+
+                        // clear the attachment id holder
+                        caseIdsWithAttachments.clear();
                     }
-                    
-                    // add the case id's to the map with the config
-                    config.put("desk_case_ids_with_attachments", caseIdsWithAttachments);
-                    
-                    // publish the job to RabbitMQ
-                    RabbitUtil.publishToQueue(QUEUE_DESK_ATTACHMENT_BACKGROUND, EXCHANGE_FORMULA1,
-                        JsonUtil.toJson(config).getBytes());
-                    
-                    // update the filter
-                    sfId = deskMessages.get(deskMessages.size() - 1).getField(DeskMessageFields.Id).toString();
-                    
-//                    // increment page counter
-//                    page++;
                 }
-//                // DEBUG
-//                if (page >= 1)
-//                {
-//                    return;
-//                }
             }
-            while (hasResults);
         }
         catch (UnexpectedErrorFault e)
         {
@@ -357,6 +357,7 @@ public final class DeskWorker
             dr.addError(String.format("[%s] %s", e.getExceptionCode().name(), e.getExceptionMessage()));
             deskUtil.updateMigrationStatus(DeskMigrationFields.StatusFailed, "Attachments", dr);
             Utils.logException(e);
+            throw new MigrationFailedException(e.getMessage(), e);
         }
         catch (Exception e)
         {
@@ -364,11 +365,40 @@ public final class DeskWorker
             dr.addError(e.getMessage());
             deskUtil.updateMigrationStatus(DeskMigrationFields.StatusFailed, "Attachments", dr);
             Utils.logException(e);
+            throw new MigrationFailedException(e.getMessage(), e);
+        }
+    }
+
+    private static void publishPendingAttachments(DeskUtil deskUtil, AttachmentRegistry registry,
+        Map<String, Object> config) throws Exception
+    {
+        List<Integer> caseIds = registry.getPending();
+        if (caseIds.isEmpty() && registry.getDoneCount() == 0)
+        {
+            // the case migration registers the cases with attachments, without them there is nothing to migrate
+            throw new Exception("No cases with attachments are registered, migrate the cases before the attachments.");
+        }
+
+        // report the totals, there is no record per case
+        DeployResponse dr = new DeployResponse();
+        dr.addError(String.format("Cases with attachments: [%d] pending, [%d] done.", caseIds.size(),
+            registry.getDoneCount()));
+        deskUtil.updateMigrationStatus((caseIds.isEmpty() ? DeskMigrationFields.StatusComplete
+            : DeskMigrationFields.StatusRunning), "Attachments", dr);
+
+        // publish the cases in the same chunks the desk message query returned
+        for (int i = 0; i < caseIds.size(); i += SalesforceConstants.SOQL_MAX_SIZE)
+        {
+            config.put("desk_case_ids_with_attachments",
+                new ArrayList<>(caseIds.subList(i, Math.min(caseIds.size(), i + SalesforceConstants.SOQL_MAX_SIZE))));
+
+            RabbitUtil.publishToQueue(QUEUE_DESK_ATTACHMENT_BACKGROUND, EXCHANGE_FORMULA1,
+                WorkEnvelope.fromConfig(config).encode());
         }
     }
 
     @SuppressWarnings("unchecked")
-    public static void migrateAttachments(String json)
+    public static void migrateAttachments(String json) throws Exception
     {
         Utils.log("[DESK] DeskWorker::migrateAttachments() entered.");
 
@@ -385,6 +415,24 @@ public final class DeskWorker
         catch (Exception e)
         {
             Utils.logException(e);
+            throw e;
+        }
+    }
+
+    public static void migrateAttachments(WorkEnvelope envelope) throws Exception
+    {
+        Utils.log("[DESK] DeskWorker::migrateAttachments() entered.");
+
+        try
+        {
+            DeskUtil deskUtil = new DeskUtil(new DeskService(envelope.getSettings()));
+
+            deskUtil.migrateDeskAttachments(new ArrayList<>(envelope.getIds("desk_case_ids_with_attachments")));
+        }
+        catch (Exception e)
+        {
+            Utils.logException(e);
+            throw e;
         }
     }
 
@@ -0,0 +1,100 @@
+package com.salesforce.scmt.rabbitmq;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <p>
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * <p>
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * Neither the name of Salesforce.com nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class WorkEnvelopeTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("deskUrl", "example.desk.com");
+        config.put("auditEnabled", true);
+        config.put("desk_migration_id", null);
+        config.put("case_ids_with_attachments", Arrays.asList(5, 7, 3, Integer.MAX_VALUE, Integer.MIN_VALUE, 0));
+
+        WorkEnvelope envelope = WorkEnvelope.decode(WorkEnvelope.fromConfig(config).encode());
+
+        assertEquals("example.desk.com", envelope.getSettings().get("deskUrl"));
+        assertEquals("true", envelope.getSettings().get("auditEnabled"));
+        assertTrue(envelope.getSettings().containsKey("desk_migration_id"));
+        assertNull(envelope.getSettings().get("desk_migration_id"));
+        assertEquals(Arrays.asList(5, 7, 3, Integer.MAX_VALUE, Integer.MIN_VALUE, 0),
+            envelope.getIds("case_ids_with_attachments"));
+        assertTrue(envelope.getIds("missing").isEmpty());
+    }
+
+    @Test
+    public void testLargeListIsCompressed() throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            ids.add(1000000 + i * 3);
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("desk_case_ids_with_attachments", ids);
+
+        byte[] body = WorkEnvelope.fromConfig(config).encode();
+
+        assertEquals(WorkEnvelope.FLAG_GZIP, body[2] & WorkEnvelope.FLAG_GZIP);
+        assertTrue(body.length < ids.size());
+        assertEquals(ids, WorkEnvelope.decode(body).getIds("desk_case_ids_with_attachments"));
+    }
+
+    @Test
+    public void testJsonIsNotAnEnvelope() throws Exception {
+        assertFalse(WorkEnvelope.isEnvelope("{\"deskUrl\":\"example.desk.com\"}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(WorkEnvelope.isEnvelope(new byte[0]));
+    }
+
+    @Test
+    public void testTruncatedEnvelopeIsNotTransient() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("case_ids_with_attachments", Arrays.asList(5, 7, 3));
+        byte[] body = WorkEnvelope.fromConfig(config).encode();
+
+        try {
+            WorkEnvelope.decode(Arrays.copyOf(body, body.length - 2));
+            fail("Expected a MalformedEnvelopeException");
+        } catch (MalformedEnvelopeException e) {
+            assertFalse(RabbitWorker.isTransient(e));
+        }
+    }
+
+}
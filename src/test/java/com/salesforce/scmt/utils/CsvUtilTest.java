@@ -0,0 +1,101 @@
+package com.salesforce.scmt.utils;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <p>
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * <p>
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * Neither the name of Salesforce.com nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class CsvUtilTest {
+
+    @Test
+    public void testFlatten() {
+        Map<String, Object> parent = new HashMap<>();
+        parent.put("DeskId__c", 64);
+        Map<String, Object> type = new HashMap<>();
+        type.put("type", "User");
+        Map<String, Object> createdBy = new LinkedHashMap<>();
+        createdBy.put("attributes", type);
+        createdBy.put("DeskId__c", 453259);
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("Parent", parent);
+        record.put("CreatedBy", createdBy);
+        record.put("IsPublished", false);
+        record.put("Subject", null);
+        record.put("Amount", 1e10);
+
+        Map<String, String> row = CsvUtil.flatten(record);
+
+        // relationships become dotted columns, nulls are left out
+        assertEquals(Arrays.asList("Parent.DeskId__c", "User:CreatedBy.DeskId__c", "IsPublished", "Amount"),
+            Arrays.asList(row.keySet().toArray()));
+        assertEquals("64", row.get("Parent.DeskId__c"));
+        assertEquals("453259", row.get("User:CreatedBy.DeskId__c"));
+        assertEquals("false", row.get("IsPublished"));
+        assertEquals("10000000000", row.get("Amount"));
+    }
+
+    @Test
+    public void testWriteRow() throws Exception {
+        Map<String, String> row = new HashMap<>();
+        row.put("Subject", "say \"hi\"\nthere");
+        row.put("DeskId__c", "7");
+        List<String> header = Arrays.asList("DeskId__c", "Status", "Subject");
+
+        StringWriter out = new StringWriter();
+        CsvUtil.writeLine(out, header);
+        CsvUtil.writeRow(out, header, row);
+
+        // quotes are doubled, missing values are empty cells
+        assertEquals("\"DeskId__c\",\"Status\",\"Subject\"\n\"7\",,\"say \"\"hi\"\"\nthere\"\n", out.toString());
+    }
+
+    @Test
+    public void testToCsv() throws Exception {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("DeskId__c", 1);
+        first.put("Subject", "first");
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("DeskId__c", 2);
+        second.put("Status", "Closed");
+
+        // one header with the columns of both records
+        assertEquals("\"DeskId__c\",\"Subject\",\"Status\"\n\"1\",\"first\",\n\"2\",,\"Closed\"\n",
+            new String(CsvUtil.toCsv(Arrays.asList(first, second)), "UTF-8"));
+    }
+}
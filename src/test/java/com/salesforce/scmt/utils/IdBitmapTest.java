@@ -0,0 +1,171 @@
+package com.salesforce.scmt.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright (c) 2017, Salesforce.com, Inc.
+ * All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <p>
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * <p>
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * Neither the name of Salesforce.com nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+public class IdBitmapTest {
+
+    @Test
+    public void testAddAndContains() {
+        IdBitmap bitmap = new IdBitmap();
+
+        // a dense run (becomes a bitmap container) and a few sparse ids
+        for (int id = 100000; id < 110000; id++) {
+            assertTrue(bitmap.add(id));
+        }
+        assertTrue(bitmap.add(7));
+        assertTrue(bitmap.add(Integer.MAX_VALUE));
+        assertTrue(bitmap.add(-1));
+        assertFalse(bitmap.add(105000));
+        assertFalse(bitmap.add(7));
+
+        assertEquals(10003, bitmap.getCardinality());
+        assertTrue(bitmap.contains(100000));
+        assertTrue(bitmap.contains(109999));
+        assertFalse(bitmap.contains(110000));
+        assertFalse(bitmap.contains(99999));
+        assertTrue(bitmap.contains(7));
+        assertFalse(bitmap.contains(8));
+        assertTrue(bitmap.contains(Integer.MAX_VALUE));
+        assertTrue(bitmap.contains(-1));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        IdBitmap bitmap = new IdBitmap();
+        for (int id = 0; id < 20000; id += 3) {
+            bitmap.add(id);
+        }
+        bitmap.add(123456789);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.write(out);
+        IdBitmap copy = IdBitmap.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(bitmap.getCardinality(), copy.getCardinality());
+        for (int id = 0; id < 20001; id++) {
+            assertEquals(bitmap.contains(id), copy.contains(id));
+        }
+        assertTrue(copy.contains(123456789));
+
+        // the copy keeps growing like the original
+        assertTrue(copy.add(20001));
+        assertFalse(copy.add(3));
+    }
+
+    @Test
+    public void testRemove() {
+        IdBitmap bitmap = new IdBitmap();
+
+        // an array container and a bitmap container
+        bitmap.add(1);
+        bitmap.add(2);
+        bitmap.add(3);
+        for (int id = 65536; id < 65536 + 5000; id++) {
+            bitmap.add(id);
+        }
+
+        assertTrue(bitmap.remove(2));
+        assertFalse(bitmap.remove(2));
+        assertFalse(bitmap.contains(2));
+        assertTrue(bitmap.contains(1));
+        assertTrue(bitmap.contains(3));
+
+        assertTrue(bitmap.remove(65536 + 100));
+        assertFalse(bitmap.remove(65536 + 100));
+        assertFalse(bitmap.contains(65536 + 100));
+        assertTrue(bitmap.contains(65536 + 101));
+
+        // ids that were never added, also in a container that doesn't exist
+        assertFalse(bitmap.remove(4));
+        assertFalse(bitmap.remove(1 << 20));
+        assertEquals(2 + 4999, bitmap.getCardinality());
+
+        // emptying a container, and adding back to it
+        assertTrue(bitmap.remove(1));
+        assertTrue(bitmap.remove(3));
+        assertFalse(bitmap.contains(1));
+        assertEquals(4999, bitmap.getCardinality());
+        assertTrue(bitmap.add(3));
+        assertTrue(bitmap.add(65536 + 100));
+        assertEquals(5001, bitmap.getCardinality());
+    }
+
+    @Test
+    public void testForEach() {
+        IdBitmap bitmap = new IdBitmap();
+        List<Integer> expected = new ArrayList<>();
+
+        // an array container, added out of order
+        bitmap.add(30);
+        bitmap.add(10);
+        bitmap.add(20);
+        expected.add(10);
+        expected.add(20);
+        expected.add(30);
+
+        // a bitmap container, with ids at both ends of its words
+        for (int id = 2 << 16; id < (2 << 16) + 5000; id++) {
+            bitmap.add(id);
+            expected.add(id);
+        }
+
+        // negative ids come last
+        bitmap.add(-1);
+        expected.add(-1);
+
+        assertEquals(expected, collect(bitmap));
+
+        // removed ids are left out
+        bitmap.remove(20);
+        bitmap.remove((2 << 16) + 63);
+        bitmap.remove((2 << 16) + 64);
+        expected.remove(Integer.valueOf(20));
+        expected.remove(Integer.valueOf((2 << 16) + 63));
+        expected.remove(Integer.valueOf((2 << 16) + 64));
+
+        assertEquals(expected, collect(bitmap));
+        assertEquals(expected.size(), bitmap.getCardinality());
+    }
+
+    private static List<Integer> collect(IdBitmap bitmap) {
+        List<Integer> ids = new ArrayList<>();
+        bitmap.forEach(ids::add);
+        return ids;
+    }
+}